@@ -0,0 +1,87 @@
+package com.codegy.ioswearconnect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Work done for every Notification Source event: decoding it, tracking it until its attributes
+ * arrive, building the attributes request and picking the app's icon and colors once they do.
+ */
+@State(Scope.Thread)
+public class NotificationSourceBenchmark {
+
+    @State(Scope.Thread)
+    public static class App {
+
+        // A plain app, a messaging app with a parse rule and an unknown one
+        @Param({ "com.apple.MobileSMS", "net.whatsapp.WhatsApp", "com.example.unknown" })
+        public String appId;
+
+        private NotificationData notificationData;
+
+        @Setup
+        public void setUp() throws IOException {
+            // Profiles bundled with the app, copied to the benchmark resources by the build
+            AppRegistry registry = new AppRegistry();
+            registry.read(new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/app_profiles.txt"), StandardCharsets.UTF_8)));
+            NotificationDataManager.setAppRegistry(registry);
+
+            notificationData = new NotificationData(new byte[] { ServicesConstants.EventIDNotificationAdded, 0, 4, 1, 0x2a, 0x01, 0x00, 0x00 });
+            notificationData.setAppId(appId);
+        }
+
+    }
+
+
+    private byte[] notificationSourcePacket;
+    private final NotificationSourceEvent event = new NotificationSourceEvent();
+    private final PendingNotifications pendingNotifications = new PendingNotifications();
+
+
+    @Setup
+    public void setUp() {
+        notificationSourcePacket = new byte[] { ServicesConstants.EventIDNotificationAdded, 8 | 16, 4, 1, 0x2a, 0x01, 0x00, 0x00 };
+        event.wrap(notificationSourcePacket);
+    }
+
+    @Benchmark
+    public int decode() {
+        event.wrap(notificationSourcePacket);
+
+        return event.getUID() + event.getEventFlags() + event.getCategoryId();
+    }
+
+    @Benchmark
+    public int trackPending() {
+        // What an event costs until its response arrives
+        event.wrap(notificationSourcePacket);
+        pendingNotifications.put(event.getUID(), event.getEventFlags(), event.getCategoryId(), 0, 30000);
+
+        return pendingNotifications.discard(event.getUID()) ? 1 : 0;
+    }
+
+    @Benchmark
+    public byte[] buildGetAttributesPacket() {
+        return BLEManager.buildGetAttributesPacket(event.getUID(), event.getEventFlags());
+    }
+
+    @Benchmark
+    public NotificationData updateData(App app) {
+        // Messaging apps rewrite the title and message, start from the original ones every time
+        app.notificationData.setTitle("WhatsApp");
+        app.notificationData.setMessage("John: On my way");
+
+        NotificationDataManager.updateData(app.notificationData);
+
+        return app.notificationData;
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.codegy.ioswearconnect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reassembly of a Get Notification Attributes response split in Data Source packets.
+ *
+ * The packet size is the MTU minus the 3 bytes of the notification header: 20 is the default MTU,
+ * the larger ones are what iOS negotiates when the watch asks for it.
+ */
+@State(Scope.Thread)
+public class PacketProcessorBenchmark {
+
+    @Param({ "20", "64", "182", "509" })
+    public int packetSize;
+
+    @Param({ "short", "long" })
+    public String message;
+
+    private byte[] notificationSourcePacket;
+    private byte[][] packets;
+    private PacketProcessor processor;
+
+
+    @Setup
+    public void setUp() {
+        String text = message.equals("short")
+                ? "On my way"
+                : "Hey, are we still meeting tomorrow at the usual place? I can bring the documents we talked about, let me know if the time works for you. ñ ✓";
+
+        notificationSourcePacket = new byte[] { ServicesConstants.EventIDNotificationAdded, 8 | 16, 4, 1, 0x2a, 0x01, 0x00, 0x00 };
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(ServicesConstants.CommandIDGetNotificationAttributes);
+        response.write(notificationSourcePacket, 4, 4);
+        writeAttribute(response, ServicesConstants.NotificationAttributeIDAppIdentifier, "net.whatsapp.WhatsApp");
+        writeAttribute(response, ServicesConstants.NotificationAttributeIDTitle, "John Appleseed");
+        writeAttribute(response, ServicesConstants.NotificationAttributeIDMessage, text);
+        writeAttribute(response, ServicesConstants.NotificationAttributeIDPositiveActionLabel, "Reply");
+        writeAttribute(response, ServicesConstants.NotificationAttributeIDNegativeActionLabel, "Clear");
+
+        byte[] bytes = response.toByteArray();
+        int count = (bytes.length + packetSize - 1) / packetSize;
+        packets = new byte[count][];
+
+        for (int i = 0; i < count; i++) {
+            packets[i] = Arrays.copyOfRange(bytes, i * packetSize, Math.min(bytes.length, (i + 1) * packetSize));
+        }
+
+        processor = new PacketProcessor();
+    }
+
+    @Benchmark
+    public NotificationData process() {
+        NotificationData notificationData = new NotificationData(notificationSourcePacket);
+
+        processor.start(notificationData);
+
+        for (byte[] packet : packets) {
+            processor.process(packet);
+        }
+
+        processor.reset();
+
+        return notificationData;
+    }
+
+    private static void writeAttribute(ByteArrayOutputStream out, byte attributeId, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        out.write(attributeId);
+        out.write(bytes.length & 0xff);
+        out.write((bytes.length >> 8) & 0xff);
+        out.write(bytes, 0, bytes.length);
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.codegy.ioswearconnect;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.lang.reflect.Method;
+
+/**
+ * KeepAliveScheduler alarm on AlarmManager, in elapsed realtime so it also fires while the watch is
+ * asleep. The runnable is posted to the event loop under a short wake lock.
+ */
+public class AlarmManagerAlarm implements KeepAliveScheduler.Alarm {
+
+    private static final String ACTION_ALARM = "com.codegy.ioswearconnect.KEEP_ALIVE_ALARM";
+    // Signature permission held by this app only, the alarm's PendingIntent is sent with it
+    private static final String PERMISSION_ALARM = "com.codegy.ioswearconnect.permission.KEEP_ALIVE_ALARM";
+
+    // Long enough for the runnable to run and its read to be sent
+    private static final long WAKE_LOCK_TIMEOUT = 2000;
+
+
+    private final Context mContext;
+    private final EventLoop mEventLoop;
+    private final AlarmManager mAlarmManager;
+    private final PowerManager.WakeLock mWakeLock;
+    private final PendingIntent mPendingIntent;
+
+    private boolean registered;
+    private volatile Runnable runnable;
+
+
+    public AlarmManagerAlarm(Context context, EventLoop eventLoop) {
+        this.mContext = context;
+        this.mEventLoop = eventLoop;
+
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mWakeLock = ((PowerManager) context.getSystemService(Context.POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "iOS_WEAR_KEEP_ALIVE");
+        mWakeLock.setReferenceCounted(false);
+
+        Intent intent = new Intent(ACTION_ALARM).setPackage(context.getPackageName());
+        mPendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void set(long time, Runnable runnable) {
+        if (!registered) {
+            // Other apps can't send the action and wake the watch
+            mContext.registerReceiver(mAlarmReceiver, new IntentFilter(ACTION_ALARM), PERMISSION_ALARM, null);
+            registered = true;
+        }
+
+        this.runnable = runnable;
+
+        try {
+            // Still fires in doze, API 23 and newer
+            Method method = AlarmManager.class.getMethod("setExactAndAllowWhileIdle", int.class, long.class, PendingIntent.class);
+            method.invoke(mAlarmManager, AlarmManager.ELAPSED_REALTIME_WAKEUP, time, mPendingIntent);
+        }
+        catch (Exception e) {
+            mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, mPendingIntent);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        runnable = null;
+        mAlarmManager.cancel(mPendingIntent);
+    }
+
+    @Override
+    public void close() {
+        cancel();
+
+        if (registered) {
+            mContext.unregisterReceiver(mAlarmReceiver);
+            registered = false;
+        }
+    }
+
+    private final BroadcastReceiver mAlarmReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Runnable alarmRunnable = runnable;
+
+            if (alarmRunnable == null) {
+                return;
+            }
+
+            // The receiver's own wake lock is released when onReceive returns
+            mWakeLock.acquire(WAKE_LOCK_TIMEOUT);
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Canceled or replaced in the meantime
+                    if (alarmRunnable == runnable) {
+                        runnable = null;
+                        alarmRunnable.run();
+                    }
+                }
+            });
+        }
+    };
+
+}
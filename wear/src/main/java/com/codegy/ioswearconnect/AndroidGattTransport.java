@@ -0,0 +1,350 @@
+package com.codegy.ioswearconnect;
+
+import android.bluetooth.*;
+import android.bluetooth.le.*;
+import android.content.Context;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GattTransport on top of the platform BluetoothGatt and BluetoothLeScanner.
+ */
+public class AndroidGattTransport implements GattTransport {
+
+    private static final String TAG_LOG = "AndroidGattTransport";
+
+    private static final String DESCRIPTOR_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+
+
+    private Context mContext;
+    private Listener mListener;
+
+    private BluetoothAdapter mAdapter;
+    private BluetoothLeScanner mScanner;
+    private boolean batching;
+    // Written on the manager's thread, read on binder threads to drop events of closed connections
+    private volatile BluetoothGatt bluetoothGatt;
+
+
+    public AndroidGattTransport(Context context) {
+        this.mContext = context;
+
+        // Initializes a Bluetooth adapter.  For API level 18 and above, get a reference to
+        // BluetoothAdapter through BluetoothManager.
+        final BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        mAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.mListener = listener;
+    }
+
+    @Override
+    public boolean startScan(String serviceUUID, int scanMode, long reportDelay) {
+        // Checks if Bluetooth is supported on the device.
+        if (mAdapter == null) {
+            Log.d(TAG_LOG, "Bluetooth not supported");
+            return false;
+        }
+
+        mScanner = mAdapter.getBluetoothLeScanner();
+
+        if (mScanner == null) {
+            Log.d(TAG_LOG, "Bluetooth is off");
+            return false;
+        }
+
+        ScanFilter filter = new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(serviceUUID)).build();
+        List<ScanFilter> filters = new ArrayList<>(1);
+        filters.add(filter);
+
+        ScanSettings.Builder settingsBuilder = new ScanSettings.Builder().setScanMode(scanMode);
+
+        // Batched results let the application processor sleep between them
+        batching = reportDelay > 0 && mAdapter.isOffloadedScanBatchingSupported();
+        if (batching) {
+            settingsBuilder.setReportDelay(reportDelay);
+        }
+
+        mScanner.startScan(filters, settingsBuilder.build(), mScanCallback);
+
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        if (mScanner != null) {
+            try {
+                if (batching) {
+                    mScanner.flushPendingScanResults(mScanCallback);
+                }
+
+                mScanner.stopScan(mScanCallback);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            mScanner = null;
+        }
+    }
+
+    @Override
+    public boolean connect(String address, boolean autoConnect) {
+        if (mAdapter == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return false;
+        }
+
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        bluetoothGatt = device.connectGatt(mContext, autoConnect, bluetoothGattCallback);
+
+        return bluetoothGatt != null;
+    }
+
+    @Override
+    public void disconnect() {
+        if (bluetoothGatt != null) {
+            bluetoothGatt.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        BluetoothGatt gatt = bluetoothGatt;
+        bluetoothGatt = null;
+
+        if (gatt != null) {
+            try {
+                gatt.disconnect();
+                gatt.close();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return bluetoothGatt != null && bluetoothGatt.discoverServices();
+    }
+
+    @Override
+    public boolean hasService(UUID serviceUUID) {
+        return bluetoothGatt != null && bluetoothGatt.getService(serviceUUID) != null;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return bluetoothGatt != null && bluetoothGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean subscribe(UUID serviceUUID, String characteristic) {
+        BluetoothGattCharacteristic bluetoothGattCharacteristic = getCharacteristic(serviceUUID, characteristic);
+
+        if (bluetoothGattCharacteristic == null) {
+            return false;
+        }
+
+        bluetoothGatt.setCharacteristicNotification(bluetoothGattCharacteristic, true);
+
+        BluetoothGattDescriptor descriptor = bluetoothGattCharacteristic.getDescriptor(UUID.fromString(DESCRIPTOR_CONFIG));
+
+        if (descriptor == null) {
+            return false;
+        }
+
+        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+        return bluetoothGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean write(UUID serviceUUID, String characteristic, byte[] value) {
+        BluetoothGattCharacteristic bluetoothGattCharacteristic = getCharacteristic(serviceUUID, characteristic);
+
+        if (bluetoothGattCharacteristic == null) {
+            return false;
+        }
+
+        // not being used
+        // bluetoothGattCharacteristic.setWriteType(command.getWriteType());
+
+        return bluetoothGattCharacteristic.setValue(value) && bluetoothGatt.writeCharacteristic(bluetoothGattCharacteristic);
+    }
+
+    @Override
+    public boolean read(UUID serviceUUID, String characteristic) {
+        BluetoothGattCharacteristic bluetoothGattCharacteristic = getCharacteristic(serviceUUID, characteristic);
+
+        return bluetoothGattCharacteristic != null && bluetoothGatt.readCharacteristic(bluetoothGattCharacteristic);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return bluetoothGatt != null && bluetoothGatt.readRemoteRssi();
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return bluetoothGatt != null && bluetoothGatt.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    public int getBondState() {
+        BluetoothGatt gatt = bluetoothGatt;
+
+        if (gatt == null || gatt.getDevice() == null) {
+            return -1;
+        }
+
+        return gatt.getDevice().getBondState();
+    }
+
+    @Override
+    public void createBond() {
+        BluetoothGatt gatt = bluetoothGatt;
+
+        if (gatt != null && gatt.getDevice() != null) {
+            Log.d(TAG_LOG, "Pairing...");
+            gatt.getDevice().createBond();
+        }
+    }
+
+    @Override
+    public void removeBond() {
+        BluetoothGatt gatt = bluetoothGatt;
+
+        if (gatt != null && gatt.getDevice() != null) {
+            BluetoothDevice device = gatt.getDevice();
+
+            Log.d(TAG_LOG, "Unpairing...");
+            try {
+                Method m = device.getClass().getMethod("removeBond", (Class[]) null);
+                m.invoke(device, (Object[]) null);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID serviceUUID, String characteristic) {
+        if (bluetoothGatt == null) {
+            return null;
+        }
+
+        try {
+            BluetoothGattService service = bluetoothGatt.getService(serviceUUID);
+
+            if (service != null) {
+                return service.getCharacteristic(UUID.fromString(characteristic));
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            Log.i(TAG_LOG, "Scan Result: " + result.toString());
+
+            BluetoothDevice device = result.getDevice();
+
+            if (device != null && mListener != null) {
+                mListener.onDeviceFound(device.getAddress(), device.getName());
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            Log.i(TAG_LOG, "Batch Scan Results: " + results.toString());
+
+            for (ScanResult result : results) {
+                onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            Log.d(TAG_LOG, "Scan Failed: " + errorCode);
+        }
+
+    };
+
+    // Values are captured right away as the characteristic may be updated by the next packet.
+    // Events from a connection that has already been closed are dropped.
+    private final BluetoothGattCallback bluetoothGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (gatt == bluetoothGatt && mListener != null) {
+                mListener.onConnectionStateChange(newState == BluetoothProfile.STATE_CONNECTED, status);
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            if (gatt == bluetoothGatt && mListener != null) {
+                mListener.onReadRemoteRssi(rssi, status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (gatt == bluetoothGatt && mListener != null) {
+                mListener.onServicesDiscovered(status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (gatt == bluetoothGatt && mListener != null) {
+                mListener.onMtuChanged(mtu, status);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (gatt == bluetoothGatt && mListener != null) {
+                mListener.onDescriptorWrite(descriptor.getCharacteristic().getUuid().toString(), status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (gatt == bluetoothGatt && mListener != null) {
+                mListener.onCharacteristicWrite(characteristic.getUuid().toString(), characteristic.getValue(), status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (gatt == bluetoothGatt && mListener != null) {
+                mListener.onCharacteristicRead(characteristic.getUuid().toString(), characteristic.getValue(), status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            if (gatt == bluetoothGatt && mListener != null) {
+                mListener.onCharacteristicChanged(characteristic.getUuid().toString().toLowerCase(), characteristic.getValue());
+            }
+        }
+
+    };
+
+}
@@ -0,0 +1,152 @@
+package com.codegy.ioswearconnect;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reassembles the Data Source response to a Get App Attributes command.
+ *
+ * Unlike the notification attributes response, its header is the command ID followed by the
+ * NULL terminated app identifier, so its length is only known once the terminator arrives. Only
+ * the display name is requested.
+ */
+public class AppAttributesProcessor {
+
+    private enum ProcessingStatus {
+        Idle,
+        Init,
+        AppIdentifier,
+        AttributeHeader,
+        AttributeValue,
+        Finished
+    }
+
+    private static final String TAG_LOG = "AppAttributesProcessor";
+
+    // Attribute ID followed by a 2-bytes length
+    private static final int ATTRIBUTE_HEADER_LENGTH = 3;
+
+    private final FragmentBuffer buffer = new FragmentBuffer();
+
+    private String appId;
+    private String displayName;
+
+    // Bytes of the app identifier already checked for the terminator
+    private int scanned;
+    private int attributeId;
+    private int attributeLength;
+
+    private ProcessingStatus processingStatus = ProcessingStatus.Idle;
+
+
+    /**
+     * Prepares the processor for a new response, the internal buffers are reused.
+     */
+    public void start() {
+        buffer.clear();
+
+        appId = null;
+        displayName = null;
+        scanned = 0;
+
+        processingStatus = ProcessingStatus.Init;
+    }
+
+    public void reset() {
+        buffer.clear();
+
+        appId = null;
+        displayName = null;
+
+        processingStatus = ProcessingStatus.Idle;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public boolean isProcessing() {
+        return processingStatus != ProcessingStatus.Idle;
+    }
+
+    public boolean hasFinishedProcessing() {
+        return processingStatus == ProcessingStatus.Finished;
+    }
+
+    public void process(byte[] packet) {
+        if (!isProcessing() || hasFinishedProcessing()) {
+            return;
+        }
+
+        buffer.add(packet);
+
+        while (true) {
+            switch (processingStatus) {
+                case Init:
+                    if (buffer.available() < 1) {
+                        return;
+                    }
+
+                    // Command ID
+                    buffer.skip(1);
+                    processingStatus = ProcessingStatus.AppIdentifier;
+
+                    break;
+                case AppIdentifier:
+                    while (scanned < buffer.available() && buffer.peek(scanned) != 0) {
+                        scanned++;
+                    }
+
+                    if (scanned == buffer.available()) {
+                        // Wait for the rest of the identifier
+                        return;
+                    }
+
+                    buffer.readSlice(scanned);
+                    appId = new String(buffer.getSliceArray(), buffer.getSliceOffset(), buffer.getSliceLength(), StandardCharsets.UTF_8);
+                    buffer.skip(1);
+
+                    processingStatus = ProcessingStatus.AttributeHeader;
+
+                    break;
+                case AttributeHeader:
+                    if (buffer.available() < ATTRIBUTE_HEADER_LENGTH) {
+                        return;
+                    }
+
+                    attributeId = buffer.readByte();
+                    attributeLength = buffer.readUInt16();
+                    processingStatus = ProcessingStatus.AttributeValue;
+
+                    break;
+                case AttributeValue:
+                    if (buffer.available() < attributeLength) {
+                        return;
+                    }
+
+                    buffer.readSlice(attributeLength);
+
+                    if (attributeId == ServicesConstants.AppAttributeIDDisplayName) {
+                        displayName = new String(buffer.getSliceArray(), buffer.getSliceOffset(), buffer.getSliceLength(), StandardCharsets.UTF_8);
+                        Log.d(TAG_LOG, "$$$ " + appId + " display name : " + displayName);
+                    }
+                    else {
+                        Log.d(TAG_LOG, "$$ unexpected attribute: " + attributeId);
+                    }
+
+                    processingStatus = ProcessingStatus.Finished;
+                    buffer.clear();
+
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.codegy.ioswearconnect;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Display names of the iOS apps by bundle id, so each app is asked for its name only once.
+ *
+ * Names are appended to a file as they arrive, an empty name is stored for the apps the iOS device
+ * doesn't know so they aren't asked again either. Without a file the cache only lives in memory.
+ * Not thread safe, it's used on BLEManager's thread.
+ */
+public class AppNameCache {
+
+    private static final String TAG_LOG = "AppNameCache";
+
+
+    private final File file;
+    private final Map<String, String> names = new HashMap<>();
+    private DataOutputStream out;
+
+
+    public AppNameCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the names stored by previous runs and opens the file for appending.
+     */
+    public void load() {
+        if (file == null) {
+            return;
+        }
+
+        if (file.exists()) {
+            DataInputStream in = null;
+
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+                while (true) {
+                    String appId = in.readUTF();
+                    names.put(appId, in.readUTF());
+                }
+            }
+            catch (EOFException e) {
+                // End of the file, a partially written last name is dropped
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        Log.d(TAG_LOG, "Loaded " + names.size() + " app names");
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        catch (IOException e) {
+            // Keep working in memory only
+            e.printStackTrace();
+        }
+    }
+
+    public boolean contains(String appId) {
+        return names.containsKey(appId);
+    }
+
+    /**
+     * Returns the display name of the app, or null if it's unknown.
+     */
+    public String get(String appId) {
+        String name = names.get(appId);
+
+        return name != null && name.length() > 0 ? name : null;
+    }
+
+    public void put(String appId, String name) {
+        if (name == null) {
+            name = "";
+        }
+
+        if (name.equals(names.put(appId, name))) {
+            return;
+        }
+
+        if (out != null) {
+            try {
+                out.writeUTF(appId);
+                out.writeUTF(name);
+                out.flush();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            out = null;
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.codegy.ioswearconnect;
+
+/**
+ * How notifications of an iOS app are shown on the watch.
+ */
+public class AppProfile {
+
+    public enum ParseRule {
+        None,
+        // Messaging apps put the sender in the message: "sender: body"
+        SenderBody
+    }
+
+    // Profile of the apps without one, notifications keep their defaults
+    public static final AppProfile UNKNOWN = new AppProfile(null, 0, 0, ParseRule.None);
+
+
+    private final String appId;
+    // 0 for the default notification icon
+    private final int appIcon;
+    // 0 for the default background color
+    private final int backgroundColor;
+    private final ParseRule parseRule;
+
+
+    public AppProfile(String appId, int appIcon, int backgroundColor, ParseRule parseRule) {
+        this.appId = appId;
+        this.appIcon = appIcon;
+        this.backgroundColor = backgroundColor;
+        this.parseRule = parseRule;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public int getAppIcon() {
+        return appIcon;
+    }
+
+    public int getBackgroundColor() {
+        return backgroundColor;
+    }
+
+    public ParseRule getParseRule() {
+        return parseRule;
+    }
+
+    public void apply(NotificationData notificationData) {
+        if (appIcon != 0) {
+            notificationData.setAppIcon(appIcon);
+        }
+        if (backgroundColor != 0) {
+            notificationData.setBackgroundColor(backgroundColor);
+        }
+
+        if (parseRule == ParseRule.SenderBody && notificationData.getMessage() != null) {
+            String message = notificationData.getMessage();
+            int index = message.indexOf(": ");
+
+            if (index > 0) {
+                notificationData.setTitle(message.substring(0, index));
+                notificationData.setMessage(message.substring(index + 2));
+            }
+        }
+    }
+
+}
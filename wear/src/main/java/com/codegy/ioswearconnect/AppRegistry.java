@@ -0,0 +1,209 @@
+package com.codegy.ioswearconnect;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Profiles of the known iOS apps, indexed by bundle id.
+ *
+ * The bundled profiles are read once from res/raw/app_profiles.txt, user overrides stored in the
+ * shared preferences under Constants.SPK_APP_PROFILE_PREFIX + bundle id take precedence. Lookups
+ * don't allocate, unknown apps get the shared AppProfile.UNKNOWN.
+ */
+public class AppRegistry {
+
+    private static final String TAG_LOG = "AppRegistry";
+
+    private static final String NONE = "-";
+
+    // Drawable ids by name, built once from R.drawable
+    private static Map<String, Integer> iconIds;
+
+
+    private final HashMap<String, AppProfile> profiles = new HashMap<>(64);
+    // Replaced on every change so lookups from other threads always see a complete map
+    private volatile HashMap<String, AppProfile> overrides = new HashMap<>();
+
+
+    public static AppRegistry load(Context context) {
+        AppRegistry registry = new AppRegistry();
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(context.getResources().openRawResource(R.raw.app_profiles), StandardCharsets.UTF_8));
+            registry.read(reader);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        for (Map.Entry<String, ?> entry : sp.getAll().entrySet()) {
+            if (entry.getKey().startsWith(Constants.SPK_APP_PROFILE_PREFIX) && entry.getValue() instanceof String) {
+                registry.putOverride(entry.getKey().substring(Constants.SPK_APP_PROFILE_PREFIX.length()), (String) entry.getValue());
+            }
+        }
+
+        Log.d(TAG_LOG, "Loaded " + registry.size() + " app profiles, " + registry.overrides.size() + " overridden");
+
+        return registry;
+    }
+
+    /**
+     * Reads profiles in the app_profiles.txt format, invalid lines are skipped.
+     */
+    public void read(BufferedReader reader) throws IOException {
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+", 2);
+
+            if (fields.length == 2) {
+                String appId = fields[0];
+                AppProfile profile = parseProfile(appId, fields[1]);
+
+                if (profile != null) {
+                    profiles.put(appId, profile);
+                    continue;
+                }
+            }
+
+            Log.w(TAG_LOG, "Invalid app profile: " + line);
+        }
+    }
+
+    public AppProfile get(String appId) {
+        if (appId == null) {
+            return AppProfile.UNKNOWN;
+        }
+
+        AppProfile profile = overrides.get(appId);
+
+        if (profile == null) {
+            profile = profiles.get(appId);
+        }
+
+        return profile != null ? profile : AppProfile.UNKNOWN;
+    }
+
+    /**
+     * Overrides the bundled profile of an app, the profile is given without the bundle id.
+     * Returns false if it isn't valid.
+     */
+    public boolean putOverride(String appId, String profileString) {
+        AppProfile profile = parseProfile(appId, profileString);
+
+        if (profile == null) {
+            Log.w(TAG_LOG, "Invalid app profile override: " + appId + " " + profileString);
+            return false;
+        }
+
+        HashMap<String, AppProfile> newOverrides = new HashMap<>(overrides);
+        newOverrides.put(appId, profile);
+        overrides = newOverrides;
+
+        return true;
+    }
+
+    public void removeOverride(String appId) {
+        HashMap<String, AppProfile> newOverrides = new HashMap<>(overrides);
+        newOverrides.remove(appId);
+        overrides = newOverrides;
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+
+
+    static AppProfile parseProfile(String appId, String profileString) {
+        String[] fields = profileString.trim().split("\\s+");
+
+        if (fields.length != 3) {
+            return null;
+        }
+
+        int appIcon = 0;
+        if (!fields[0].equals(NONE)) {
+            Integer iconId = getIconIds().get(fields[0]);
+
+            if (iconId == null) {
+                return null;
+            }
+
+            appIcon = iconId;
+        }
+
+        int backgroundColor = 0;
+        if (!fields[1].equals(NONE)) {
+            if (fields[1].length() != 6) {
+                return null;
+            }
+
+            try {
+                backgroundColor = 0xff000000 | Integer.parseInt(fields[1], 16);
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        AppProfile.ParseRule parseRule;
+        switch (fields[2]) {
+            case NONE:
+                parseRule = AppProfile.ParseRule.None;
+                break;
+            case "sender":
+                parseRule = AppProfile.ParseRule.SenderBody;
+                break;
+            default:
+                return null;
+        }
+
+        return new AppProfile(appId, appIcon, backgroundColor, parseRule);
+    }
+
+    private static synchronized Map<String, Integer> getIconIds() {
+        if (iconIds == null) {
+            iconIds = new HashMap<>();
+
+            for (Field field : R.drawable.class.getFields()) {
+                try {
+                    iconIds.put(field.getName(), field.getInt(null));
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return iconIds;
+    }
+
+}
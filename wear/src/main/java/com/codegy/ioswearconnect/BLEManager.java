@@ -1,31 +1,73 @@
 package com.codegy.ioswearconnect;
 
-import android.bluetooth.*;
-import android.bluetooth.le.*;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.content.Context;
-import android.content.Intent;
-import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.ParcelUuid;
 import android.util.Log;
 
-import java.lang.reflect.Method;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 
 /**
  * Created by Guiye on 22/4/15.
+ *
+ * All the state is owned by a single EventLoop thread, transport events and the public methods
+ * are marshalled onto it. Callbacks to BLEManagerCallback are invoked on that thread too.
  */
 public class BLEManager {
 
     private static final String TAG_LOG = "BLEManager";
 
-    private static final String DESCRIPTOR_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
     private static final String SERVICE_BLANK = "00001111-0000-1000-8000-00805f9b34fb";
 
+    // Time a notification waits for its attributes, the request may be queued behind many others
+    private static final long PENDING_NOTIFICATION_TIMEOUT = 30000;
+    // Maximum time between two packets of the same attributes response
+    private static final long PROCESSING_TIMEOUT = 2000;
+    // Time to wait for a write response before trying the command again
+    private static final long COMMAND_TIMEOUT = 3000;
+    // Time a subscription or read is given before it's tried again, and how many times it is
+    private static final long OPERATION_TIMEOUT = 1000;
+    private static final int OPERATION_RETRIES = 2;
+    // Direct connection attempts to the last device before falling back to scanning
+    private static final int MAX_DIRECT_RECONNECTS = 5;
+    // Wait before the first direct attempt, doubled after each failed attempt
+    private static final long RECONNECT_BACKOFF = 200;
+    // Time a direct attempt is given to connect, doubled after each failed attempt
+    private static final long RECONNECT_ATTEMPT_TIMEOUT = 4000;
+    // ATT MTU before negotiation and the one asked for, the largest allowed
+    private static final int DEFAULT_MTU = 23;
+    private static final int REQUESTED_MTU = 517;
+    // Time to wait for the MTU negotiation before subscribing with the default one
+    private static final long MTU_TIMEOUT = 2000;
+    // Time after subscribing to the Notification Source by which the iOS device has announced
+    // every pre-existing notification
+    private static final long RECONCILE_DELAY = 10000;
+    // Truncated track attributes whose full value is remembered
+    private static final int TRACK_ATTRIBUTE_CACHE_SIZE = 32;
+
+    // Get Notification Attributes requests indexed by positive action | negative action << 1
+    private static final byte[][] GET_ATTRIBUTES_TEMPLATES = {
+            buildGetAttributesTemplate(false, false),
+            buildGetAttributesTemplate(true, false),
+            buildGetAttributesTemplate(false, true),
+            buildGetAttributesTemplate(true, true)
+    };
+
     public enum BLEManagerState {
         Disconnected,
         Connecting,
@@ -33,6 +75,14 @@ public class BLEManager {
         Reconnecting
     }
 
+    // Whether the stored notifications still belong to the UIDs the iOS device announces again
+    private enum StoreCheck {
+        Unchecked,
+        Checking,
+        Valid,
+        Outdated
+    }
+
     public interface BLEManagerCallback {
         void onConnectionStateChange(BLEManagerState state);
         void onIncomingCall(NotificationData notificationData);
@@ -44,97 +94,217 @@ public class BLEManager {
         void onMediaDataUpdated(byte[] packet, String attribute);
     }
 
+    /**
+     * Full values of truncated track attributes, least recently used dropped first.
+     */
+    private static class TrackAttributeCache extends LinkedHashMap<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        TrackAttributeCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > TRACK_ATTRIBUTE_CACHE_SIZE;
+        }
+    }
+
 
-    private Context mContext;
     private BLEManagerCallback mCallback;
 
-    private PacketProcessor mPacketProcessor;
+    private final GattTransport mTransport;
+    private final EventLoop mEventLoop;
 
-    private BluetoothLeScanner mScanner;
-    private BluetoothGatt bluetoothGatt;
+    private final NotificationSourceEvent mNotificationSourceEvent = new NotificationSourceEvent();
+    private final PacketProcessor mPacketProcessor = new PacketProcessor();
+    private final AppAttributesProcessor mAppAttributesProcessor = new AppAttributesProcessor();
+    private final GattOperationQueue mOperationQueue;
+    private final ConnectionPriorityController mConnectionPriorityController;
+    private final ScanScheduler mScanScheduler;
+    private final KeepAliveScheduler mKeepAliveScheduler;
+
+    private boolean connectionOpen = false;
+    // Bumped whenever a connection is opened or closed, events of older connections are ignored
+    private volatile int connectionGeneration = 0;
     private BLEManagerState state = BLEManagerState.Disconnected;
-    private boolean reconnect = false;
-    private int skipCount = 0;
     private int connectionFailedCount = 0;
 
-    private List<String> characteristicsSubscribed = new ArrayList<>();
-    private List<Command> pendingCommands = new ArrayList<>();
-    private List<NotificationData> pendingNotifications = new ArrayList<>();
+    // Last bonded device, reconnected to without scanning
+    private final File lastDeviceFile;
+    private String lastDeviceAddress;
+    // Address of the device being connected or connected to
+    private String deviceAddress;
+    private int reconnectAttempt = 0;
+    private long linkLostTime = -1;
+    private final LatencyHistogram reconnectHistogram = new LatencyHistogram();
+    private final Random random = new Random();
 
-    private boolean moto360Fix;
+    private List<String> characteristicsSubscribed = new ArrayList<>();
+    private final CommandScheduler commandScheduler = new CommandScheduler();
+    private Command inFlightCommand;
+    private final PendingNotifications pendingNotifications = new PendingNotifications();
+    // Notifications delivered to the watch, keyed by UID
+    private final IntObjectMap<NotificationData> activeNotifications = new IntObjectMap<>(64);
+    private final NotificationStore notificationStore;
+    private StoreCheck storeCheck = StoreCheck.Unchecked;
+    // Restored notification whose attributes are fetched to check the store, -1 if none
+    private int sentinelUID = -1;
+    private long sentinelDeadline;
+    // Restored while the check runs, fetched if the store turns out to be outdated
+    private final List<NotificationData> uncheckedNotifications = new ArrayList<>();
+    private final AppNameCache appNameCache;
+    // Apps whose name was asked during this connection
+    private final Set<String> appNameRequests = new HashSet<>();
+    private long processingDeadline;
+    // Negotiated ATT MTU of the current connection
+    private volatile int mtu = DEFAULT_MTU;
+    // Time the link came up, until the subscriptions are done
+    private long setupStartTime = -1;
+    private final LatencyHistogram setupHistogram = new LatencyHistogram();
+    // Data Source packets each notification's attributes arrived in
+    private final LatencyHistogram fragmentHistogram = new LatencyHistogram();
+    // Request, FirstFragment and Reassembly stages, the rest are recorded by the service
+    private final StageLatency stageLatency = new StageLatency();
+    private long nextExpireTime = -1;
+    // Latest truncated value of the track attributes being read in full, by attribute ID
+    private final IntObjectMap<byte[]> truncatedTrackAttributes = new IntObjectMap<>(4);
+    // Full values of truncated track attributes, by attribute ID and truncated value
+    private final Map<String, String> trackAttributeCache = new TrackAttributeCache();
+
+
+    /**
+     * The traffic goes through the recorder, which does nothing until it's enabled. Keep-alives start
+     * with the given idle window, 0 to learn it.
+     */
+    public BLEManager(Context context, BLEManagerCallback callback, GattRecorder recorder, long keepAliveWindow) {
+        this(context, callback, recorder, keepAliveWindow, new HandlerEventLoop(TAG_LOG));
+    }
 
+    private BLEManager(Context context, BLEManagerCallback callback, GattRecorder recorder, long keepAliveWindow, EventLoop eventLoop) {
+        this(callback, new RecordingGattTransport(new AndroidGattTransport(context), recorder, eventLoop), eventLoop,
+                new NotificationStore(new File(context.getFilesDir(), "notifications.log")),
+                new AppNameCache(new File(context.getFilesDir(), "app_names")),
+                new File(context.getFilesDir(), "last_device"), new AlarmManagerAlarm(context, eventLoop), keepAliveWindow);
+    }
 
-    public BLEManager(Context context, BLEManagerCallback callback) {
-        this.mContext = context;
+    /**
+     * Without an alarm keep-alives are timed on the event loop.
+     */
+    BLEManager(BLEManagerCallback callback, GattTransport transport, EventLoop eventLoop, final NotificationStore notificationStore,
+               final AppNameCache appNameCache, File lastDeviceFile, KeepAliveScheduler.Alarm alarm, long keepAliveWindow) {
         this.mCallback = callback;
+        this.mTransport = transport;
+        this.mEventLoop = eventLoop;
+        this.notificationStore = notificationStore;
+        this.appNameCache = appNameCache;
+        this.lastDeviceFile = lastDeviceFile;
+
+        mOperationQueue = new GattOperationQueue(eventLoop, transport, new GattOperationQueue.Listener() {
+            @Override
+            public void onIdle() {
+                sendNextCommand();
+            }
+        });
+        mConnectionPriorityController = new ConnectionPriorityController(eventLoop, mOperationQueue);
+        mScanScheduler = new ScanScheduler(eventLoop, transport, SERVICE_BLANK);
+        mKeepAliveScheduler = new KeepAliveScheduler(mOperationQueue, alarm != null ? alarm : new KeepAliveScheduler.LoopAlarm(eventLoop), keepAliveWindow);
+
+        mTransport.setListener(mTransportListener);
 
-        moto360Fix = Build.MODEL.equals("Moto 360");
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                notificationStore.load();
+                appNameCache.load();
+                lastDeviceAddress = loadLastDevice();
 
-        startScanner();
+                startReconnect();
+            }
+        });
     }
 
 
     private void startScanner() {
-        // Initializes a Bluetooth adapter.  For API level 18 and above, get a reference to
-        // BluetoothAdapter through BluetoothManager.
-        final BluetoothManager bluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
-        BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
+        Log.d(TAG_LOG, "Scanning started");
 
-        // Checks if Bluetooth is supported on the device.
-        if (bluetoothAdapter != null) {
-            mScanner = bluetoothAdapter.getBluetoothLeScanner();
-            ScanSettings settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_BALANCED).build();
-            mScanner.startScan(scanFilters(), settings, mScanCallback);
-
-            Log.d(TAG_LOG, "Scanning started");
-        }
-        else {
-            Log.d(TAG_LOG, "Bluetooth not supported");
-        }
+        mScanScheduler.start();
     }
 
     private void stopScanner() {
-        if (mScanner != null) {
-            mScanner.stopScan(mScanCallback);
-            mScanner = null;
+        if (mScanScheduler.isActive()) {
+            mScanScheduler.stop();
 
-            Log.d(TAG_LOG, "Scanning stopped");
+            Log.d(TAG_LOG, "Scanning stopped: " + mScanScheduler);
         }
     }
 
+    /**
+     * Closes the connection and stops the manager's thread, the manager can't be used afterwards.
+     */
     public void close() {
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                closeConnection();
+                mKeepAliveScheduler.close();
+                notificationStore.close();
+                appNameCache.close();
+
+                mEventLoop.quit();
+            }
+        });
+    }
+
+    private void closeConnection() {
         Log.d(TAG_LOG, "Close manager");
 
-        mNextCommandHandler.removeCallbacks(mNextCommandRunnable);
-        mClearOldNotificationsHandler.removeCallbacks(mClearOldNotificationsRunnable);
-        mCheckConnectingHandler.removeCallbacks(mCheckConnectingRunnable);
+        // Only the manager's own timers, close() or queued commands may be waiting behind this
+        mEventLoop.remove(mCheckConnectingRunnable);
+        mEventLoop.remove(mDirectReconnectRunnable);
+        mEventLoop.remove(mReconnectTimeoutRunnable);
+        mEventLoop.remove(mNextCommandRunnable);
+        mEventLoop.remove(mExpireNotificationsRunnable);
+        mEventLoop.remove(mReconcileRunnable);
+
+        mOperationQueue.clear();
+        mConnectionPriorityController.stop();
+        mKeepAliveScheduler.stop();
 
         try {
-            if (mScanner != null) {
-                stopScanner();
-            }
+            stopScanner();
 
-            if (bluetoothGatt != null) {
-                bluetoothGatt.disconnect();
-                bluetoothGatt.close();
-                bluetoothGatt = null;
-            }
+            connectionGeneration++;
+            connectionOpen = false;
+            mTransport.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
 
         state = BLEManagerState.Disconnected;
-        reconnect = false;
-        skipCount = 0;
+        deviceAddress = null;
 
-        mPacketProcessor = null;
+        mPacketProcessor.reset();
+        mAppAttributesProcessor.reset();
+        nextExpireTime = -1;
 
-        pendingCommands.clear();
+        mtu = DEFAULT_MTU;
+        setupStartTime = -1;
+
+        commandScheduler.clear();
+        inFlightCommand = null;
         pendingNotifications.clear();
+        truncatedTrackAttributes.clear();
+        activeNotifications.clear();
+        storeCheck = StoreCheck.Unchecked;
+        sentinelUID = -1;
+        uncheckedNotifications.clear();
         characteristicsSubscribed.clear();
+        appNameRequests.clear();
     }
 
-    public void setState(BLEManagerState state) {
+    private void setState(BLEManagerState state) {
         if (state == this.state) {
             return;
         }
@@ -144,158 +314,209 @@ public class BLEManager {
         mCallback.onConnectionStateChange(state);
     }
 
-    public void addCommandToQueue(Command command) {
-        pendingCommands.add(command);
+    public void addCommandToQueue(final Command command) {
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                commandScheduler.add(command, mEventLoop.now());
 
-        sendNextCommand();
+                // A higher priority command doesn't wait for a delayed retry
+                sendNextCommand();
+            }
+        });
     }
 
-    private void sendNextCommand() {
-        mNextCommandHandler.removeCallbacks(mNextCommandRunnable);
+    public CommandScheduler getCommandScheduler() {
+        return commandScheduler;
+    }
 
-        if (state == BLEManagerState.Disconnected || pendingCommands.size() == 0) {
-            return;
-        }
+    public ConnectionPriorityController getConnectionPriorityController() {
+        return mConnectionPriorityController;
+    }
 
-        boolean result = false;
-        Command command = pendingCommands.get(0);
+    public ScanScheduler getScanScheduler() {
+        return mScanScheduler;
+    }
 
-        try {
-            BluetoothGattService service = bluetoothGatt.getService(command.getServiceUUID());
+    public KeepAliveScheduler getKeepAliveScheduler() {
+        return mKeepAliveScheduler;
+    }
 
-            if (service != null) {
-                BluetoothGattCharacteristic bluetoothGattCharacteristic = service.getCharacteristic(UUID.fromString(command.getCharacteristic()));
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
 
-                if (bluetoothGattCharacteristic != null) {
-                    // not being used
-                    // bluetoothGattCharacteristic.setWriteType(command.getWriteType());
+    /**
+     * Histogram of the time from the link coming up to every subscription being done.
+     */
+    public LatencyHistogram getSetupHistogram() {
+        return setupHistogram;
+    }
 
-                    result = bluetoothGattCharacteristic.setValue(command.getPacket());
-                    Log.d(TAG_LOG, "Characteristic value set: " + result);
+    public int getMtu() {
+        return mtu;
+    }
 
-                    result = bluetoothGatt.writeCharacteristic(bluetoothGattCharacteristic);
-                    Log.d(TAG_LOG, "Started writing command: " + result);
-                }
-            }
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-            result = false;
-        }
+    /**
+     * Histogram of the number of Data Source packets each notification's attributes took.
+     */
+    public LatencyHistogram getFragmentHistogram() {
+        return fragmentHistogram;
+    }
 
-        if (!result) {
-            pendingCommands.remove(command);
+    public StageLatency getStageLatency() {
+        return stageLatency;
+    }
 
-            if (command.shouldRetryAgain()) {
-                pendingCommands.add(command);
-            }
-        }
+    /**
+     * Histogram of the time from losing the link to being connected again.
+     */
+    public LatencyHistogram getReconnectHistogram() {
+        return reconnectHistogram;
+    }
 
-        if (pendingCommands.size() > 0) {
-            startNextCommandHandler();
+    private void sendNextCommand() {
+        mConnectionPriorityController.setQueueDepth(commandScheduler.size() + (inFlightCommand != null ? 1 : 0));
+
+        // Commands go one at a time, when nothing else is running, so the lanes keep their order
+        if (state == BLEManagerState.Disconnected || inFlightCommand != null || commandScheduler.isEmpty() || !mOperationQueue.isIdle()) {
+            return;
         }
+
+        mEventLoop.remove(mNextCommandRunnable);
+
+        Command command = commandScheduler.poll(mEventLoop.now());
+        inFlightCommand = command;
+
+        // Not retried by the queue, failed commands go back to their lane
+        mOperationQueue.add(GattOperation.write(command.getServiceUUID(), command.getCharacteristic(), command.getPacket(), COMMAND_TIMEOUT, 0, mCommandCallback));
     }
 
-    private Handler mMoto360FixHandler = new Handler();
-    private Runnable mMoto360FixRunnable = new Runnable() {
+    private final GattOperation.Callback mCommandCallback = new GattOperation.Callback() {
         @Override
-        public void run() {
-            Log.d(TAG_LOG, "Trying to keep connection alive");
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (inFlightCommand == null || operation.getValue() != inFlightCommand.getPacket()) {
+                // The write of a command that was already given up on
+                return;
+            }
 
-            bluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
-            bluetoothGatt.readRemoteRssi();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                handleCommandWritten(operation.getCharacteristic());
+            }
+            else {
+                Log.w(TAG_LOG, "Characteristic write error: " + status + " :: " + operation.getCharacteristic());
 
-            // This command should have a response from the iOS device
-            Command attributeCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE, new byte[]{
-                    ServicesConstants.EntityIDTrack,
-                    ServicesConstants.TrackAttributeIDTitle
-            });
+                onCommandFinished(false);
+            }
+        }
+    };
 
-            addCommandToQueue(attributeCommand);
+    private void onCommandFinished(boolean success) {
+        Command lastCommand = inFlightCommand;
+        inFlightCommand = null;
 
-            startMoto360FixHandler();
+        mConnectionPriorityController.setQueueDepth(commandScheduler.size());
 
-            mMoto360FixHandler.removeCallbacks(mMoto360FixRunnable);
+        if (success) {
+            sendNextCommand();
         }
-    };
+        else {
+            if (lastCommand != null) {
+                if (lastCommand.shouldRetryAgain()) {
+                    commandScheduler.retry(lastCommand);
+                }
+                else {
+                    onCommandDropped(lastCommand);
+                }
+            }
 
-    private void startMoto360FixHandler() {
-        if (state == BLEManagerState.Disconnected) {
-            return;
+            startNextCommandHandler();
         }
+    }
 
-        Thread thread = new Thread() {
-            public void run() {
-                mNextCommandHandler.postDelayed(mNextCommandRunnable, 250000);
-            }
-        };
-        thread.start();
+    private void onCommandDropped(Command command) {
+        Log.w(TAG_LOG, "Command dropped: " + command.getCharacteristic());
+
+        if (command.getCharacteristic().equals(ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE)) {
+            // Fetched again the next time it's truncated
+            truncatedTrackAttributes.remove(command.getPacket()[1]);
+        }
     }
 
-    private Handler mNextCommandHandler = new Handler();
     private Runnable mNextCommandRunnable = new Runnable() {
         @Override
         public void run() {
             Log.d(TAG_LOG, "Sending next command");
             sendNextCommand();
-
-            mNextCommandHandler.removeCallbacks(mNextCommandRunnable);
         }
     };
 
     private void startNextCommandHandler() {
-        mNextCommandHandler.removeCallbacks(mNextCommandRunnable);
+        mEventLoop.remove(mNextCommandRunnable);
 
-        if (state == BLEManagerState.Disconnected || pendingCommands.size() == 0) {
+        if (state == BLEManagerState.Disconnected || inFlightCommand != null || commandScheduler.isEmpty()) {
             return;
         }
 
-        final long delay = 600 * pendingCommands.get(0).getRetryCount();
+        long delay = 600 * commandScheduler.peek().getRetryCount();
 
-        Thread thread = new Thread() {
-            public void run() {
-                mNextCommandHandler.postDelayed(mNextCommandRunnable, delay);
-            }
-        };
-        thread.start();
+        mEventLoop.postDelayed(mNextCommandRunnable, delay);
     }
 
-    private Handler mClearOldNotificationsHandler = new Handler();
-    private Runnable mClearOldNotificationsRunnable = new Runnable() {
+    private Runnable mExpireNotificationsRunnable = new Runnable() {
         @Override
         public void run() {
-            Log.d(TAG_LOG, "Clear old notifications");
-            mPacketProcessor = null;
-            pendingNotifications.clear();
+            nextExpireTime = -1;
+
+            long now = mEventLoop.now();
+
+            if ((mPacketProcessor.isProcessing() || mAppAttributesProcessor.isProcessing()) && processingDeadline <= now) {
+                Log.d(TAG_LOG, "Notification data stopped arriving");
+                mPacketProcessor.reset();
+                mAppAttributesProcessor.reset();
+            }
+
+            // Only notifications whose own deadline has passed are dropped
+            long nextDeadline = pendingNotifications.removeExpired(now);
+
+            if (storeCheck == StoreCheck.Checking && sentinelDeadline <= now) {
+                onStoreChecked(false);
+            }
+
+            if ((mPacketProcessor.isProcessing() || mAppAttributesProcessor.isProcessing()) && (nextDeadline == -1 || processingDeadline < nextDeadline)) {
+                nextDeadline = processingDeadline;
+            }
 
-            mClearOldNotificationsHandler.removeCallbacks(mClearOldNotificationsRunnable);
+            if (nextDeadline != -1) {
+                scheduleExpireNotifications(nextDeadline);
+            }
         }
     };
 
-    private void startClearOldNotificationsHandler() {
-        Thread thread = new Thread() {
-            public void run() {
-                mClearOldNotificationsHandler.postDelayed(mClearOldNotificationsRunnable, 700);
-            }
-        };
-        thread.start();
+    private void scheduleExpireNotifications(long deadline) {
+        if (nextExpireTime != -1 && nextExpireTime <= deadline) {
+            // Already checking before this deadline, it will be rescheduled then
+            return;
+        }
+
+        nextExpireTime = deadline;
+
+        mEventLoop.remove(mExpireNotificationsRunnable);
+        mEventLoop.postAtTime(mExpireNotificationsRunnable, deadline);
     }
 
-    private Handler mCheckConnectingHandler = new Handler();
     private Runnable mCheckConnectingRunnable = new Runnable() {
         @Override
         public void run() {
             if (state == BLEManagerState.Connecting) {
                 Log.w(TAG_LOG, "Connecting is taking too long");
 
-                if (bluetoothGatt != null && bluetoothGatt.getDevice() != null) {
-                    BluetoothDevice device = bluetoothGatt.getDevice();
-                    int bondState = device.getBondState();
+                int bondState = mTransport.getBondState();
 
+                if (bondState != -1) {
                     // Don't do anything while bonding
                     if (bondState == BluetoothDevice.BOND_BONDING) {
                         Log.w(TAG_LOG, "Waiting for bond...");
-                        mCheckConnectingHandler.removeCallbacks(mCheckConnectingRunnable);
                         startCheckConnectingHandler();
                         return;
                     }
@@ -304,34 +525,156 @@ public class BLEManager {
 
                     if (bondState == BluetoothDevice.BOND_NONE || connectionFailedCount > 1) {
                         connectionFailedCount = 0;
-                        unpairDevice(device);
-                        device.createBond();
+                        mTransport.removeBond();
+                        mTransport.createBond();
 
                         // Check if bond is successful
                         startCheckConnectingHandler();
                     }
                     else {
-                        bluetoothGatt.disconnect();
+                        mTransport.disconnect();
                     }
                 }
                 else {
-                    close();
-                    reconnect = true;
-                    startScanner();
+                    closeConnection();
+                    startReconnect();
                 }
             }
-
-            mCheckConnectingHandler.removeCallbacks(mCheckConnectingRunnable);
         }
     };
 
     private void startCheckConnectingHandler() {
-        Thread thread = new Thread() {
-            public void run() {
-                mCheckConnectingHandler.postDelayed(mCheckConnectingRunnable, 4000);
+        mEventLoop.remove(mCheckConnectingRunnable);
+        mEventLoop.postDelayed(mCheckConnectingRunnable, 4000);
+    }
+
+    /**
+     * Connects again to the last bonded device, straight to its address with a jittered exponential
+     * backoff between attempts. Scans only if there's no such device or the attempts ran out.
+     */
+    private void startReconnect() {
+        if (lastDeviceAddress != null && reconnectAttempt < MAX_DIRECT_RECONNECTS) {
+            mEventLoop.postDelayed(mDirectReconnectRunnable, jitter(RECONNECT_BACKOFF << reconnectAttempt));
+        }
+        else {
+            // Scan results are only taken while disconnected
+            setState(BLEManagerState.Disconnected);
+            startScanner();
+        }
+    }
+
+    private Runnable mDirectReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (state != BLEManagerState.Disconnected && state != BLEManagerState.Reconnecting) {
+                return;
             }
-        };
-        thread.start();
+
+            Log.d(TAG_LOG, "Reconnecting to " + lastDeviceAddress + ", attempt " + (reconnectAttempt + 1));
+
+            setState(BLEManagerState.Reconnecting);
+
+            connectionGeneration++;
+            deviceAddress = lastDeviceAddress;
+            connectionOpen = mTransport.connect(lastDeviceAddress, true);
+
+            long timeout = RECONNECT_ATTEMPT_TIMEOUT << reconnectAttempt;
+            reconnectAttempt++;
+
+            if (connectionOpen) {
+                mEventLoop.postDelayed(mReconnectTimeoutRunnable, timeout);
+            }
+            else {
+                onReconnectFailed();
+            }
+        }
+    };
+
+    private Runnable mReconnectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (state == BLEManagerState.Reconnecting) {
+                Log.w(TAG_LOG, "Reconnecting is taking too long");
+                onReconnectFailed();
+            }
+        }
+    };
+
+    private void onReconnectFailed() {
+        mEventLoop.remove(mReconnectTimeoutRunnable);
+
+        // Drop this attempt's connection, its late events are ignored
+        connectionGeneration++;
+        connectionOpen = false;
+        deviceAddress = null;
+        mTransport.close();
+
+        startReconnect();
+    }
+
+    private long jitter(long delay) {
+        // Between 0.75 and 1.25 times the delay, so watches don't retry in lockstep
+        return delay * 3 / 4 + (long) (random.nextDouble() * delay / 2);
+    }
+
+    private String loadLastDevice() {
+        if (lastDeviceFile == null || !lastDeviceFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new FileInputStream(lastDeviceFile));
+            return in.readUTF();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void saveLastDevice(String address) {
+        lastDeviceAddress = address;
+
+        if (lastDeviceFile == null) {
+            return;
+        }
+
+        if (address == null) {
+            lastDeviceFile.delete();
+            return;
+        }
+
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new FileOutputStream(lastDeviceFile));
+            out.writeUTF(address);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
 
@@ -340,17 +683,18 @@ public class BLEManager {
             Command trackCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE, new byte[] {
                     ServicesConstants.EntityIDTrack,
                     ServicesConstants.TrackAttributeIDTitle,
-                    ServicesConstants.TrackAttributeIDArtist
-            });
+                    ServicesConstants.TrackAttributeIDArtist,
+                    ServicesConstants.TrackAttributeIDDuration
+            }, Command.Priority.Media);
 
-            pendingCommands.add(trackCommand);
+            commandScheduler.add(trackCommand, mEventLoop.now());
 
             Command playerCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE, new byte[] {
                     ServicesConstants.EntityIDPlayer,
                     ServicesConstants.PlayerAttributeIDPlaybackInfo
-            });
+            }, Command.Priority.Media);
 
-            pendingCommands.add(playerCommand);
+            commandScheduler.add(playerCommand, mEventLoop.now());
 
             sendNextCommand();
         }
@@ -359,426 +703,835 @@ public class BLEManager {
         }
     }
 
-    private List<ScanFilter> scanFilters() {
-        ScanFilter filter = new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(SERVICE_BLANK)).build();
-        List<ScanFilter> list = new ArrayList<>(1);
-        list.add(filter);
-
-        return list;
-    }
 
-
-    private final ScanCallback mScanCallback = new ScanCallback() {
+    // Transport events may arrive on any thread, everything is handled on the event loop.
+    private final GattTransport.Listener mTransportListener = new GattTransport.Listener() {
 
         @Override
-        public void onScanResult(int callbackType, android.bluetooth.le.ScanResult result) {
-            Log.i(TAG_LOG, "Scan Result: " + result.toString());
+        public void onDeviceFound(final String address, final String name) {
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleDeviceFound(address, name);
+                }
+            });
+        }
 
-            BluetoothDevice device = result.getDevice();
+        @Override
+        public void onConnectionStateChange(final boolean connected, final int status) {
+            final int generation = connectionGeneration;
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == connectionGeneration) {
+                        handleConnectionStateChange(connected, status);
+                    }
+                }
+            });
+        }
 
-            if (state == BLEManagerState.Disconnected) {
-                if (device != null) {
-                    if ((!reconnect || skipCount > 5) && device.getName() != null) {
-                        stopScanner();
+        @Override
+        public void onServicesDiscovered(final int status) {
+            final int generation = connectionGeneration;
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == connectionGeneration) {
+                        handleServicesDiscovered(status);
+                    }
+                }
+            });
+        }
 
-                        Log.d(TAG_LOG, "Connecting...: " + device.getName());
+        @Override
+        public void onMtuChanged(final int mtu, final int status) {
+            final int generation = connectionGeneration;
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == connectionGeneration) {
+                        handleMtuChanged(mtu, status);
+                    }
+                }
+            });
+        }
 
-                        skipCount = 0;
-                        setState(BLEManagerState.Connecting);
-                        bluetoothGatt = device.connectGatt(mContext, false, bluetoothGattCallback);
+        @Override
+        public void onDescriptorWrite(final String characteristic, final int status) {
+            final int generation = connectionGeneration;
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == connectionGeneration) {
+                        handleDescriptorWrite(characteristic, status);
+                    }
+                }
+            });
+        }
 
-                        mCheckConnectingHandler.removeCallbacks(mCheckConnectingRunnable);
-                        startCheckConnectingHandler();
+        @Override
+        public void onCharacteristicWrite(final String characteristic, byte[] value, final int status) {
+            final int generation = connectionGeneration;
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == connectionGeneration) {
+                        handleCharacteristicWrite(characteristic, status);
                     }
-                    else {
-                        Log.d(TAG_LOG, "skip:: ");
-                        skipCount++;
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(final String characteristic, final byte[] value, final int status) {
+            final int generation = connectionGeneration;
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == connectionGeneration) {
+                        handleCharacteristicRead(characteristic, value, status);
                     }
                 }
-            }
+            });
         }
 
         @Override
-        public void onBatchScanResults(List<ScanResult> results) {
-            Log.i(TAG_LOG, "Batch Scan Results: " + results.toString());
+        public void onCharacteristicChanged(final String characteristic, final byte[] value) {
+            final int generation = connectionGeneration;
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == connectionGeneration) {
+                        handleCharacteristicChanged(characteristic, value);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onScanFailed(int errorCode) {
-            super.onScanFailed(errorCode);
-            Log.d(TAG_LOG, "Scan Failed: " + errorCode);
+        public void onReadRemoteRssi(final int rssi, final int status) {
+            final int generation = connectionGeneration;
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == connectionGeneration) {
+                        handleReadRemoteRssi(rssi, status);
+                    }
+                }
+            });
         }
 
     };
 
-    private final BluetoothGattCallback bluetoothGattCallback = new BluetoothGattCallback() {
+    private void handleDeviceFound(String address, String name) {
+        if (!mScanScheduler.isActive()) {
+            // Result delivered after the scan was stopped
+            return;
+        }
 
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            Log.d(TAG_LOG, "onConnectionStateChange: " + status + " -> " + newState);
+        if (state == BLEManagerState.Disconnected) {
+            if (name != null) {
+                stopScanner();
 
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.e(TAG_LOG, "Connected");
+                Log.d(TAG_LOG, "Connecting...: " + name);
 
-                gatt.discoverServices();
+                setState(BLEManagerState.Connecting);
 
-                if (moto360Fix) {
-                    startMoto360FixHandler();
-                }
-            }
-            else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.e(TAG_LOG, "Disconnected");
+                connectionGeneration++;
+                deviceAddress = address;
+                connectionOpen = mTransport.connect(address, false);
 
-                setState(BLEManagerState.Disconnected);
+                startCheckConnectingHandler();
+            }
+        }
+    }
 
-                close();
+    private void handleConnectionStateChange(boolean connected, int status) {
+        Log.d(TAG_LOG, "onConnectionStateChange: " + status + " -> " + connected);
 
+        if (connected) {
+            Log.e(TAG_LOG, "Connected");
 
-                reconnect = true;
+            if (state == BLEManagerState.Reconnecting) {
+                mEventLoop.remove(mReconnectTimeoutRunnable);
 
-                startScanner();
+                setState(BLEManagerState.Connecting);
+                startCheckConnectingHandler();
             }
+
+            setupStartTime = mEventLoop.now();
+            mTransport.discoverServices();
         }
+        else if (state == BLEManagerState.Reconnecting) {
+            Log.e(TAG_LOG, "Reconnect failed");
 
-        @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG_LOG, String.format("BluetoothGatt ReadRssi[%d]", rssi));
-            }
+            onReconnectFailed();
         }
+        else {
+            Log.e(TAG_LOG, "Disconnected");
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            Log.d(TAG_LOG, "onServicesDiscovered: " + status);
+            if (state == BLEManagerState.Connected) {
+                mKeepAliveScheduler.onLinkLost(status);
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                mCheckConnectingHandler.removeCallbacks(mCheckConnectingRunnable);
-                subscribeCharacteristic(gatt.getService(ServicesConstants.UUID_ANCS), ServicesConstants.CHARACTERISTIC_DATA_SOURCE);
-                startCheckConnectingHandler();
+                // A new link loss, start over with direct attempts
+                linkLostTime = mEventLoop.now();
+                reconnectAttempt = 0;
             }
-        }
 
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG_LOG, "Descriptor write successful: " + descriptor.getCharacteristic().getUuid().toString());
+            setState(BLEManagerState.Disconnected);
 
-                mCheckConnectingHandler.removeCallbacks(mCheckConnectingRunnable);
+            closeConnection();
 
-                characteristicsSubscribed.add(descriptor.getCharacteristic().getUuid().toString());
-                switch (descriptor.getCharacteristic().getUuid().toString()) {
-                    case ServicesConstants.CHARACTERISTIC_DATA_SOURCE:
-                        subscribeCharacteristic(gatt.getService(ServicesConstants.UUID_ANCS), ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE);
-                        startCheckConnectingHandler();
-                        break;
-                    case ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE:
-                        subscribeCharacteristic(gatt.getService(ServicesConstants.UUID_AMS), ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND);
-                        startCheckConnectingHandler();
-                        break;
-                    case ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND:
-                        subscribeCharacteristic(gatt.getService(ServicesConstants.UUID_AMS), ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE);
-                        startCheckConnectingHandler();
-                        break;
-                    case ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE:
-                        subscribeCharacteristic(gatt.getService(ServicesConstants.UUID_BAS), ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL);
-                        startCheckConnectingHandler();
-                        break;
-                    case ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL:
-                        requestMediaUpdates();
+            startReconnect();
+        }
+    }
 
-                        setState(BLEManagerState.Connected);
+    private void handleServicesDiscovered(int status) {
+        Log.d(TAG_LOG, "onServicesDiscovered: " + status);
 
-                        connectionFailedCount = 0;
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mEventLoop.remove(mCheckConnectingRunnable);
 
-                        break;
-                }
-            }
-            else if (status == BluetoothGatt.GATT_WRITE_NOT_PERMITTED) {
-                Log.d(TAG_LOG, "status: write not permitted");
+            // Larger packets mean fewer Data Source fragments per notification, the subscriptions
+            // follow whether it's accepted or not
+            mOperationQueue.add(GattOperation.requestMtu(REQUESTED_MTU, MTU_TIMEOUT, null));
 
-                unpairDevice(gatt.getDevice());
-                gatt.disconnect();
-            }
+            // Back to back, the Notification Source after the Data Source its requests are answered on
+            subscribeCharacteristic(ServicesConstants.UUID_ANCS, ServicesConstants.CHARACTERISTIC_DATA_SOURCE);
+            subscribeCharacteristic(ServicesConstants.UUID_ANCS, ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE);
+            subscribeCharacteristic(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND);
+            subscribeCharacteristic(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE);
+            subscribeCharacteristic(ServicesConstants.UUID_BAS, ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL);
         }
+    }
+
+    private void handleMtuChanged(int mtu, int status) {
+        Log.d(TAG_LOG, "onMtuChanged: " + mtu + " status: " + status);
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+        }
+
+        mOperationQueue.onMtuChanged(status);
+    }
+
+    private void handleDescriptorWrite(String characteristic, int status) {
+        mOperationQueue.onDescriptorWrite(characteristic, status);
+    }
 
+    private final GattOperation.Callback mSubscribeCallback = new GattOperation.Callback() {
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-
-            try {
-                Command lastCommand = null;
-                if (pendingCommands.size() > 0) {
-                    lastCommand = pendingCommands.get(0);
-                    pendingCommands.remove(0);
-                }
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            handleSubscribed(operation.getCharacteristic(), status);
+        }
+    };
 
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    Log.d(TAG_LOG, "Characteristic write successful: " + characteristic.getUuid().toString());
+    private void handleSubscribed(String characteristic, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Log.d(TAG_LOG, "Descriptor write successful: " + characteristic);
 
-                    // If battery is still unknown try to get its value
+            characteristicsSubscribed.add(characteristic);
+            switch (characteristic) {
+                case ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE:
+                    // The iOS device announces its notifications again, the ones it doesn't are gone
+                    notificationStore.markAllUnseen();
+                    mEventLoop.postDelayed(mReconcileRunnable, RECONCILE_DELAY);
+                    break;
+                case ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL:
                     if (mCallback.shouldUpdateBatteryLevel()) {
-                        try {
-                            gatt.readCharacteristic(gatt.getService(ServicesConstants.UUID_BAS).getCharacteristic(UUID.fromString(ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL)));
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                        mOperationQueue.add(GattOperation.read(ServicesConstants.UUID_BAS, ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL,
+                                OPERATION_TIMEOUT, OPERATION_RETRIES, mBatteryCallback));
                     }
 
-                    if (moto360Fix && characteristic.getUuid().toString().equals(ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE)) {
-                        try {
-                            gatt.readCharacteristic(gatt.getService(ServicesConstants.UUID_AMS).getCharacteristic(UUID.fromString(ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE)));
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                    requestMediaUpdates();
+
+                    setState(BLEManagerState.Connected);
+                    mConnectionPriorityController.start();
+                    mKeepAliveScheduler.start();
+
+                    if (setupStartTime != -1) {
+                        setupHistogram.record(mEventLoop.now() - setupStartTime);
+                        setupStartTime = -1;
                     }
 
+                    connectionFailedCount = 0;
+                    reconnectAttempt = 0;
 
-                    sendNextCommand();
-                }
-                else {
-                    Log.w(TAG_LOG, "Characteristic write error: " + status + " :: " + characteristic.getUuid().toString());
+                    if (linkLostTime != -1) {
+                        reconnectHistogram.record(mEventLoop.now() - linkLostTime);
+                        linkLostTime = -1;
+                    }
 
-                    if (lastCommand != null && lastCommand.shouldRetryAgain()) {
-                        pendingCommands.add(lastCommand);
+                    // Reconnected to directly next time, unless it isn't bonded
+                    int bondState = mTransport.getBondState();
+                    if (deviceAddress != null && !deviceAddress.equals(lastDeviceAddress) && bondState == BluetoothDevice.BOND_BONDED) {
+                        saveLastDevice(deviceAddress);
                     }
 
-                    startNextCommandHandler();
-                }
+                    break;
             }
-            catch (Exception e) {
-                e.printStackTrace();
+        }
+        else if (status == BluetoothGatt.GATT_WRITE_NOT_PERMITTED) {
+            Log.d(TAG_LOG, "status: write not permitted");
+
+            // Not bonded anymore, find it by scanning after pairing again
+            saveLastDevice(null);
+
+            mOperationQueue.clear();
+            mTransport.removeBond();
+            mTransport.disconnect();
+        }
+        else {
+            Log.w(TAG_LOG, "Could not subscribe to " + characteristic + ": " + status);
+
+            // The rest of the setup can't work either, check right away instead of waiting
+            mOperationQueue.clear();
+            mEventLoop.remove(mCheckConnectingRunnable);
+            mCheckConnectingRunnable.run();
+        }
+    }
+
+    private final GattOperation.Callback mBatteryCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (status == BluetoothGatt.GATT_SUCCESS && value != null && value.length > 0) {
+                int batteryLevel = value[0] & 0xff;
+                Log.d(TAG_LOG, "BAS    CHARACTERISTIC_BATTERY_LEVEL:: " + batteryLevel);
+                mCallback.onBatteryLevelChanged(batteryLevel);
             }
         }
+    };
 
+    private final GattOperation.Callback mTrackAttributeCallback = new GattOperation.Callback() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
-            Log.d(TAG_LOG, "onCharacteristicRead status:: " + status);
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (status == BluetoothGatt.GATT_SUCCESS && inFlightCommand != null) {
+                handleTrackAttributeRead(inFlightCommand.getPacket()[1], value);
+            }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                /*
-                String newAttribute = characteristic.getStringValue(0);
-                Log.d(TAG_LOG, "onCharacteristicRead value:: " + newAttribute);
-                boolean containsOldTitle = newAttribute.indexOf(mediaTitle) == 0;
-                boolean containsOldArtist = newAttribute.indexOf(mediaArtist) == 0;
+            onCommandFinished(status == BluetoothGatt.GATT_SUCCESS);
+        }
+    };
 
-                if (containsOldTitle && !containsOldArtist) {
-                    mediaTitle = characteristic.getStringValue(0);
+    private void handleCharacteristicWrite(String characteristic, int status) {
+        if (!connectionOpen) {
+            return;
+        }
 
-                    updateMetadata();
-                }
-                else if (!containsOldTitle && containsOldArtist) {
-                    mediaArtist = characteristic.getStringValue(0);
+        mKeepAliveScheduler.onTraffic();
+        mOperationQueue.onCharacteristicWrite(characteristic, status);
+    }
 
-                    updateMetadata();
-                }
-                */
-                if (characteristic.getUuid().toString().equals(ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL)) {
-                    int batteryLevel = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                    Log.d(TAG_LOG, "BAS    CHARACTERISTIC_BATTERY_LEVEL:: " + batteryLevel);
-                    mCallback.onBatteryLevelChanged(batteryLevel);
-                }
-                else if (characteristic.getUuid().toString().equals(ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE)) {
-                    String mediaTitle = characteristic.getStringValue(0);
-                    Log.d(TAG_LOG, "AMS    Title:: " + mediaTitle);
+    private void handleCommandWritten(String characteristic) {
+        Log.d(TAG_LOG, "Characteristic write successful: " + characteristic);
+
+        if (inFlightCommand != null && characteristic.equals(ServicesConstants.CHARACTERISTIC_CONTROL_POINT)) {
+            byte[] commandPacket = inFlightCommand.getPacket();
+
+            if (commandPacket[0] == ServicesConstants.CommandIDGetNotificationAttributes) {
+                int UID = NotificationData.packUID(commandPacket, 1);
+                long eventTime = pendingNotifications.getEventTime(UID);
+
+                if (eventTime != -1) {
+                    long now = mEventLoop.now();
+
+                    pendingNotifications.setRequestTime(UID, now);
+                    stageLatency.record(StageLatency.Stage.Request, eventTime, now);
                 }
             }
         }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            // Get notification packet from iOS
-            byte[] packet = characteristic.getValue();
+        if (inFlightCommand != null && characteristic.equals(ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE)) {
+            // The fetch finishes when the full value has been read back, before anything else runs
+            mOperationQueue.addFirst(GattOperation.read(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE,
+                    OPERATION_TIMEOUT, OPERATION_RETRIES, mTrackAttributeCallback));
+            return;
+        }
 
-            switch (characteristic.getUuid().toString().toLowerCase()) {
-                case ServicesConstants.CHARACTERISTIC_CURRENT_TIME:
-                    Log.d(TAG_LOG, "CTS    CHARACTERISTIC_CURRENT_TIME:: " + characteristic.getStringValue(0));
+        onCommandFinished(true);
+    }
 
-                    break;
-                case ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL:
-                    int batteryLevel = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+    private void handleCharacteristicRead(String characteristic, byte[] value, int status) {
+        Log.d(TAG_LOG, "onCharacteristicRead status:: " + status);
+
+        mOperationQueue.onCharacteristicRead(characteristic, value, status);
+    }
+
+    private void handleReadRemoteRssi(int rssi, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Log.d(TAG_LOG, String.format("BluetoothGatt ReadRssi[%d]", rssi));
+        }
+
+        mOperationQueue.onReadRemoteRssi(status);
+    }
+
+    /**
+     * Returns the Entity Update with the full value of a truncated track attribute if it's known,
+     * otherwise queues a read of the full value and returns the update as it is.
+     */
+    private byte[] completeTrackAttribute(byte[] packet) {
+        byte attributeId = packet[1];
+        byte[] truncated = Arrays.copyOfRange(packet, 3, packet.length);
+
+        String value = trackAttributeCache.get(trackAttributeKey(attributeId, truncated));
+
+        if (value != null) {
+            return trackAttributeUpdate(attributeId, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // A fetch already queued reads whatever the attribute is by then
+        boolean queued = truncatedTrackAttributes.containsKey(attributeId);
+        truncatedTrackAttributes.put(attributeId, truncated);
+
+        if (!queued) {
+            // Below the media commands, play/pause never waits for it
+            Command fetchCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE, new byte[] {
+                    ServicesConstants.EntityIDTrack,
+                    attributeId
+            }, Command.Priority.Background);
+
+            commandScheduler.add(fetchCommand, mEventLoop.now());
+            sendNextCommand();
+        }
+
+        return packet;
+    }
+
+    private void handleTrackAttributeRead(byte attributeId, byte[] value) {
+        byte[] truncated = truncatedTrackAttributes.remove(attributeId);
+
+        if (truncated == null || value == null || !startsWith(value, truncated)) {
+            Log.d(TAG_LOG, "AMS    Track changed before attribute " + attributeId + " was read");
+            return;
+        }
+
+        String attribute = new String(value, StandardCharsets.UTF_8);
+        Log.d(TAG_LOG, "AMS    Full attribute " + attributeId + ":: " + attribute);
+
+        trackAttributeCache.put(trackAttributeKey(attributeId, truncated), attribute);
+        mCallback.onMediaDataUpdated(trackAttributeUpdate(attributeId, value), attribute);
+    }
+
+    private static String trackAttributeKey(byte attributeId, byte[] truncated) {
+        return attributeId + ":" + new String(truncated, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] trackAttributeUpdate(byte attributeId, byte[] value) {
+        byte[] packet = new byte[3 + value.length];
+        packet[0] = ServicesConstants.EntityIDTrack;
+        packet[1] = attributeId;
+        System.arraycopy(value, 0, packet, 3, value.length);
+
+        return packet;
+    }
+
+    private static boolean startsWith(byte[] value, byte[] prefix) {
+        if (value.length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (value[i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void handleCharacteristicChanged(String characteristic, byte[] packet) {
+        if (packet == null) {
+            return;
+        }
+
+        mKeepAliveScheduler.onTraffic();
+
+        switch (characteristic) {
+            case ServicesConstants.CHARACTERISTIC_CURRENT_TIME:
+                Log.d(TAG_LOG, "CTS    CHARACTERISTIC_CURRENT_TIME:: " + new String(packet, StandardCharsets.UTF_8));
+
+                break;
+            case ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL:
+                if (packet.length > 0) {
+                    int batteryLevel = packet[0] & 0xff;
                     Log.d(TAG_LOG, "BAS    CHARACTERISTIC_BATTERY_LEVEL:: " + batteryLevel);
                     mCallback.onBatteryLevelChanged(batteryLevel);
+                }
 
-                    break;
-                case ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE:
-                case ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE:
-                    Log.d(TAG_LOG, "AMS    CHARACTERISTIC_ENTITY_UPDATE::");
-                    mCallback.onMediaDataUpdated(packet, characteristic.getStringValue(3));
-                    break;
-                case ServicesConstants.CHARACTERISTIC_DATA_SOURCE:
-                    if (mPacketProcessor == null && packet.length >= 5) {
-                        byte[] notificationUID = new byte[] { packet[1], packet[2], packet[3], packet[4] };
-                        int notificationIndex = -1;
+                break;
+            case ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE:
+            case ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE:
+                Log.d(TAG_LOG, "AMS    CHARACTERISTIC_ENTITY_UPDATE::");
+                if (packet.length >= 4 && packet[0] == ServicesConstants.EntityIDPlayer && packet[1] == ServicesConstants.PlayerAttributeIDPlaybackInfo) {
+                    // PlaybackState is the first field of the PlaybackInfo, anything but paused keeps media active
+                    mConnectionPriorityController.setMediaActive(packet[3] != '0');
+                }
+                else if (packet.length >= 3 && packet[0] == ServicesConstants.EntityIDTrack && (packet[2] & ServicesConstants.EntityUpdateFlagTruncated) != 0) {
+                    packet = completeTrackAttribute(packet);
+                }
+                if (packet.length >= 3) {
+                    mCallback.onMediaDataUpdated(packet, new String(packet, 3, packet.length - 3, StandardCharsets.UTF_8));
+                }
+                break;
+            case ServicesConstants.CHARACTERISTIC_DATA_SOURCE:
+                long now = mEventLoop.now();
 
-                        for (int i = 0; i < pendingNotifications.size(); i++) {
-                            NotificationData notificationData = pendingNotifications.get(i);
+                mConnectionPriorityController.onDataSourcePacket();
 
-                            if (notificationData.compareUID(notificationUID)) {
-                                notificationIndex = i;
-                                break;
-                            }
-                        }
+                if ((mPacketProcessor.isProcessing() || mAppAttributesProcessor.isProcessing()) && processingDeadline <= now) {
+                    // The previous response never finished, this packet starts a new one
+                    Log.d(TAG_LOG, "Notification data stopped arriving");
+                    mPacketProcessor.reset();
+                    mAppAttributesProcessor.reset();
+                }
+
+                if (!mPacketProcessor.isProcessing() && !mAppAttributesProcessor.isProcessing()) {
+                    if (packet.length > 0 && packet[0] == ServicesConstants.CommandIDGetAppAttributes) {
+                        mAppAttributesProcessor.start();
+                    }
+                    else if (packet.length >= 5) {
+                        NotificationData notificationData = pendingNotifications.remove(packet, 1);
+
+                        if (notificationData != null) {
+                            notificationData.setFirstFragmentTime(now);
+                            stageLatency.record(StageLatency.Stage.FirstFragment, notificationData.getRequestTime(), now);
 
-                        if (notificationIndex != -1) {
-                            mPacketProcessor = new PacketProcessor(pendingNotifications.get(notificationIndex));
-                            pendingNotifications.remove(notificationIndex);
+                            mPacketProcessor.start(notificationData);
                         }
                     }
+                }
+
+                if (mAppAttributesProcessor.isProcessing()) {
+                    processingDeadline = now + PROCESSING_TIMEOUT;
 
-                    if (mPacketProcessor != null) {
-                        // Only remove callback if we are getting useful data
-                        mClearOldNotificationsHandler.removeCallbacks(mClearOldNotificationsRunnable);
+                    mAppAttributesProcessor.process(packet);
 
-                        mPacketProcessor.process(packet);
+                    if (mAppAttributesProcessor.hasFinishedProcessing()) {
+                        appNameCache.put(mAppAttributesProcessor.getAppId(), mAppAttributesProcessor.getDisplayName());
+                        mAppAttributesProcessor.reset();
+                    }
+                    else {
+                        scheduleExpireNotifications(processingDeadline);
+                    }
+                }
+                else if (mPacketProcessor.isProcessing()) {
+                    processingDeadline = now + PROCESSING_TIMEOUT;
 
-                        if (mPacketProcessor.hasFinishedProcessing()) {
-                            NotificationData notificationData = mPacketProcessor.getNotificationData();
+                    mPacketProcessor.process(packet);
 
-                            if (notificationData != null) {
-                                NotificationDataManager.updateData(notificationData);
+                    if (mPacketProcessor.hasFinishedProcessing()) {
+                        NotificationData notificationData = mPacketProcessor.getNotificationData();
 
-                                if (notificationData.isIncomingCall()) {
-                                    mCallback.onIncomingCall(notificationData);
-                                }
-                                else {
-                                    mCallback.onNotificationReceived(notificationData);
-                                }
+                        fragmentHistogram.record(mPacketProcessor.getFragmentCount());
+
+                        if (notificationData != null) {
+                            notificationData.setReassembledTime(now);
+                            stageLatency.record(StageLatency.Stage.Reassembly, notificationData.getFirstFragmentTime(), now);
+
+                            // Calls don't outlive the connection, they aren't stored
+                            boolean changed = notificationData.isIncomingCall() || notificationStore.put(notificationData);
+
+                            if (notificationData.getPackedUID() == sentinelUID) {
+                                onStoreChecked(!changed);
                             }
 
-                            mPacketProcessor = null;
+                            setAppName(notificationData);
+                            NotificationDataManager.updateData(notificationData);
+                            activeNotifications.put(notificationData.getPackedUID(), notificationData);
+
+                            if (notificationData.isIncomingCall()) {
+                                mConnectionPriorityController.setCallActive(true);
+                                mCallback.onIncomingCall(notificationData);
+                            }
+                            else if (changed) {
+                                mCallback.onNotificationReceived(notificationData);
+                            }
                         }
+
+                        mPacketProcessor.reset();
                     }
+                    else {
+                        // Drop this response in case the rest never arrives
+                        scheduleExpireNotifications(processingDeadline);
+                    }
+                }
+
+                break;
+            case ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE:
+                try {
+                    NotificationSourceEvent event = mNotificationSourceEvent;
 
-                    if (pendingNotifications.size() > 0 || mPacketProcessor == null) {
-                        // Clear notifications in case data never arrives
-                        startClearOldNotificationsHandler();
+                    if (!event.wrap(packet)) {
+                        break;
                     }
 
-                    break;
-                case ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE:
-                    try {
-                        switch (packet[0]) {
-                            case ServicesConstants.EventIDNotificationAdded:
-                            case ServicesConstants.EventIDNotificationModified:
-                                // Request attributes for the new notification
-                                byte[] getAttributesPacket = new byte[] {
-                                        ServicesConstants.CommandIDGetNotificationAttributes,
-
-                                        // UID
-                                        packet[4], packet[5], packet[6], packet[7],
-
-                                        // App Identifier - NotificationAttributeIDAppIdentifier
-                                        ServicesConstants.NotificationAttributeIDAppIdentifier,
-
-                                        // Title - NotificationAttributeIDTitle
-                                        // Followed by a 2-bytes max length parameter
-                                        ServicesConstants.NotificationAttributeIDTitle,
-                                        (byte) 0xff,
-                                        (byte) 0xff,
-
-                                        // Message - NotificationAttributeIDMessage
-                                        // Followed by a 2-bytes max length parameter
-                                        ServicesConstants.NotificationAttributeIDMessage,
-                                        (byte) 0xff,
-                                        (byte) 0xff,
-                                };
-
-
-                                NotificationData notificationData = new NotificationData(packet);
-                                pendingNotifications.add(notificationData);
-
-
-                                if (notificationData.hasPositiveAction()) {
-                                    getAttributesPacket = PacketProcessor.concat(getAttributesPacket, new byte[] {
-                                            // Positive Action Label - NotificationAttributeIDPositiveActionLabel
-                                            ServicesConstants.NotificationAttributeIDPositiveActionLabel
-                                    });
-                                }
-                                if (notificationData.hasNegativeAction()) {
-                                    getAttributesPacket = PacketProcessor.concat(getAttributesPacket, new byte[] {
-                                            // Negative Action Label - NotificationAttributeIDNegativeActionLabel
-                                            ServicesConstants.NotificationAttributeIDNegativeActionLabel
-                                    });
+                    switch (event.getEventId()) {
+                        case ServicesConstants.EventIDNotificationAdded:
+                        case ServicesConstants.EventIDNotificationModified:
+                            long eventTime = mEventLoop.now();
+                            int addedUID = event.getUID();
+                            notificationStore.markSeen(addedUID);
+
+                            if (event.getEventId() == ServicesConstants.EventIDNotificationAdded && event.isPreExisting()) {
+                                // Known from a previous connection, its card is shown right away
+                                NotificationData restored = restoreNotification(event, eventTime);
+
+                                if (restored != null && !needsAttributes(restored)) {
+                                    break;
                                 }
+                            }
 
-                                Command getAttributesCommand = new Command(ServicesConstants.UUID_ANCS, ServicesConstants.CHARACTERISTIC_CONTROL_POINT, getAttributesPacket);
+                            requestAttributes(addedUID, event.getEventFlags(), event.getCategoryId(), eventTime);
 
-                                pendingCommands.add(getAttributesCommand);
-                                sendNextCommand();
+                            break;
+                        case ServicesConstants.EventIDNotificationRemoved:
+                            int UID = event.getUID();
 
+                            // No need to wait for its attributes anymore
+                            pendingNotifications.discard(UID);
+                            NotificationData removedNotification = activeNotifications.remove(UID);
+                            notificationStore.remove(UID);
 
-                                // Clear notifications in case data never arrives
-                                startClearOldNotificationsHandler();
+                            if (UID == sentinelUID) {
+                                // Can't tell anymore, check the others against their attributes
+                                onStoreChecked(false);
+                            }
 
-                                break;
-                            case ServicesConstants.EventIDNotificationRemoved:
-                                if (packet[2] == 1) {
-                                    // Call ended
-                                    mCallback.onCallEnded();
-                                }
-                                else {
-                                    // Cancel notification in watch
-                                    String notificationId = new String(Arrays.copyOfRange(packet, 4, 8));
-                                    mCallback.onNotificationCanceled(notificationId);
-                                }
+                            if (event.isIncomingCall()) {
+                                // Call ended
+                                mConnectionPriorityController.setCallActive(false);
+                                mCallback.onCallEnded();
+                            }
+                            else {
+                                // Cancel notification in watch
+                                String notificationId = removedNotification != null ? removedNotification.getUIDString() : Integer.toString(UID);
+                                mCallback.onNotificationCanceled(notificationId);
+                            }
 
-                                break;
-                        }
-                    }
-                    catch(Exception e) {
-                        Log.d(TAG_LOG, "error");
-                        e.printStackTrace();
+                            break;
                     }
+                }
+                catch(Exception e) {
+                    Log.d(TAG_LOG, "error");
+                    e.printStackTrace();
+                }
 
-                    break;
-            }
+                break;
         }
+    }
 
-    };
 
-    private void subscribeCharacteristic(BluetoothGattService service, String uuidString) {
-        if (service == null || uuidString == null || characteristicsSubscribed.contains(uuidString)) {
-            return;
+    /**
+     * Shows a notification known from a previous connection with its stored attributes, returns
+     * null if it isn't known or the store is outdated.
+     */
+    private NotificationData restoreNotification(NotificationSourceEvent event, long eventTime) {
+        if (storeCheck == StoreCheck.Outdated) {
+            return null;
         }
 
-        try {
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(UUID.fromString(uuidString));
+        NotificationStore.Entry entry = notificationStore.get(event.getUID());
 
-            if (characteristic != null) {
-                bluetoothGatt.setCharacteristicNotification(characteristic, true);
+        if (entry == null || !entry.matches(event.getEventFlags(), event.getCategoryId()) || event.isIncomingCall()) {
+            return null;
+        }
+
+        NotificationData notificationData = new NotificationData(event.getUID(), event.getEventFlags(), event.getCategoryId());
+        notificationData.setEventTime(eventTime);
+        entry.restore(notificationData);
 
-                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(DESCRIPTOR_CONFIG));
+        setAppName(notificationData);
+        NotificationDataManager.updateData(notificationData);
+        activeNotifications.put(notificationData.getPackedUID(), notificationData);
 
-                if (descriptor != null) {
-                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    bluetoothGatt.writeDescriptor(descriptor);
+        // Its card is still shown unless the app was restarted
+        if (!entry.posted) {
+            entry.posted = true;
+            mCallback.onNotificationReceived(notificationData);
+        }
+
+        return notificationData;
+    }
+
+    /**
+     * Returns true if the attributes of a restored notification have to be fetched. UIDs start over
+     * when the iOS device restarts, so the first one restored is fetched to check the store still
+     * matches, the others wait for the answer.
+     */
+    private boolean needsAttributes(NotificationData restored) {
+        switch (storeCheck) {
+            case Unchecked:
+                storeCheck = StoreCheck.Checking;
+                sentinelUID = restored.getPackedUID();
+                sentinelDeadline = restored.getEventTime() + PENDING_NOTIFICATION_TIMEOUT;
+                return true;
+            case Checking:
+                uncheckedNotifications.add(restored);
+                return false;
+            case Valid:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void onStoreChecked(boolean valid) {
+        storeCheck = valid ? StoreCheck.Valid : StoreCheck.Outdated;
+        sentinelUID = -1;
+
+        if (!valid) {
+            Log.d(TAG_LOG, "Stored notifications are outdated, fetching " + uncheckedNotifications.size() + " again");
+
+            for (NotificationData notificationData : uncheckedNotifications) {
+                // Unless removed meanwhile
+                if (activeNotifications.get(notificationData.getPackedUID()) == notificationData) {
+                    requestAttributes(notificationData.getPackedUID(), notificationData.getEventFlags(), notificationData.getCategoryId(), notificationData.getEventTime());
                 }
             }
         }
-        catch (Exception e) {
-            e.printStackTrace();
+
+        uncheckedNotifications.clear();
+    }
+
+    private void requestAttributes(int UID, byte eventFlags, byte categoryId, long eventTime) {
+        // Forget the notification in case data never arrives
+        long deadline = eventTime + PENDING_NOTIFICATION_TIMEOUT;
+        pendingNotifications.put(UID, eventFlags, categoryId, eventTime, deadline);
+        scheduleExpireNotifications(deadline);
+
+        // Caller details are needed right away, anything else can wait
+        Command.Priority priority = categoryId == ServicesConstants.CategoryIDIncomingCall ? Command.Priority.Call : Command.Priority.Background;
+        Command getAttributesCommand = new Command(ServicesConstants.UUID_ANCS, ServicesConstants.CHARACTERISTIC_CONTROL_POINT,
+                buildGetAttributesPacket(UID, eventFlags), priority);
+
+        // Already on the event loop, no need to post it
+        commandScheduler.add(getAttributesCommand, eventTime);
+        sendNextCommand();
+    }
+
+    /**
+     * Sets the display name of the notification's app if it's known, otherwise asks the iOS device
+     * for it so the following notifications of the app have it.
+     */
+    private void setAppName(NotificationData notificationData) {
+        String appId = notificationData.getAppId();
+
+        if (appId == null || appId.length() == 0) {
+            return;
+        }
+
+        if (appNameCache.contains(appId)) {
+            notificationData.setAppName(appNameCache.get(appId));
+        }
+        else if (appNameRequests.add(appId)) {
+            Command getAppAttributesCommand = new Command(ServicesConstants.UUID_ANCS, ServicesConstants.CHARACTERISTIC_CONTROL_POINT, buildGetAppAttributesPacket(appId));
+
+            commandScheduler.add(getAppAttributesCommand, mEventLoop.now());
+            sendNextCommand();
         }
     }
 
+    private Runnable mReconcileRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (int UID : notificationStore.removeUnseen()) {
+                Log.d(TAG_LOG, "Notification removed while disconnected: " + UID);
 
-    private void pairDevice(BluetoothDevice device) {
-        Log.d(TAG_LOG, "Pairing...");
-        try {
-            Method m = device.getClass().getMethod("createBond", (Class[]) null);
-            m.invoke(device, (Object[]) null);
-        } catch (Exception e) {
-            e.printStackTrace();
+                mCallback.onNotificationCanceled(Integer.toString(UID));
+            }
         }
+    };
+
+    /**
+     * Builds the Get Notification Attributes command for a notification with the given event flags,
+     * asking for the action labels only if the notification has those actions. The packet is a copy of one of
+     * the templates with the UID filled in.
+     */
+    static byte[] buildGetAttributesPacket(int UID, byte eventFlags) {
+        int template = ((eventFlags & ServicesConstants.EventFlagPositiveAction) != 0 ? 1 : 0)
+                | ((eventFlags & ServicesConstants.EventFlagNegativeAction) != 0 ? 2 : 0);
+        byte[] getAttributesPacket = GET_ATTRIBUTES_TEMPLATES[template].clone();
+
+        getAttributesPacket[1] = (byte) UID;
+        getAttributesPacket[2] = (byte) (UID >> 8);
+        getAttributesPacket[3] = (byte) (UID >> 16);
+        getAttributesPacket[4] = (byte) (UID >> 24);
+
+        return getAttributesPacket;
     }
-    private void unpairDevice(BluetoothDevice device) {
-        Log.d(TAG_LOG, "Unpairing...");
-        try {
-            Method m = device.getClass().getMethod("removeBond", (Class[]) null);
-            m.invoke(device, (Object[]) null);
-        } catch (Exception e) {
-            e.printStackTrace();
+
+    private static byte[] buildGetAttributesTemplate(boolean positiveAction, boolean negativeAction) {
+        byte[] template = new byte[] {
+                ServicesConstants.CommandIDGetNotificationAttributes,
+
+                // UID, filled in for each notification
+                0, 0, 0, 0,
+
+                // App Identifier - NotificationAttributeIDAppIdentifier
+                ServicesConstants.NotificationAttributeIDAppIdentifier,
+
+                // Title - NotificationAttributeIDTitle
+                // Followed by a 2-bytes max length parameter
+                ServicesConstants.NotificationAttributeIDTitle,
+                (byte) 0xff,
+                (byte) 0xff,
+
+                // Message - NotificationAttributeIDMessage
+                // Followed by a 2-bytes max length parameter
+                ServicesConstants.NotificationAttributeIDMessage,
+                (byte) 0xff,
+                (byte) 0xff,
+        };
+
+        if (positiveAction) {
+            template = PacketProcessor.concat(template, new byte[] {
+                    // Positive Action Label - NotificationAttributeIDPositiveActionLabel
+                    ServicesConstants.NotificationAttributeIDPositiveActionLabel
+            });
         }
+        if (negativeAction) {
+            template = PacketProcessor.concat(template, new byte[] {
+                    // Negative Action Label - NotificationAttributeIDNegativeActionLabel
+                    ServicesConstants.NotificationAttributeIDNegativeActionLabel
+            });
+        }
+
+        return template;
+    }
+
+    /**
+     * Builds the Get App Attributes command asking for the display name of an app.
+     */
+    static byte[] buildGetAppAttributesPacket(String appId) {
+        byte[] appIdBytes = appId.getBytes(StandardCharsets.UTF_8);
+        byte[] getAppAttributesPacket = new byte[appIdBytes.length + 3];
+
+        getAppAttributesPacket[0] = ServicesConstants.CommandIDGetAppAttributes;
+
+        // NULL terminated App Identifier
+        System.arraycopy(appIdBytes, 0, getAppAttributesPacket, 1, appIdBytes.length);
+        getAppAttributesPacket[appIdBytes.length + 1] = 0;
+
+        // Display Name - AppAttributeIDDisplayName
+        getAppAttributesPacket[appIdBytes.length + 2] = ServicesConstants.AppAttributeIDDisplayName;
+
+        return getAppAttributesPacket;
+    }
+
+    private void subscribeCharacteristic(UUID serviceUUID, String uuidString) {
+        if (uuidString == null || characteristicsSubscribed.contains(uuidString)) {
+            return;
+        }
+
+        mOperationQueue.add(GattOperation.subscribe(serviceUUID, uuidString, OPERATION_TIMEOUT, OPERATION_RETRIES, mSubscribeCallback));
     }
 
 }
@@ -14,11 +14,15 @@ import android.os.*;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 
 /**
  * Created by codegy on 15/03/15.
  */
-public class BLEService extends Service implements BLEManager.BLEManagerCallback {
+public class BLEService extends Service implements BLEManager.BLEManagerCallback, NotificationCoalescer.Sink, MediaCoalescer.Sink {
 
     public static final int NOTIFICATION_SERVICE = 500;
     public static final int NOTIFICATION_REGULAR = 1000;
@@ -28,30 +32,54 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
     private static final long SCREEN_TIME_OUT = 1000;
 
+    // Cards arriving closer than this are posted together
+    private static final long NOTIFICATION_MERGE_WINDOW = 300;
+    // Longest a card waits for the rest of its batch
+    private static final long NOTIFICATION_MAX_DELAY = 1500;
+    // A burst of notifications alerts once, the next alert needs this long without new ones
+    private static final long ALERT_BURST_GAP = 10000;
+    // A track change arrives as several Entity Updates a few connection intervals apart, the ones
+    // arriving within this delay are published together
+    private static final long MEDIA_PUBLISH_DELAY = 100;
+
     private static final long CONNECTION_PATTERN[] = { 80, 60 };
     private static final long DISCONNECTION_PATTERN[] = { 80, 90 };
     private static final long VIBRATION_PATTERN[] = { 200, 100, 200, 100 };
     private static final long SILENT_VIBRATION_PATTERN[] = { 200, 110 };
     
     private static final String TAG_LOG = "BLEService";
+    // Limit for the GATT traffic recording, the current file and the rotated one together
+    private static final long GATT_RECORDING_MAX_BYTES = 1024 * 1024;
     public static final String INTENT_EXTRA_UID = "INTENT_EXTRA_UID";
+    public static final String INTENT_EXTRA_CALL = "INTENT_EXTRA_CALL";
+
 
 
+    // Running instance, for the debug view
+    private static volatile BLEService sInstance;
 
     private BLEManager mManager;
+    private GattRecorder gattRecorder;
+    // Writes the recorded traffic off the main thread
+    private EventLoop gattRecorderLoop;
 
     private NotificationManager notificationManager;
     private int notificationNumber = 0;
+    private BackgroundCache backgroundCache;
+    private NotificationCoalescer notificationCoalescer;
+    // Post and EndToEnd stages, the others are recorded by BLEManager
+    private final StageLatency stageLatency = new StageLatency();
 
     private Vibrator vibrator;
     private PowerManager powerManager;
     private PowerManager.WakeLock wakeLock;
 
     private MediaSession mSession;
-    private boolean mediaPlaying;
+    private MediaCoalescer mediaCoalescer;
+    private final PlaybackState.Builder playbackStateBuilder = new PlaybackState.Builder();
+    private final MediaMetadata.Builder metadataBuilder = new MediaMetadata.Builder();
+    private PendingIntent mediaDeleteIntent;
     private boolean mediaHidden = true;
-    private String mediaTitle;
-    private String mediaArtist;
 
     private int batteryLevel;
     private boolean batteryUpdates;
@@ -82,6 +110,8 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
         batteryUpdates = sp.getBoolean(Constants.SPK_BATTERY_UPDATES, true);
         colorBackgrounds = sp.getBoolean(Constants.SPK_COLOR_BACKGROUNDS, false);
 
+        NotificationDataManager.setAppRegistry(AppRegistry.load(this));
+
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Constants.IA_POSITIVE);
@@ -90,17 +120,30 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
         intentFilter.addAction(Constants.IA_HIDE_MEDIA);
         intentFilter.addAction(Constants.IA_BATTERY_UPDATES_CHANGED);
         intentFilter.addAction(Constants.IA_COLOR_BACKGROUNDS_CHANGED);
+        intentFilter.addAction(Constants.IA_RECORD_TRAFFIC_CHANGED);
         registerReceiver(mBroadcastReceiver, intentFilter);
 
 
         notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        backgroundCache = new BackgroundCache(getResources());
+        notificationCoalescer = new NotificationCoalescer(new HandlerEventLoop(Looper.getMainLooper()), this,
+                NOTIFICATION_MERGE_WINDOW, NOTIFICATION_MAX_DELAY, ALERT_BURST_GAP);
+        mediaCoalescer = new MediaCoalescer(new HandlerEventLoop(Looper.getMainLooper()), this, MEDIA_PUBLISH_DELAY);
 
         // Show help card
         onConnectionStateChange(BLEManager.BLEManagerState.Disconnected);
 
         prepareMediaSession();
 
-        mManager = new BLEManager(this, this);
+        gattRecorderLoop = new HandlerEventLoop("GattRecorder");
+        gattRecorder = new GattRecorder(new File(getFilesDir(), "gatt_traffic"), GATT_RECORDING_MAX_BYTES, gattRecorderLoop);
+        gattRecorder.setEnabled(sp.getBoolean(Constants.SPK_RECORD_TRAFFIC, false));
+
+        // Known to drop idle links, others learn their window from the first idle loss
+        boolean idleTimeout = sp.getBoolean(Constants.SPK_MOTO_360_FIX, "Moto 360".equals(Build.MODEL));
+
+        mManager = new BLEManager(this, this, gattRecorder, idleTimeout ? KeepAliveScheduler.MOTO_360_IDLE_WINDOW : 0);
+        sInstance = this;
 
 
         return super.onStartCommand(intent, flags, startId);
@@ -110,6 +153,8 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
     public void onDestroy() {
         Log.d(TAG_LOG, "~~~~~~~~ service onDestroy");
 
+        sInstance = null;
+
         try {
             unregisterReceiver(mBroadcastReceiver);
 
@@ -119,11 +164,21 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
             }
 
             reset();
+            // Also on the main thread, nothing can be posted after the cards are canceled
+            notificationCoalescer.close();
+            notificationManager.cancelAll();
+
+            Log.d(TAG_LOG, getReport(this));
 
             if (mManager != null) {
                 mManager.close();
                 mManager = null;
             }
+
+            if (gattRecorder != null) {
+                gattRecorder.close();
+                gattRecorderLoop.quit();
+            }
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -132,14 +187,71 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
         super.onDestroy();
     }
 
+    /**
+     * Returns the latency of each notification stage and the link metrics of the running service,
+     * or null if it isn't running.
+     */
+    public static String getDebugReport() {
+        BLEService service = sInstance;
+
+        return service != null ? getReport(service) : null;
+    }
+
+    private static String getReport(BLEService service) {
+        StringWriter report = new StringWriter();
+        service.dump(new PrintWriter(report));
+
+        return report.toString();
+    }
+
+    private void dump(PrintWriter writer) {
+        BLEManager manager = mManager;
+
+        if (manager != null) {
+            manager.getStageLatency().dump(writer);
+        }
+        stageLatency.dump(writer);
+
+        if (manager != null) {
+            for (Command.Priority priority : Command.Priority.values()) {
+                writer.println(priority + " queue wait: " + manager.getCommandScheduler().getWaitHistogram(priority));
+            }
+
+            writer.println("MTU: " + manager.getMtu());
+            writer.println("Fragments per notification: " + manager.getFragmentHistogram());
+            writer.println("Reconnect time: " + manager.getReconnectHistogram());
+            writer.println("Setup time: " + manager.getSetupHistogram());
+            writer.println("GATT operations: " + manager.getOperationQueue());
+            writer.println("Scanning: " + manager.getScanScheduler());
+            writer.println("Connection priority: " + manager.getConnectionPriorityController());
+            writer.println("Keep-alive: " + manager.getKeepAliveScheduler());
+        }
+
+        writer.println("Notification coalescer: " + notificationCoalescer);
+        writer.println("Media coalescer: " + mediaCoalescer);
+        writer.println("Background cache: " + backgroundCache);
+
+        GattRecorder recorder = gattRecorder;
+        if (recorder != null && recorder.isEnabled()) {
+            writer.println("GATT records: " + recorder.getRecordCount());
+        }
+        writer.flush();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // adb shell dumpsys activity service com.codegy.ioswearconnect/.BLEService
+        dump(writer);
+    }
+
     private void reset() {
-        notificationManager.cancelAll();
-        notificationNumber = 0;
+        // Notification cards are kept while reconnecting, BLEManager cancels the ones removed
+        // from the iOS device in the meantime
+        notificationManager.cancel(NOTIFICATION_MEDIA);
+        notificationManager.cancel(NOTIFICATION_BATTERY);
 
-        mediaPlaying = false;
         mediaHidden = true;
-        mediaArtist = null;
-        mediaTitle = null;
+        mediaCoalescer.clear();
 
         batteryLevel = -1;
     }
@@ -177,8 +289,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
     @Override
     public void onConnectionStateChange(BLEManager.BLEManagerState state) {
-        Bitmap background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-        background.eraseColor(0);
+        Bitmap background = backgroundCache.getColor(0);
 
         Notification.WearableExtender wearableExtender = new Notification.WearableExtender()
                 .setBackground(background);
@@ -237,18 +348,17 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
     @Override
     public void onNotificationReceived(NotificationData notificationData) {
+        notificationCoalescer.submit(notificationData);
+    }
+
+    @Override
+    public void postNotification(NotificationData notificationData) {
         Bitmap background;
         if (notificationData.getBackground() != -1) {
-            background = BitmapFactory.decodeResource(getResources(), notificationData.getBackground());
+            background = backgroundCache.getResource(notificationData.getBackground());
         }
         else {
-            background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-            if (colorBackgrounds) {
-                background.eraseColor(notificationData.getBackgroundColor());
-            }
-            else {
-                background.eraseColor(0);
-            }
+            background = backgroundCache.getColor(colorBackgrounds ? notificationData.getBackgroundColor() : 0);
         }
 
 
@@ -257,11 +367,17 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
         deleteIntent.putExtra(INTENT_EXTRA_UID, notificationData.getUID());
         PendingIntent deleteAction = PendingIntent.getBroadcast(this, notificationNumber, deleteIntent, 0);
 
+        // Notifications without a title show the name of their app
+        String title = notificationData.getTitle();
+        if ((title == null || title.length() == 0) && notificationData.getAppName() != null) {
+            title = notificationData.getAppName();
+        }
+
         Notification.WearableExtender wearableExtender = new Notification.WearableExtender()
                 .setBackground(background);
 
         Notification.Builder notificationBuilder = new Notification.Builder(this)
-                .setContentTitle(notificationData.getTitle())
+                .setContentTitle(title)
                 .setContentText(notificationData.getMessage())
                 .setSmallIcon(notificationData.getAppIcon())
                 .setGroup(notificationData.getAppId())
@@ -290,23 +406,32 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
         Notification notification = notificationBuilder.build();
         notificationManager.notify(notificationData.getUIDString(), NOTIFICATION_REGULAR, notification);
 
+        long now = SystemClock.uptimeMillis();
+        stageLatency.record(StageLatency.Stage.Post, notificationData.getReassembledTime(), now);
+        stageLatency.record(StageLatency.Stage.EndToEnd, notificationData.getEventTime(), now);
 
-        notificationNumber++;
 
+        notificationNumber++;
+    }
 
-        if (!notificationData.isPreExisting()) {
-            if (!notificationData.isSilent()) {
-                getVibrator().vibrate(VIBRATION_PATTERN, -1);
-                wakeScreen();
-            }
-            else {
-                getVibrator().vibrate(SILENT_VIBRATION_PATTERN, -1);
-            }
+    @Override
+    public void alert(boolean silent) {
+        if (!silent) {
+            getVibrator().vibrate(VIBRATION_PATTERN, -1);
+            wakeScreen();
+        }
+        else {
+            getVibrator().vibrate(SILENT_VIBRATION_PATTERN, -1);
         }
     }
 
     @Override
     public void onNotificationCanceled(String notificationId) {
+        notificationCoalescer.cancel(notificationId);
+    }
+
+    @Override
+    public void cancelNotification(String notificationId) {
         notificationManager.cancel(notificationId, NOTIFICATION_REGULAR);
     }
 
@@ -324,87 +449,33 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
     @Override
     public void onMediaDataUpdated(byte[] packet, String attribute) {
-        try {
-            if (packet != null) {
-                Log.d(TAG_LOG, "AMS ATTRIBUTE: " + attribute);
-
-                switch (packet[0]) {
-                    case 0:
-                        switch (packet[1]) {
-                            case 1:
-                                if (attribute.length() > 0) {
-                                    mediaPlaying = !attribute.substring(0, 1).equals("0");
-
-                                    if (attribute.equals("0,,")) {
-                                        mediaHidden = true;
-                                        notificationManager.cancel(NOTIFICATION_MEDIA);
-                                    }
-                                }
-
-                                break;
-                        }
-
-                        long position = PlaybackState.PLAYBACK_POSITION_UNKNOWN;
-                        PlaybackState.Builder stateBuilder = new PlaybackState.Builder()
-                                .setActions(getAvailableActions());
-                        stateBuilder.setState(mediaPlaying ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED, position, 1.0f);
-                        mSession.setPlaybackState(stateBuilder.build());
-
-                        if (mediaPlaying || !mediaHidden) {
-                            buildMediaNotification();
-                        }
-                        break;
-                    case 2:
-                        boolean truncated = (packet[2] & 1) != 0;
-
-                        switch (packet[1]) {
-                            case 0:
-                                mediaArtist = attribute;
-
-                                if (truncated) {
-                                    mediaArtist += "...";
-                                    /*
-                                    Command attributeCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE, new byte[] {
-                                            ServicesConstants.EntityIDTrack,
-                                            ServicesConstants.TrackAttributeIDArtist
-                                    });
-
-                                    mManager.addCommandToQueue(attributeCommand);
-                                    */
-                                }
-                                else if (attribute.length() == 0) {
-                                    mediaArtist = null;
-                                }
-
-                                break;
-                            case 2:
-                                mediaTitle = attribute;
-
-                                if (truncated) {
-                                    mediaTitle += "...";
-/*
-                                    Command attributeCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE, new byte[] {
-                                            ServicesConstants.EntityIDTrack,
-                                            ServicesConstants.TrackAttributeIDTitle
-                                    });
-
-                                    mManager.addCommandToQueue(attributeCommand);
-                                    */
-                                }
-                                else if (attribute.length() == 0) {
-                                    mediaTitle = null;
-                                }
-
-                                break;
-                        }
-
-                        updateMetadata();
-                        break;
-                }
+        Log.d(TAG_LOG, "AMS ATTRIBUTE: " + attribute);
+
+        mediaCoalescer.submit(packet);
+    }
+
+    @Override
+    public void publishMedia(MediaState state, int changes) {
+        if (mSession == null) {
+            return;
+        }
+
+        if ((changes & MediaState.CHANGED_PLAYBACK) != 0) {
+            if (!state.isPlayerPresent()) {
+                // Nothing is playing anymore
+                mediaHidden = true;
+                notificationManager.cancel(NOTIFICATION_MEDIA);
             }
+
+            updatePlaybackState(state);
         }
-        catch (Exception e) {
-            e.printStackTrace();
+
+        if ((changes & MediaState.CHANGED_METADATA) != 0) {
+            updateMetadata(state);
+        }
+
+        if (state.isPlaying() || !mediaHidden) {
+            buildMediaNotification();
         }
     }
 
@@ -418,7 +489,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
             if (action.equals(Constants.IA_POSITIVE) | action.equals(Constants.IA_NEGATIVE) | action.equals(Constants.IA_DELETE)) {
                 try {
                     byte[] UID = intent.getByteArrayExtra(INTENT_EXTRA_UID);
-                    String notificationId = new String(UID);
+                    String notificationId = Integer.toString(NotificationData.packUID(UID, 0));
 
                     // Dismiss notification
                     notificationManager.cancel(notificationId, NOTIFICATION_REGULAR);
@@ -439,7 +510,19 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
                             actionId
                     };
 
-                    Command performActionCommand = new Command(ServicesConstants.UUID_ANCS, ServicesConstants.CHARACTERISTIC_CONTROL_POINT, performActionPacket);
+                    // Answering a call goes first, dismissing a card can wait
+                    Command.Priority priority;
+                    if (intent.getBooleanExtra(INTENT_EXTRA_CALL, false)) {
+                        priority = Command.Priority.Call;
+                    }
+                    else if (action.equals(Constants.IA_DELETE)) {
+                        priority = Command.Priority.Background;
+                    }
+                    else {
+                        priority = Command.Priority.UserAction;
+                    }
+
+                    Command performActionCommand = new Command(ServicesConstants.UUID_ANCS, ServicesConstants.CHARACTERISTIC_CONTROL_POINT, performActionPacket, priority);
 
                     mManager.addCommandToQueue(performActionCommand);
                 } 
@@ -451,7 +534,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
             else if (action.equals(Constants.IA_HIDE_MEDIA)) {
                 mediaHidden = true;
 
-                if (mediaPlaying) {
+                if (mediaCoalescer.getState().isPlaying()) {
                     buildMediaNotification();
                 }
             }
@@ -474,6 +557,10 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
                     buildMediaNotification();
                 }
             }
+            else if (action.equals(Constants.IA_RECORD_TRAFFIC_CHANGED)) {
+                SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(BLEService.this);
+                gattRecorder.setEnabled(sp.getBoolean(Constants.SPK_RECORD_TRAFFIC, false));
+            }
         }
         
     };
@@ -483,8 +570,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
             return;
         }
 
-        Bitmap background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-        background.eraseColor(0);
+        Bitmap background = backgroundCache.getColor(0);
 
         int batteryIcon;
 
@@ -522,12 +608,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
     private void buildMediaNotification() {
         mediaHidden = false;
 
-        Bitmap background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-        background.eraseColor(Color.rgb(230, 16, 71));
-
-        // Build pending intent for when the user swipes the card away
-        Intent deleteIntent = new Intent(Constants.IA_HIDE_MEDIA);
-        PendingIntent deleteAction = PendingIntent.getBroadcast(this, 0, deleteIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        Bitmap background = backgroundCache.getColor(Color.rgb(230, 16, 71));
 
         Notification.MediaStyle style = new Notification.MediaStyle()
                 .setMediaSession(mSession.getSessionToken());
@@ -538,7 +619,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
         Notification.Builder builder = new Notification.Builder(this)
                 .setSmallIcon(R.drawable.ic_music)
-                 .setDeleteIntent(deleteAction)
+                .setDeleteIntent(mediaDeleteIntent)
                 .setStyle(style)
                 .extend(wearableExtender)
                 .setPriority(Notification.PRIORITY_LOW);
@@ -548,6 +629,10 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
     }
 
     private void prepareMediaSession() {
+        // Pending intent for when the user swipes the card away
+        Intent deleteIntent = new Intent(Constants.IA_HIDE_MEDIA);
+        mediaDeleteIntent = PendingIntent.getBroadcast(this, 0, deleteIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
         mSession = new MediaSession(this, "iOS_Wear_session");
         mSession.setActive(true);
         mSession.setFlags(MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS | MediaSession.FLAG_HANDLES_MEDIA_BUTTONS);
@@ -562,12 +647,12 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
                     if (direction == 1) {
                         volumeCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[] {
                                 ServicesConstants.RemoteCommandIDVolumeUp
-                        });
+                        }, Command.Priority.Media);
                     }
                     else {
                         volumeCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[] {
                                 ServicesConstants.RemoteCommandIDVolumeDown
-                        });
+                        }, Command.Priority.Media);
                     }
 
                     mManager.addCommandToQueue(volumeCommand);
@@ -586,7 +671,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
                 Command remoteCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[] {
                         ServicesConstants.RemoteCommandIDTogglePlayPause
-                });
+                }, Command.Priority.Media);
 
                 mManager.addCommandToQueue(remoteCommand);
             }
@@ -598,7 +683,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
                 Command remoteCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[] {
                         ServicesConstants.RemoteCommandIDTogglePlayPause
-                });
+                }, Command.Priority.Media);
 
                 mManager.addCommandToQueue(remoteCommand);
             }
@@ -610,7 +695,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
                 Command remoteCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[] {
                         ServicesConstants.RemoteCommandIDNextTrack
-                });
+                }, Command.Priority.Media);
 
                 mManager.addCommandToQueue(remoteCommand);
             }
@@ -622,7 +707,7 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
 
                 Command remoteCommand = new Command(ServicesConstants.UUID_AMS, ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[] {
                         ServicesConstants.RemoteCommandIDPreviousTrack
-                });
+                }, Command.Priority.Media);
 
                 mManager.addCommandToQueue(remoteCommand);
             }
@@ -635,16 +720,11 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
         });
 
 
-        long position = PlaybackState.PLAYBACK_POSITION_UNKNOWN;
-        PlaybackState.Builder stateBuilder = new PlaybackState.Builder()
-                .setActions(getAvailableActions());
-        stateBuilder.setState(mediaPlaying ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED, position, 1.0f);
-        mSession.setPlaybackState(stateBuilder.build());
-
+        playbackStateBuilder.setActions(getAvailableActions());
 
-        MediaMetadata.Builder metadataBuilder = new MediaMetadata.Builder();
-        metadataBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, "No info");
-        mSession.setMetadata(metadataBuilder.build());
+        MediaState state = new MediaState();
+        updatePlaybackState(state);
+        updateMetadata(state);
     }
 
     private long getAvailableActions() {
@@ -664,23 +744,53 @@ public class BLEService extends Service implements BLEManager.BLEManagerCallback
         return actions;
     }
 
-    private void updateMetadata() {
-        MediaMetadata.Builder metadataBuilder = new MediaMetadata.Builder();
+    private void updatePlaybackState(MediaState state) {
+        int playbackState;
+
+        switch (state.getPlaybackState()) {
+            case MediaState.PLAYBACK_STATE_PLAYING:
+                playbackState = PlaybackState.STATE_PLAYING;
+                break;
+            case MediaState.PLAYBACK_STATE_REWINDING:
+                playbackState = PlaybackState.STATE_REWINDING;
+                break;
+            case MediaState.PLAYBACK_STATE_FAST_FORWARDING:
+                playbackState = PlaybackState.STATE_FAST_FORWARDING;
+                break;
+            default:
+                playbackState = PlaybackState.STATE_PAUSED;
+                break;
+        }
+
+        if (state.isPlayerPresent()) {
+            // The session extrapolates the position from the rate, the update time is in elapsed realtime
+            long updateTime = SystemClock.elapsedRealtime() - (SystemClock.uptimeMillis() - state.getUpdateTime());
+            playbackStateBuilder.setState(playbackState, state.getElapsedTime(), state.getPlaybackRate(), updateTime);
+        }
+        else {
+            playbackStateBuilder.setState(playbackState, PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1.0f);
+        }
+
+        mSession.setPlaybackState(playbackStateBuilder.build());
+    }
+
+    private void updateMetadata(MediaState state) {
+        String title = state.getTitle();
+        String artist = state.getArtist();
 
-        if (mediaTitle == null && mediaArtist == null) {
+        if (title == null && artist == null) {
+            metadataBuilder.putString(MediaMetadata.METADATA_KEY_TITLE, null);
             metadataBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, "No info");
         }
         else {
             // And at minimum the title and artist for legacy support
-            metadataBuilder.putString(MediaMetadata.METADATA_KEY_TITLE, mediaTitle);
-            metadataBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, mediaArtist);
+            metadataBuilder.putString(MediaMetadata.METADATA_KEY_TITLE, title);
+            metadataBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, artist);
         }
 
-        // Add any other fields you have for your data as well
-        mSession.setMetadata(metadataBuilder.build());
+        // -1 if unknown, always set since the builder is reused between tracks
+        metadataBuilder.putLong(MediaMetadata.METADATA_KEY_DURATION, state.getDuration());
 
-        if (mediaPlaying || !mediaHidden) {
-            buildMediaNotification();
-        }
+        mSession.setMetadata(metadataBuilder.build());
     }
 }
\ No newline at end of file
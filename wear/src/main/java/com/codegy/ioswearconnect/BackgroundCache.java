@@ -0,0 +1,190 @@
+package com.codegy.ioswearconnect;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Card backgrounds shared between notifications, so a burst of notifications doesn't decode or
+ * allocate a bitmap for each card.
+ *
+ * Resource backgrounds are decoded close to the screen size and kept in an LRU bounded by bytes,
+ * solid color backgrounds are 1x1 bitmaps kept per color. Cached bitmaps must not be modified.
+ */
+public class BackgroundCache {
+
+    /**
+     * LRU map bounded by the total size of its values, like android.util.LruCache but plain Java so
+     * the eviction can be tested on the JVM. A value larger than the whole cache isn't kept.
+     */
+    static class Lru<V> {
+
+        private final LinkedHashMap<Integer, V> map = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxSize;
+        private int size;
+
+        private int hitCount;
+        private int missCount;
+        private int evictionCount;
+
+
+        Lru(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        protected int sizeOf(V value) {
+            return 1;
+        }
+
+        public synchronized V get(int key) {
+            V value = map.get(key);
+
+            if (value != null) {
+                hitCount++;
+            }
+            else {
+                missCount++;
+            }
+
+            return value;
+        }
+
+        public synchronized void put(int key, V value) {
+            V previous = map.put(key, value);
+
+            size += sizeOf(value);
+            if (previous != null) {
+                size -= sizeOf(previous);
+            }
+
+            // Least recently used first
+            Iterator<Map.Entry<Integer, V>> iterator = map.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                size -= sizeOf(iterator.next().getValue());
+                iterator.remove();
+                evictionCount++;
+            }
+        }
+
+        public synchronized void evictAll() {
+            map.clear();
+            size = 0;
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        public synchronized int hitCount() {
+            return hitCount;
+        }
+
+        public synchronized int missCount() {
+            return missCount;
+        }
+
+        public synchronized int evictionCount() {
+            return evictionCount;
+        }
+    }
+
+    private static final int MAX_RESOURCE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_COLORS = 32;
+
+
+    private final Resources mResources;
+    private final int targetWidth;
+    private final int targetHeight;
+
+    private final Lru<Bitmap> resourceCache = new Lru<Bitmap>(MAX_RESOURCE_BYTES) {
+        @Override
+        protected int sizeOf(Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private final Lru<Bitmap> colorCache = new Lru<>(MAX_COLORS);
+
+
+    public BackgroundCache(Resources resources) {
+        this.mResources = resources;
+
+        DisplayMetrics displayMetrics = resources.getDisplayMetrics();
+        targetWidth = displayMetrics.widthPixels;
+        targetHeight = displayMetrics.heightPixels;
+    }
+
+    public Bitmap getResource(int resId) {
+        Bitmap bitmap = resourceCache.get(resId);
+
+        if (bitmap == null) {
+            bitmap = decodeResource(resId);
+
+            if (bitmap != null) {
+                resourceCache.put(resId, bitmap);
+            }
+        }
+
+        return bitmap;
+    }
+
+    public Bitmap getColor(int color) {
+        Bitmap bitmap = colorCache.get(color);
+
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(color);
+
+            colorCache.put(color, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    public int getHitCount() {
+        return resourceCache.hitCount() + colorCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return resourceCache.missCount() + colorCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return resourceCache.evictionCount() + colorCache.evictionCount();
+    }
+
+    public void clear() {
+        resourceCache.evictAll();
+        colorCache.evictAll();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHitCount() + " misses=" + getMissCount() + " evictions=" + getEvictionCount()
+                + " resources=" + resourceCache.size() + "B colors=" + colorCache.size();
+    }
+
+    private Bitmap decodeResource(int resId) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(mResources, resId, options);
+
+        // Largest power of two that keeps the bitmap at least as big as the screen
+        int sampleSize = 1;
+        if (options.outWidth > 0 && options.outHeight > 0 && targetWidth > 0 && targetHeight > 0) {
+            while (options.outWidth / (sampleSize * 2) >= targetWidth && options.outHeight / (sampleSize * 2) >= targetHeight) {
+                sampleSize *= 2;
+            }
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+
+        return BitmapFactory.decodeResource(mResources, resId, options);
+    }
+
+}
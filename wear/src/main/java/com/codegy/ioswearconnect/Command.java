@@ -10,16 +10,31 @@ import java.util.UUID;
  */
 public class Command {
 
+    // Lanes of the command queue, from highest to lowest priority
+    public enum Priority {
+        Call,
+        UserAction,
+        Media,
+        Background
+    }
+
     private UUID serviceUUID;
     private String characteristic;
     private byte[] packet;
     private int retryCount = 0;
+    private Priority priority;
+    private long enqueueTime;
     //private int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
 
     public Command(UUID serviceUUID, String characteristic, byte[] packet) {
+        this(serviceUUID, characteristic, packet, Priority.Background);
+    }
+
+    public Command(UUID serviceUUID, String characteristic, byte[] packet, Priority priority) {
         this.serviceUUID = serviceUUID;
         this.characteristic = characteristic;
         this.packet = packet;
+        this.priority = priority;
     }
 
     public UUID getServiceUUID() {
@@ -38,6 +53,18 @@ public class Command {
         return retryCount;
     }
 
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public long getEnqueueTime() {
+        return enqueueTime;
+    }
+
+    public void setEnqueueTime(long enqueueTime) {
+        this.enqueueTime = enqueueTime;
+    }
+
     /*
     public int getWriteType() {
         return writeType;
@@ -0,0 +1,105 @@
+package com.codegy.ioswearconnect;
+
+import java.util.ArrayDeque;
+
+/**
+ * Queue of commands waiting to be written, with one FIFO lane per priority.
+ *
+ * The next command always comes from the highest priority lane that isn't empty, so a user action
+ * never waits behind a flood of background attribute requests. The time each command waits
+ * before its first write is recorded per lane.
+ */
+public class CommandScheduler {
+
+    private static final Command.Priority[] PRIORITIES = Command.Priority.values();
+
+    private final ArrayDeque<Command>[] lanes;
+    private final LatencyHistogram[] waitHistograms;
+    private int size;
+
+
+    @SuppressWarnings("unchecked")
+    public CommandScheduler() {
+        lanes = (ArrayDeque<Command>[]) new ArrayDeque<?>[PRIORITIES.length];
+        waitHistograms = new LatencyHistogram[PRIORITIES.length];
+
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+            waitHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public void add(Command command, long now) {
+        command.setEnqueueTime(now);
+
+        lanes[command.getPriority().ordinal()].addLast(command);
+        size++;
+    }
+
+    /**
+     * Puts back a command whose write failed, behind the commands already waiting in its lane.
+     */
+    public void retry(Command command) {
+        lanes[command.getPriority().ordinal()].addLast(command);
+        size++;
+    }
+
+    /**
+     * Returns the next command to write without removing it, or null if there are none.
+     */
+    public Command peek() {
+        for (ArrayDeque<Command> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return lane.peekFirst();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes and returns the next command to write, or null if there are none.
+     */
+    public Command poll(long now) {
+        for (int i = 0; i < lanes.length; i++) {
+            Command command = lanes[i].pollFirst();
+
+            if (command != null) {
+                size--;
+
+                if (command.getRetryCount() == 0) {
+                    waitHistograms[i].record(now - command.getEnqueueTime());
+                }
+
+                return command;
+            }
+        }
+
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int size(Command.Priority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (ArrayDeque<Command> lane : lanes) {
+            lane.clear();
+        }
+
+        size = 0;
+    }
+
+    public LatencyHistogram getWaitHistogram(Command.Priority priority) {
+        return waitHistograms[priority.ordinal()];
+    }
+
+}
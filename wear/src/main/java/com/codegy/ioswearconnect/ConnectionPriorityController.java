@@ -0,0 +1,222 @@
+package com.codegy.ioswearconnect;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+/**
+ * Picks the connection interval from the traffic on the link.
+ *
+ * The link runs at high priority while attribute requests pile up in the command queue, while a
+ * call is ringing or while media is playing, and drops to low power once nothing happened for the
+ * idle delay. Balanced is used in between. High priority is held for a little while after the
+ * traffic stops so a flood arriving in waves doesn't flip the interval on every wave.
+ *
+ * The time spent in each mode is recorded. Used on BLEManager's thread.
+ */
+public class ConnectionPriorityController {
+
+    public enum Mode {
+        LowPower(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER),
+        Balanced(BluetoothGatt.CONNECTION_PRIORITY_BALANCED),
+        High(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+
+        private final int connectionPriority;
+
+        Mode(int connectionPriority) {
+            this.connectionPriority = connectionPriority;
+        }
+
+        public int getConnectionPriority() {
+            return connectionPriority;
+        }
+    }
+
+    private static final String TAG_LOG = "ConnectionPriority";
+
+    private static final Mode[] MODES = Mode.values();
+
+    // Commands waiting in the queue that make it a flood
+    private static final int FLOOD_QUEUE_DEPTH = 3;
+    // Time high priority is kept after the link stopped being busy
+    private static final long HIGH_HOLD = 2000;
+    // Time without any traffic after which the link goes to low power
+    private static final long IDLE_DELAY = 10000;
+
+
+    private final EventLoop mEventLoop;
+    private final GattOperationQueue mOperationQueue;
+
+    private boolean started;
+    private Mode mode = Mode.Balanced;
+    private long modeSince;
+
+    private int queueDepth;
+    private boolean callActive;
+    private boolean mediaActive;
+    private long lastBusyTime;
+    private long lastTrafficTime;
+
+    private final long[] timeInMode = new long[MODES.length];
+    private int switchCount;
+
+
+    public ConnectionPriorityController(EventLoop eventLoop, GattOperationQueue operationQueue) {
+        this.mEventLoop = eventLoop;
+        this.mOperationQueue = operationQueue;
+    }
+
+    /**
+     * Starts controlling a new connection, which begins at the platform's balanced interval.
+     */
+    public void start() {
+        long now = mEventLoop.now();
+
+        started = true;
+        mode = Mode.Balanced;
+        modeSince = now;
+        lastTrafficTime = now;
+
+        update();
+    }
+
+    public void stop() {
+        if (!started) {
+            return;
+        }
+
+        mEventLoop.remove(mUpdateRunnable);
+
+        timeInMode[mode.ordinal()] += mEventLoop.now() - modeSince;
+        started = false;
+
+        queueDepth = 0;
+        callActive = false;
+        mediaActive = false;
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        if (queueDepth > 0) {
+            lastTrafficTime = mEventLoop.now();
+        }
+
+        if (queueDepth != this.queueDepth) {
+            this.queueDepth = queueDepth;
+            update();
+        }
+    }
+
+    public void onDataSourcePacket() {
+        lastTrafficTime = mEventLoop.now();
+
+        if (mode == Mode.LowPower) {
+            update();
+        }
+    }
+
+    public void setCallActive(boolean callActive) {
+        if (callActive != this.callActive) {
+            this.callActive = callActive;
+            update();
+        }
+    }
+
+    public void setMediaActive(boolean mediaActive) {
+        if (mediaActive != this.mediaActive) {
+            this.mediaActive = mediaActive;
+            update();
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the time spent in the given mode, including the current connection so far.
+     */
+    public long getTimeInMode(Mode mode) {
+        long time = timeInMode[mode.ordinal()];
+
+        if (started && mode == this.mode) {
+            time += mEventLoop.now() - modeSince;
+        }
+
+        return time;
+    }
+
+    public int getSwitchCount() {
+        return switchCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Mode mode : MODES) {
+            builder.append(mode).append('=').append(getTimeInMode(mode)).append("ms ");
+        }
+
+        return builder.append("switches=").append(switchCount).toString();
+    }
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    private void update() {
+        if (!started) {
+            return;
+        }
+
+        long now = mEventLoop.now();
+
+        boolean busy = callActive || mediaActive || queueDepth >= FLOOD_QUEUE_DEPTH;
+
+        if (busy) {
+            lastBusyTime = now;
+            lastTrafficTime = now;
+        }
+
+        Mode target;
+        long nextUpdate;
+
+        if (busy) {
+            // Updated again when whatever keeps it busy changes
+            target = Mode.High;
+            nextUpdate = -1;
+        }
+        else if (mode == Mode.High && now - lastBusyTime < HIGH_HOLD) {
+            target = Mode.High;
+            nextUpdate = lastBusyTime + HIGH_HOLD;
+        }
+        else if (now - lastTrafficTime < IDLE_DELAY) {
+            target = Mode.Balanced;
+            nextUpdate = lastTrafficTime + IDLE_DELAY;
+        }
+        else {
+            target = Mode.LowPower;
+            nextUpdate = -1;
+        }
+
+        if (target != mode) {
+            Log.d(TAG_LOG, mode + " -> " + target);
+
+            timeInMode[mode.ordinal()] += now - modeSince;
+            mode = target;
+            modeSince = now;
+            switchCount++;
+
+            mOperationQueue.add(GattOperation.requestConnectionPriority(target.getConnectionPriority()));
+        }
+
+        mEventLoop.remove(mUpdateRunnable);
+
+        if (nextUpdate != -1) {
+            mEventLoop.postAtTime(mUpdateRunnable, nextUpdate);
+        }
+    }
+
+}
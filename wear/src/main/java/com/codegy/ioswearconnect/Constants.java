@@ -9,10 +9,14 @@ public class Constants {
     public static final String SPK_COLOR_BACKGROUNDS = "SPK_COLOR_BACKGROUNDS";
     public static final String SPK_BATTERY_UPDATES = "SPK_BATTERY_UPDATES";
     public static final String SPK_MOTO_360_FIX = "SPK_MOTO_360_FIX";
+    public static final String SPK_RECORD_TRAFFIC = "SPK_RECORD_TRAFFIC";
+    // Followed by the bundle id, the value overrides the app's profile, see AppRegistry
+    public static final String SPK_APP_PROFILE_PREFIX = "SPK_APP_PROFILE_";
 
     // Intent Actions
     public static final String IA_COLOR_BACKGROUNDS_CHANGED = "com.codegy.IA_COLOR_BACKGROUNDS_CHANGED";
     public static final String IA_BATTERY_UPDATES_CHANGED = "com.codegy.IA_BATTERY_UPDATES_CHANGED";
+    public static final String IA_RECORD_TRAFFIC_CHANGED = "com.codegy.IA_RECORD_TRAFFIC_CHANGED";
     public static final String IA_POSITIVE = "com.codegy.IA_POSITIVE";
     public static final String IA_NEGATIVE = "com.codegy.IA_NEGATIVE";
     public static final String IA_DELETE = "com.codegy.IA_DELETE";
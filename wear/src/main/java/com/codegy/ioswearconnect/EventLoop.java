@@ -0,0 +1,28 @@
+package com.codegy.ioswearconnect;
+
+/**
+ * Single thread that owns BLEManager's state, with its clock.
+ */
+public interface EventLoop {
+
+    /**
+     * Current time in milliseconds, on the same base as postAtTime().
+     */
+    long now();
+
+    void post(Runnable runnable);
+
+    void postDelayed(Runnable runnable, long delay);
+
+    void postAtTime(Runnable runnable, long time);
+
+    void remove(Runnable runnable);
+
+    void removeAll();
+
+    /**
+     * Stops the loop once the runnables already due have run.
+     */
+    void quit();
+
+}
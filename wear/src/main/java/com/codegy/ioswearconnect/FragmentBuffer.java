@@ -0,0 +1,200 @@
+package com.codegy.ioswearconnect;
+
+/**
+ * Reusable ring of Data Source fragments.
+ *
+ * Fragments are kept by reference and consumed through a read cursor, nothing is copied when they
+ * are added. Attribute values are handed out as a slice (array, offset, length): a value that sits
+ * inside a single fragment points straight into it, only values spanning several fragments are
+ * joined into a reusable scratch array.
+ */
+public class FragmentBuffer {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int DEFAULT_SCRATCH_SIZE = 256;
+
+    private byte[][] fragments = new byte[DEFAULT_CAPACITY][];
+    // Index of the fragment being read and number of fragments in the ring
+    private int head;
+    private int count;
+    // Read position inside the head fragment
+    private int readOffset;
+    // Bytes not yet consumed
+    private int available;
+
+    private byte[] scratch = new byte[DEFAULT_SCRATCH_SIZE];
+
+    // Last slice handed out by readSlice()
+    private byte[] sliceArray;
+    private int sliceOffset;
+    private int sliceLength;
+
+
+    public void add(byte[] fragment) {
+        if (fragment == null || fragment.length == 0) {
+            return;
+        }
+
+        if (count == fragments.length) {
+            grow();
+        }
+
+        fragments[(head + count) & (fragments.length - 1)] = fragment;
+        count++;
+        available += fragment.length;
+    }
+
+    public int available() {
+        return available;
+    }
+
+    /**
+     * Returns the unsigned byte at the given distance from the read cursor without consuming it.
+     */
+    public int peek(int index) {
+        if (index >= available) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int fragmentIndex = head;
+        int offset = readOffset + index;
+
+        while (offset >= fragments[fragmentIndex].length) {
+            offset -= fragments[fragmentIndex].length;
+            fragmentIndex = (fragmentIndex + 1) & (fragments.length - 1);
+        }
+
+        return fragments[fragmentIndex][offset] & 0xff;
+    }
+
+    public int readByte() {
+        int value = peek(0);
+        skip(1);
+
+        return value;
+    }
+
+    /**
+     * Reads a little endian unsigned 16 bits value, as used by ANCS for attribute lengths.
+     */
+    public int readUInt16() {
+        int value = peek(0) | (peek(1) << 8);
+        skip(2);
+
+        return value;
+    }
+
+    public void skip(int length) {
+        if (length > available) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        available -= length;
+
+        while (length > 0) {
+            int left = fragments[head].length - readOffset;
+
+            if (length < left) {
+                readOffset += length;
+                length = 0;
+            }
+            else {
+                length -= left;
+                releaseHead();
+            }
+        }
+    }
+
+    /**
+     * Consumes the next length bytes and exposes them through getSliceArray(), getSliceOffset() and
+     * getSliceLength(). The slice is only valid until the buffer is read again.
+     */
+    public void readSlice(int length) {
+        if (length > available) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (length == 0) {
+            sliceArray = scratch;
+            sliceOffset = 0;
+            sliceLength = 0;
+
+            return;
+        }
+
+        byte[] fragment = fragments[head];
+
+        if (fragment.length - readOffset >= length) {
+            // The value is contained in a single fragment, no need to copy
+            sliceArray = fragment;
+            sliceOffset = readOffset;
+            sliceLength = length;
+
+            skip(length);
+
+            return;
+        }
+
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+
+        int copied = 0;
+        while (copied < length) {
+            fragment = fragments[head];
+            int chunk = Math.min(fragment.length - readOffset, length - copied);
+            System.arraycopy(fragment, readOffset, scratch, copied, chunk);
+            copied += chunk;
+
+            skip(chunk);
+        }
+
+        sliceArray = scratch;
+        sliceOffset = 0;
+        sliceLength = length;
+    }
+
+    public byte[] getSliceArray() {
+        return sliceArray;
+    }
+
+    public int getSliceOffset() {
+        return sliceOffset;
+    }
+
+    public int getSliceLength() {
+        return sliceLength;
+    }
+
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            fragments[(head + i) & (fragments.length - 1)] = null;
+        }
+
+        head = 0;
+        count = 0;
+        readOffset = 0;
+        available = 0;
+        sliceArray = null;
+    }
+
+    private void releaseHead() {
+        fragments[head] = null;
+        head = (head + 1) & (fragments.length - 1);
+        count--;
+        readOffset = 0;
+    }
+
+    private void grow() {
+        // Capacity is always a power of two so indexes can be masked
+        byte[][] newFragments = new byte[fragments.length * 2][];
+
+        for (int i = 0; i < count; i++) {
+            newFragments[i] = fragments[(head + i) & (fragments.length - 1)];
+        }
+
+        fragments = newFragments;
+        head = 0;
+    }
+
+}
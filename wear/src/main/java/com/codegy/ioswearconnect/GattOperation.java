@@ -0,0 +1,132 @@
+package com.codegy.ioswearconnect;
+
+import java.util.UUID;
+
+/**
+ * One GATT request run by GattOperationQueue, with its own timeout and completion callback.
+ *
+ * Operations that time out or can't be started are retried up to their retry count, other errors
+ * go straight to the callback.
+ */
+public class GattOperation {
+
+    public enum Type {
+        Write,
+        Read,
+        Subscribe,
+        RequestMtu,
+        RequestConnectionPriority,
+        ReadRemoteRssi
+    }
+
+    public interface Callback {
+        /**
+         * Called on BLEManager's thread with a BluetoothGatt status or one of the STATUS_ constants.
+         * The value is only set for successful reads.
+         */
+        void onComplete(GattOperation operation, int status, byte[] value);
+    }
+
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_STARTED = -2;
+
+
+    private final Type type;
+    private final UUID serviceUUID;
+    private final String characteristic;
+    private final byte[] value;
+    // MTU or connection priority asked for
+    private final int argument;
+    private final long timeout;
+    private final int maxRetries;
+    private final Callback callback;
+    private int attempts;
+
+
+    private GattOperation(Type type, UUID serviceUUID, String characteristic, byte[] value, int argument, long timeout, int maxRetries, Callback callback) {
+        this.type = type;
+        this.serviceUUID = serviceUUID;
+        this.characteristic = characteristic;
+        this.value = value;
+        this.argument = argument;
+        this.timeout = timeout;
+        this.maxRetries = maxRetries;
+        this.callback = callback;
+    }
+
+    public static GattOperation write(UUID serviceUUID, String characteristic, byte[] value, long timeout, int maxRetries, Callback callback) {
+        return new GattOperation(Type.Write, serviceUUID, characteristic, value, 0, timeout, maxRetries, callback);
+    }
+
+    public static GattOperation read(UUID serviceUUID, String characteristic, long timeout, int maxRetries, Callback callback) {
+        return new GattOperation(Type.Read, serviceUUID, characteristic, null, 0, timeout, maxRetries, callback);
+    }
+
+    /**
+     * Enables notifications and writes the configuration descriptor of the characteristic.
+     */
+    public static GattOperation subscribe(UUID serviceUUID, String characteristic, long timeout, int maxRetries, Callback callback) {
+        return new GattOperation(Type.Subscribe, serviceUUID, characteristic, null, 0, timeout, maxRetries, callback);
+    }
+
+    public static GattOperation requestMtu(int mtu, long timeout, Callback callback) {
+        return new GattOperation(Type.RequestMtu, null, null, null, mtu, timeout, 0, callback);
+    }
+
+    /**
+     * Completes as soon as it's requested, the platform doesn't report when the interval changed.
+     */
+    public static GattOperation requestConnectionPriority(int connectionPriority) {
+        return new GattOperation(Type.RequestConnectionPriority, null, null, null, connectionPriority, 0, 0, null);
+    }
+
+    public static GattOperation readRemoteRssi(long timeout, Callback callback) {
+        return new GattOperation(Type.ReadRemoteRssi, null, null, null, 0, timeout, 0, callback);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public UUID getServiceUUID() {
+        return serviceUUID;
+    }
+
+    public String getCharacteristic() {
+        return characteristic;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public int getArgument() {
+        return argument;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public Callback getCallback() {
+        return callback;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    void onStarted() {
+        attempts++;
+    }
+
+    @Override
+    public String toString() {
+        return type + (characteristic != null ? " " + characteristic : "");
+    }
+
+}
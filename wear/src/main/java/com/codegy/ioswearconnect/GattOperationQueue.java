@@ -0,0 +1,286 @@
+package com.codegy.ioswearconnect;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs GATT operations one at a time, the platform drops a request made while another one is
+ * still running.
+ *
+ * The next operation starts as soon as the result of the current one arrives. An operation whose
+ * result doesn't arrive within its timeout, or that couldn't be started, is retried after a short
+ * delay until its retries run out, then its callback gets the STATUS_ constant. Results that don't
+ * match the current operation are ignored. After a write timed out, nothing is written to that
+ * characteristic again until its late result arrives or the queue is cleared, the platform reports
+ * the value the characteristic holds then, so the result couldn't be told apart from the next one. The listener is told when the queue runs empty, so
+ * prioritized commands can be fed one at a time. Used on BLEManager's thread.
+ */
+public class GattOperationQueue {
+
+    public interface Listener {
+        void onIdle();
+    }
+
+    private static final String TAG_LOG = "GattOperationQueue";
+
+    // Time before an operation that timed out or couldn't start is tried again
+    private static final long RETRY_DELAY = 100;
+
+
+    private final EventLoop mEventLoop;
+    private final GattTransport mTransport;
+    private final Listener mListener;
+
+    private final ArrayDeque<GattOperation> operations = new ArrayDeque<>();
+    private GattOperation current;
+    private long startTime;
+    private boolean retryPending;
+    // Characteristic of a write that timed out and whose result may still arrive
+    private String staleWriteCharacteristic;
+    private boolean waitingForStaleWrite;
+
+    private final LatencyHistogram durationHistogram = new LatencyHistogram();
+    private int completedCount;
+    private int timeoutCount;
+    private int retryCount;
+    private int failedCount;
+
+
+    public GattOperationQueue(EventLoop eventLoop, GattTransport transport, Listener listener) {
+        this.mEventLoop = eventLoop;
+        this.mTransport = transport;
+        this.mListener = listener;
+    }
+
+    public void add(GattOperation operation) {
+        operations.addLast(operation);
+        startNext();
+    }
+
+    /**
+     * Runs the operation before the queued ones, for the second half of a request and response.
+     */
+    public void addFirst(GattOperation operation) {
+        operations.addFirst(operation);
+        startNext();
+    }
+
+    /**
+     * True if nothing is running or waiting to run.
+     */
+    public boolean isIdle() {
+        return current == null && !retryPending && operations.isEmpty();
+    }
+
+    public GattOperation getCurrent() {
+        return current;
+    }
+
+    /**
+     * Drops every operation without calling their callbacks, for when the connection is gone.
+     */
+    public void clear() {
+        mEventLoop.remove(mTimeoutRunnable);
+        mEventLoop.remove(mRetryRunnable);
+
+        operations.clear();
+        current = null;
+        retryPending = false;
+        staleWriteCharacteristic = null;
+        waitingForStaleWrite = false;
+    }
+
+    public void onCharacteristicWrite(String characteristic, int status) {
+        if (characteristic != null && characteristic.equals(staleWriteCharacteristic)) {
+            Log.d(TAG_LOG, "Ignored late Write result: " + characteristic);
+            staleWriteCharacteristic = null;
+
+            if (waitingForStaleWrite) {
+                waitingForStaleWrite = false;
+                mEventLoop.remove(mTimeoutRunnable);
+
+                startTime = mEventLoop.now();
+                begin(current);
+            }
+            return;
+        }
+
+        onResult(GattOperation.Type.Write, characteristic, status, null);
+    }
+
+    public void onCharacteristicRead(String characteristic, byte[] value, int status) {
+        onResult(GattOperation.Type.Read, characteristic, status, value);
+    }
+
+    public void onDescriptorWrite(String characteristic, int status) {
+        onResult(GattOperation.Type.Subscribe, characteristic, status, null);
+    }
+
+    public void onMtuChanged(int status) {
+        onResult(GattOperation.Type.RequestMtu, null, status, null);
+    }
+
+    public void onReadRemoteRssi(int status) {
+        onResult(GattOperation.Type.ReadRemoteRssi, null, status, null);
+    }
+
+    /**
+     * Time from starting an operation until its result arrived.
+     */
+    public LatencyHistogram getDurationHistogram() {
+        return durationHistogram;
+    }
+
+    public int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Operations given up after their retries ran out.
+     */
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "completed=" + completedCount + " timeouts=" + timeoutCount + " retries=" + retryCount
+                + " failed=" + failedCount + " duration " + durationHistogram;
+    }
+
+    private void onResult(GattOperation.Type type, String characteristic, int status, byte[] value) {
+        if (current == null || current.getType() != type
+                || (characteristic != null && !characteristic.equals(current.getCharacteristic()))) {
+            Log.d(TAG_LOG, "Ignored " + type + " result: " + characteristic);
+            return;
+        }
+
+        durationHistogram.record(mEventLoop.now() - startTime);
+        finish(status, value);
+    }
+
+    private void startNext() {
+        if (current != null || retryPending) {
+            return;
+        }
+
+        GattOperation operation = operations.pollFirst();
+
+        if (operation == null) {
+            mListener.onIdle();
+            return;
+        }
+
+        current = operation;
+        startTime = mEventLoop.now();
+        operation.onStarted();
+
+        if (operation.getType() == GattOperation.Type.Write && operation.getCharacteristic().equals(staleWriteCharacteristic)) {
+            // Times out as usual if the late result never arrives
+            waitingForStaleWrite = true;
+            mEventLoop.postDelayed(mTimeoutRunnable, operation.getTimeout());
+            return;
+        }
+
+        begin(operation);
+    }
+
+    private void begin(GattOperation operation) {
+        if (!execute(operation)) {
+            Log.w(TAG_LOG, "Could not start " + operation);
+            finish(GattOperation.STATUS_NOT_STARTED, null);
+        }
+        else if (operation.getType() == GattOperation.Type.RequestConnectionPriority) {
+            finish(BluetoothGatt.GATT_SUCCESS, null);
+        }
+        else {
+            mEventLoop.postDelayed(mTimeoutRunnable, operation.getTimeout());
+        }
+    }
+
+    private boolean execute(GattOperation operation) {
+        try {
+            switch (operation.getType()) {
+                case Write:
+                    return mTransport.write(operation.getServiceUUID(), operation.getCharacteristic(), operation.getValue());
+                case Read:
+                    return mTransport.read(operation.getServiceUUID(), operation.getCharacteristic());
+                case Subscribe:
+                    return mTransport.subscribe(operation.getServiceUUID(), operation.getCharacteristic());
+                case RequestMtu:
+                    return mTransport.requestMtu(operation.getArgument());
+                case RequestConnectionPriority:
+                    return mTransport.requestConnectionPriority(operation.getArgument());
+                case ReadRemoteRssi:
+                    return mTransport.readRemoteRssi();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    private void finish(int status, byte[] value) {
+        GattOperation operation = current;
+        current = null;
+        waitingForStaleWrite = false;
+        mEventLoop.remove(mTimeoutRunnable);
+
+        boolean stuck = status == GattOperation.STATUS_TIMEOUT || status == GattOperation.STATUS_NOT_STARTED;
+
+        if (stuck && operation.getAttempts() <= operation.getMaxRetries()) {
+            retryCount++;
+
+            operations.addFirst(operation);
+            retryPending = true;
+            mEventLoop.postDelayed(mRetryRunnable, RETRY_DELAY);
+            return;
+        }
+
+        if (stuck) {
+            failedCount++;
+        }
+        else {
+            completedCount++;
+        }
+
+        if (operation.getCallback() != null) {
+            operation.getCallback().onComplete(operation, status, value);
+        }
+
+        startNext();
+    }
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (current != null) {
+                Log.w(TAG_LOG, current + " timed out");
+
+                if (current.getType() == GattOperation.Type.Write && !waitingForStaleWrite) {
+                    staleWriteCharacteristic = current.getCharacteristic();
+                }
+
+                timeoutCount++;
+                finish(GattOperation.STATUS_TIMEOUT, null);
+            }
+        }
+    };
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            retryPending = false;
+            startNext();
+        }
+    };
+
+}
@@ -0,0 +1,276 @@
+package com.codegy.ioswearconnect;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Opt-in capture of the GATT traffic with the iOS device, to reproduce reports from the field.
+ *
+ * Each file starts with the MAGIC int and a version byte, followed by records:
+ *
+ *   u16 length of the rest of the record
+ *   u8  record type, TYPE_ constants
+ *   u8  characteristic, index in CHARACTERISTICS or 0 if unknown
+ *   i64 uptime in milliseconds
+ *   the value bytes
+ *
+ * Multi-byte fields are big endian. Records are gathered in a direct buffer and written through a
+ * FileChannel when it fills up, on the event loop a second after the first record it holds, and
+ * right away for connection changes, so a trace isn't missing the traffic that led to a link loss.
+ * Once the file reaches half the size limit it's renamed to file.1, replacing the previous one, and
+ * a new file is started. Methods can be called from any thread.
+ */
+public class GattRecorder {
+
+    private static final String TAG_LOG = "GattRecorder";
+
+    public static final int MAGIC = 0x47545243; // "GTRC"
+    public static final byte VERSION = 1;
+    public static final int FILE_HEADER_LENGTH = 5;
+    // Type, characteristic and time, after the length
+    public static final int RECORD_HEADER_LENGTH = 10;
+
+    public static final byte TYPE_WRITE = 1;
+    public static final byte TYPE_NOTIFICATION = 2;
+    public static final byte TYPE_READ = 3;
+    // One byte value, 1 if connected
+    public static final byte TYPE_CONNECTION = 4;
+
+    // Characteristics by their recorded index, 0 is unknown
+    private static final String[] CHARACTERISTICS = {
+            null,
+            ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE,
+            ServicesConstants.CHARACTERISTIC_DATA_SOURCE,
+            ServicesConstants.CHARACTERISTIC_CONTROL_POINT,
+            ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND,
+            ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE,
+            ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE,
+            ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL,
+            ServicesConstants.CHARACTERISTIC_CURRENT_TIME
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final long FLUSH_INTERVAL = 1000;
+
+
+    private final File file;
+    private final long maxFileSize;
+    private final EventLoop mEventLoop;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private boolean enabled;
+    private FileChannel channel;
+    private long fileSize;
+    private boolean flushScheduled;
+    private long recordCount;
+
+
+    /**
+     * The file and its rotated copy never take more than maxBytes together. Buffered records are
+     * written on the event loop.
+     */
+    public GattRecorder(File file, long maxBytes, EventLoop eventLoop) {
+        this.file = file;
+        this.maxFileSize = maxBytes / 2;
+        this.mEventLoop = eventLoop;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled == this.enabled) {
+            return;
+        }
+
+        this.enabled = enabled;
+
+        if (!enabled) {
+            closeChannel();
+        }
+
+        Log.d(TAG_LOG, "Recording " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public void recordWrite(String characteristic, byte[] value, long time) {
+        record(TYPE_WRITE, characteristic, value, time);
+    }
+
+    public void recordNotification(String characteristic, byte[] value, long time) {
+        record(TYPE_NOTIFICATION, characteristic, value, time);
+    }
+
+    public void recordRead(String characteristic, byte[] value, long time) {
+        record(TYPE_READ, characteristic, value, time);
+    }
+
+    public void recordConnection(boolean connected, long time) {
+        record(TYPE_CONNECTION, null, new byte[] { (byte) (connected ? 1 : 0) }, time);
+    }
+
+    public synchronized void record(byte type, String characteristic, byte[] value, long time) {
+        if (!enabled) {
+            return;
+        }
+
+        int valueLength = value != null ? value.length : 0;
+        int recordLength = 2 + RECORD_HEADER_LENGTH + valueLength;
+
+        try {
+            if (channel == null || fileSize + recordLength > maxFileSize) {
+                openChannel(recordLength);
+            }
+
+            if (buffer.remaining() < recordLength) {
+                flush();
+            }
+
+            buffer.putShort((short) (RECORD_HEADER_LENGTH + valueLength));
+            buffer.put(type);
+            buffer.put((byte) characteristicIndex(characteristic));
+            buffer.putLong(time);
+            if (valueLength > 0) {
+                buffer.put(value);
+            }
+
+            fileSize += recordLength;
+            recordCount++;
+
+            if (type == TYPE_CONNECTION) {
+                flush();
+            }
+            else if (!flushScheduled) {
+                flushScheduled = true;
+                mEventLoop.postDelayed(mFlushRunnable, FLUSH_INTERVAL);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+
+            // Stop recording instead of failing on every packet
+            enabled = false;
+            closeChannel();
+        }
+    }
+
+    /**
+     * Writes the buffered records and closes the file, recording starts again on the next record.
+     */
+    public synchronized void close() {
+        closeChannel();
+    }
+
+    public static int characteristicIndex(String characteristic) {
+        if (characteristic != null) {
+            for (int i = 1; i < CHARACTERISTICS.length; i++) {
+                if (CHARACTERISTICS[i].equals(characteristic)) {
+                    return i;
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the characteristic with the given recorded index, or null if it's unknown.
+     */
+    public static String characteristicAt(int index) {
+        return index > 0 && index < CHARACTERISTICS.length ? CHARACTERISTICS[index] : null;
+    }
+
+    /**
+     * Opens the file for appending, rotating it first if the record doesn't fit.
+     */
+    private void openChannel(int recordLength) throws IOException {
+        closeChannel();
+
+        if (file.exists() && file.length() + recordLength > maxFileSize) {
+            File rotated = new File(file.getPath() + ".1");
+
+            if ((rotated.exists() && !rotated.delete()) || !file.renameTo(rotated)) {
+                throw new IOException("Could not rotate " + file);
+            }
+        }
+
+        channel = new FileOutputStream(file, true).getChannel();
+        fileSize = channel.size();
+
+        if (fileSize == 0) {
+            buffer.putInt(MAGIC);
+            buffer.put(VERSION);
+            fileSize = FILE_HEADER_LENGTH;
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattRecorder.this) {
+                flushScheduled = false;
+
+                if (channel == null) {
+                    return;
+                }
+
+                try {
+                    flush();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+
+                    enabled = false;
+                    closeChannel();
+                }
+            }
+        }
+    };
+
+    private void flush() throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private void closeChannel() {
+        mEventLoop.remove(mFlushRunnable);
+        flushScheduled = false;
+
+        if (channel == null) {
+            buffer.clear();
+            return;
+        }
+
+        try {
+            flush();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        channel = null;
+        buffer.clear();
+    }
+
+}
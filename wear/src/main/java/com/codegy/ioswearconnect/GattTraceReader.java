@@ -0,0 +1,99 @@
+package com.codegy.ioswearconnect;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the records written by GattRecorder one at a time, see its format. A record cut short at
+ * the end of the file, when the process died while writing it, ends the trace.
+ */
+public class GattTraceReader implements Closeable {
+
+    private final DataInputStream in;
+
+    private byte type;
+    private int characteristicIndex;
+    private long time;
+    private byte[] value;
+
+
+    public GattTraceReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    public GattTraceReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+
+        try {
+            if (this.in.readInt() != GattRecorder.MAGIC) {
+                throw new IOException("Not a GATT trace");
+            }
+
+            byte version = this.in.readByte();
+            if (version != GattRecorder.VERSION) {
+                throw new IOException("Unsupported GATT trace version " + version);
+            }
+        }
+        catch (IOException e) {
+            this.in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next record, returns false at the end of the trace.
+     */
+    public boolean next() throws IOException {
+        try {
+            int length = in.readUnsignedShort();
+            if (length < GattRecorder.RECORD_HEADER_LENGTH) {
+                throw new IOException("Bad record length " + length);
+            }
+
+            type = in.readByte();
+            characteristicIndex = in.readUnsignedByte();
+            time = in.readLong();
+            value = new byte[length - GattRecorder.RECORD_HEADER_LENGTH];
+            in.readFully(value);
+
+            return true;
+        }
+        catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * One of the GattRecorder TYPE_ constants.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Returns the characteristic of the record, or null if it's unknown or it's a connection change.
+     */
+    public String getCharacteristic() {
+        return GattRecorder.characteristicAt(characteristicIndex);
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.codegy.ioswearconnect;
+
+import java.util.UUID;
+
+/**
+ * Link to the iOS device as seen by BLEManager: scanning, connecting, service discovery,
+ * subscriptions, reads, writes and notifications.
+ *
+ * Operations return false when they could not be started, results are delivered to the Listener.
+ * Status codes are the BluetoothGatt ones. Listener methods may be called on any thread.
+ */
+public interface GattTransport {
+
+    interface Listener {
+        void onDeviceFound(String address, String name);
+        void onConnectionStateChange(boolean connected, int status);
+        void onServicesDiscovered(int status);
+        void onMtuChanged(int mtu, int status);
+        void onDescriptorWrite(String characteristic, int status);
+        void onCharacteristicWrite(String characteristic, byte[] value, int status);
+        void onCharacteristicRead(String characteristic, byte[] value, int status);
+        void onCharacteristicChanged(String characteristic, byte[] value);
+        void onReadRemoteRssi(int rssi, int status);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Starts scanning for devices advertising the given service, with one of the ScanSettings
+     * scan modes. With a report delay results may be batched by the controller, if it supports it.
+     */
+    boolean startScan(String serviceUUID, int scanMode, long reportDelay);
+
+    void stopScan();
+
+    /**
+     * Connects to the device with the given address. With autoConnect the connection is made in
+     * the background whenever the device comes in range, without timing out.
+     */
+    boolean connect(String address, boolean autoConnect);
+
+    void disconnect();
+
+    /**
+     * Releases the current connection, no more events are delivered for it.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    boolean hasService(UUID serviceUUID);
+
+    /**
+     * Asks for a larger ATT MTU, the negotiated one is delivered to onMtuChanged.
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Enables notifications for the characteristic and writes its configuration descriptor.
+     */
+    boolean subscribe(UUID serviceUUID, String characteristic);
+
+    boolean write(UUID serviceUUID, String characteristic, byte[] value);
+
+    boolean read(UUID serviceUUID, String characteristic);
+
+    boolean readRemoteRssi();
+
+    boolean requestConnectionPriority(int connectionPriority);
+
+    /**
+     * Bond state of the connected device, one of the BluetoothDevice BOND_ constants or -1 if
+     * there is no device.
+     */
+    int getBondState();
+
+    void createBond();
+
+    void removeBond();
+
+}
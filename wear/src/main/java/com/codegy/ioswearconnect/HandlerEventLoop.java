@@ -0,0 +1,71 @@
+package com.codegy.ioswearconnect;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * EventLoop running on its own HandlerThread, or on an existing Looper.
+ */
+public class HandlerEventLoop implements EventLoop {
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+
+    public HandlerEventLoop(String name) {
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Runs on a looper owned by someone else, quit() only removes the pending runnables.
+     */
+    public HandlerEventLoop(Looper looper) {
+        mThread = null;
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void post(Runnable runnable) {
+        mHandler.post(runnable);
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delay) {
+        mHandler.postDelayed(runnable, delay);
+    }
+
+    @Override
+    public void postAtTime(Runnable runnable, long time) {
+        mHandler.postAtTime(runnable, time);
+    }
+
+    @Override
+    public void remove(Runnable runnable) {
+        mHandler.removeCallbacks(runnable);
+    }
+
+    @Override
+    public void removeAll() {
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public void quit() {
+        if (mThread != null) {
+            mThread.quitSafely();
+        }
+        else {
+            removeAll();
+        }
+    }
+
+}
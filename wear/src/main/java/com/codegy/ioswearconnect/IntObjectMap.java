@@ -0,0 +1,204 @@
+package com.codegy.ioswearconnect;
+
+/**
+ * Open addressing hash map with primitive int keys.
+ *
+ * Lookups, insertions of existing keys and removals don't allocate. Removed slots are filled by
+ * shifting back the following entries, so there are no tombstones and probes stay short. Values
+ * can't be null.
+ */
+public class IntObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+
+    public IntObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        // Keep the load factor under 0.5
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int index = hash(key) & mask;
+
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return (V) values[index];
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+
+        int index = hash(key) & mask;
+
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+
+                return previous;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        size++;
+
+        if (size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+
+        return null;
+    }
+
+    public V remove(int key) {
+        int index = hash(key) & mask;
+
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return removeAt(index);
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = null;
+        }
+
+        size = 0;
+    }
+
+    /**
+     * Number of slots, used together with keyAt() and valueAt() to iterate without allocating.
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    public int keyAt(int index) {
+        return keys[index];
+    }
+
+    /**
+     * Returns the value stored in the given slot or null if it is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+        return (V) values[index];
+    }
+
+    /**
+     * Removes the entry stored in the given slot. A following entry may be moved into this slot,
+     * so callers iterating over the slots must check the same index again.
+     */
+    @SuppressWarnings("unchecked")
+    public V removeAt(int index) {
+        V removed = (V) values[index];
+        if (removed == null) {
+            return null;
+        }
+
+        values[index] = null;
+        size--;
+
+        // Shift back the entries that would not be found anymore
+        int gap = index;
+        int next = (gap + 1) & mask;
+
+        while (values[next] != null) {
+            int ideal = hash(keys[next]) & mask;
+
+            // Move the entry if its ideal slot is not between the gap and its current slot
+            if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                values[next] = null;
+                gap = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        return removed;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = hash(oldKeys[i]) & mask;
+
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    static int hash(int key) {
+        // UIDs are sequential, spread them over the table
+        int h = key * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+
+}
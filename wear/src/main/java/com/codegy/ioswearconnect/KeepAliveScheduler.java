@@ -0,0 +1,407 @@
+package com.codegy.ioswearconnect;
+
+import android.util.Log;
+
+/**
+ * Keeps idle links alive on watches whose stack drops them after some time without traffic.
+ *
+ * The idle window is learned: a link terminated after being idle for at least MIN_WINDOW is taken
+ * as an idle timeout and its idle time becomes the window, supervision timeouts and other losses
+ * are range or radio problems and teach nothing. A keep-alive is sent once the link has been idle
+ * for most of the window. It starts with an RSSI read, which doesn't put anything on the air and
+ * costs only the wakeup. If the link is still lost while RSSI reads are being sent, it moves to a
+ * Battery Level read, a real ATT request the iOS device always answers.
+ *
+ * The window can grow back: after a few keep-alives the next one waits past the window. If the
+ * link survives that, the longer idle time becomes the window, and once it reaches MAX_WINDOW
+ * keep-alives stop. A failed attempt waits twice as long before the next. Nothing is scheduled
+ * while no window is known.
+ *
+ * Traffic only updates a timestamp, the alarm is moved when it fires instead of on every packet.
+ * Times are in the alarm's clock, which keeps running while the watch sleeps. Used on BLEManager's
+ * thread.
+ */
+public class KeepAliveScheduler {
+
+    public enum Method {
+        Rssi,
+        BatteryRead
+    }
+
+    /**
+     * Runs a runnable on BLEManager's thread at a time in its own clock, even if the watch is asleep.
+     */
+    public interface Alarm {
+        long now();
+        void set(long time, Runnable runnable);
+        void cancel();
+        void close();
+    }
+
+    /**
+     * Alarm on the event loop's timer, which doesn't run while the watch sleeps.
+     */
+    public static class LoopAlarm implements Alarm {
+
+        private final EventLoop mEventLoop;
+        private Runnable runnable;
+
+        public LoopAlarm(EventLoop eventLoop) {
+            this.mEventLoop = eventLoop;
+        }
+
+        @Override
+        public long now() {
+            return mEventLoop.now();
+        }
+
+        @Override
+        public void set(long time, Runnable runnable) {
+            cancel();
+
+            this.runnable = runnable;
+            mEventLoop.postAtTime(runnable, time);
+        }
+
+        @Override
+        public void cancel() {
+            if (runnable != null) {
+                mEventLoop.remove(runnable);
+                runnable = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            cancel();
+        }
+    }
+
+    private static final String TAG_LOG = "KeepAliveScheduler";
+
+    // The Moto 360 drops idle links after about five minutes
+    public static final long MOTO_360_IDLE_WINDOW = 300000;
+
+    // Disconnection statuses of an idle link terminated by either side, not exposed by BluetoothGatt
+    public static final int STATUS_TERMINATED_BY_PEER = 19;
+    public static final int STATUS_TERMINATED_LOCALLY = 22;
+
+    // Links timing out sooner cost more in wakeups than in reconnections, they aren't kept alive
+    private static final long MIN_WINDOW = 60000;
+    // Links surviving this long idle don't need keep-alives
+    private static final long MAX_WINDOW = 30 * 60000;
+    // Keep-alives sent before waiting past the window, doubled after each failed attempt
+    private static final int GROW_AFTER = 3;
+    private static final int MAX_GROW_AFTER = 48;
+    private static final long KEEP_ALIVE_TIMEOUT = 2000;
+
+
+    private final GattOperationQueue mOperationQueue;
+    private final Alarm mAlarm;
+
+    // Idle time links are known to survive, -1 if unknown
+    private long window;
+    private Method method;
+
+    private boolean started;
+    private long alarmTime = -1;
+    private long lastTrafficTime;
+    private long lastKeepAliveTime;
+    // Keep-alives sent since the last traffic
+    private int stretchKeepAlives;
+    // Keep-alives sent since the window last changed or a longer one was tried
+    private int survivedCount;
+    private int growAfter = GROW_AFTER;
+    // The next keep-alive waits past the window
+    private boolean growing;
+
+    private int wakeupCount;
+    private final int[] keepAliveCount = new int[Method.values().length];
+    private int idleLossCount;
+    private int keptAliveLossCount;
+    private int otherLossCount;
+    private int avoidedCount;
+    private int grownCount;
+    private int failedGrowCount;
+
+
+    /**
+     * With a known window, like MOTO_360_IDLE_WINDOW, keep-alives start right away with Battery
+     * Level reads. Otherwise the window is 0 and learned from the first idle link loss.
+     */
+    public KeepAliveScheduler(GattOperationQueue operationQueue, Alarm alarm, long window) {
+        this.mOperationQueue = operationQueue;
+        this.mAlarm = alarm;
+        this.window = window > 0 ? Math.max(MIN_WINDOW, window) : -1;
+        this.method = window > 0 ? Method.BatteryRead : Method.Rssi;
+    }
+
+    /**
+     * Starts watching a new connection.
+     */
+    public void start() {
+        started = true;
+        lastTrafficTime = mAlarm.now();
+        lastKeepAliveTime = -1;
+        stretchKeepAlives = 0;
+        growing = false;
+
+        schedule();
+    }
+
+    public void stop() {
+        started = false;
+        alarmTime = -1;
+        mAlarm.cancel();
+    }
+
+    public void close() {
+        stop();
+        mAlarm.close();
+    }
+
+    /**
+     * Called for every packet exchanged with the iOS device, keep-alives excluded.
+     */
+    public void onTraffic() {
+        if (!started) {
+            return;
+        }
+
+        long now = mAlarm.now();
+        long idle = now - lastTrafficTime;
+        long quiet = now - Math.max(lastTrafficTime, lastKeepAliveTime);
+
+        if (window != -1 && quiet > window) {
+            // Survived longer than the window without help
+            if (growing) {
+                grownCount++;
+                growAfter = GROW_AFTER;
+            }
+
+            setWindow(quiet);
+        }
+        else if (window != -1 && stretchKeepAlives > 0 && idle > window) {
+            avoidedCount++;
+        }
+
+        lastTrafficTime = now;
+        stretchKeepAlives = 0;
+    }
+
+    /**
+     * Called with the disconnection status when the connected link was lost, before the connection
+     * is closed.
+     */
+    public void onLinkLost(int status) {
+        if (!started) {
+            return;
+        }
+
+        long now = mAlarm.now();
+        long idle = now - Math.max(lastTrafficTime, lastKeepAliveTime);
+
+        if (status != STATUS_TERMINATED_BY_PEER && status != STATUS_TERMINATED_LOCALLY) {
+            // Out of range or a radio problem, says nothing about the window
+            otherLossCount++;
+        }
+        else if (growing) {
+            // The window was right
+            failedGrowCount++;
+            survivedCount = 0;
+            growAfter = Math.min(MAX_GROW_AFTER, growAfter * 2);
+            Log.d(TAG_LOG, "Link lost after " + idle + "ms idle, window stays " + window + "ms");
+        }
+        else if (stretchKeepAlives > 0) {
+            keptAliveLossCount++;
+
+            if (method == Method.Rssi) {
+                // RSSI reads don't count as activity for this link
+                method = Method.BatteryRead;
+                Log.d(TAG_LOG, "Keep-alive switched to " + method);
+            }
+            else if (window <= MIN_WINDOW) {
+                // Reads don't keep this link up either, stop waking up for nothing
+                setWindow(-1);
+            }
+            else if (idle < window) {
+                setWindow(Math.max(MIN_WINDOW, idle));
+            }
+        }
+        else if (idle >= MIN_WINDOW) {
+            idleLossCount++;
+            Log.d(TAG_LOG, "Link lost after " + idle + "ms idle");
+
+            if (window == -1 || idle < window) {
+                setWindow(idle);
+            }
+        }
+
+        stop();
+    }
+
+    /**
+     * Idle time after which a keep-alive is sent, -1 if none is needed.
+     */
+    public long getInterval() {
+        return window != -1 ? window * 4 / 5 : -1;
+    }
+
+    /**
+     * Keep-alive wakeups an idle hour costs at the current interval.
+     */
+    public long getWakeupsPerHour() {
+        return window != -1 ? 3600000 / getInterval() : 0;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public int getKeepAliveCount(Method method) {
+        return keepAliveCount[method.ordinal()];
+    }
+
+    public int getWakeupCount() {
+        return wakeupCount;
+    }
+
+    public int getIdleLossCount() {
+        return idleLossCount;
+    }
+
+    /**
+     * Links lost even though keep-alives were being sent.
+     */
+    public int getKeptAliveLossCount() {
+        return keptAliveLossCount;
+    }
+
+    /**
+     * Links lost for other reasons than an idle timeout.
+     */
+    public int getOtherLossCount() {
+        return otherLossCount;
+    }
+
+    /**
+     * Idle stretches that outlived the window thanks to keep-alives.
+     */
+    public int getAvoidedCount() {
+        return avoidedCount;
+    }
+
+    /**
+     * Times the link survived waiting past the window, and times it didn't.
+     */
+    public int getGrownCount() {
+        return grownCount;
+    }
+
+    public int getFailedGrowCount() {
+        return failedGrowCount;
+    }
+
+    @Override
+    public String toString() {
+        return "window=" + window + "ms interval=" + getInterval() + "ms method=" + method
+                + " wakeups=" + wakeupCount + " wakeupsPerIdleHour=" + getWakeupsPerHour()
+                + " rssi=" + getKeepAliveCount(Method.Rssi) + " batteryReads=" + getKeepAliveCount(Method.BatteryRead)
+                + " idleLosses=" + idleLossCount + " keptAliveLosses=" + keptAliveLossCount
+                + " otherLosses=" + otherLossCount + " avoided=" + avoidedCount
+                + " grown=" + grownCount + " failedGrows=" + failedGrowCount;
+    }
+
+    /**
+     * Sets the window, -1 or one reaching MAX_WINDOW stops the keep-alives.
+     */
+    private void setWindow(long window) {
+        this.window = window < MAX_WINDOW ? window : -1;
+        survivedCount = 0;
+        growing = false;
+
+        if (this.window == -1) {
+            // Learned again from scratch if it comes back
+            method = Method.Rssi;
+            growAfter = GROW_AFTER;
+        }
+
+        Log.d(TAG_LOG, "Idle window set to " + this.window + "ms");
+    }
+
+    /**
+     * Idle time after which the next keep-alive is sent, past the window when trying a longer one.
+     */
+    private long getDelay() {
+        return growing ? Math.min(MAX_WINDOW, window * 3 / 2) : getInterval();
+    }
+
+    private void schedule() {
+        if (!started || window == -1) {
+            return;
+        }
+
+        long time = Math.max(lastTrafficTime, lastKeepAliveTime) + getDelay();
+
+        if (time != alarmTime) {
+            alarmTime = time;
+            mAlarm.set(time, mKeepAliveRunnable);
+        }
+    }
+
+    private final Runnable mKeepAliveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            alarmTime = -1;
+            wakeupCount++;
+
+            long now = mAlarm.now();
+            long idle = now - Math.max(lastTrafficTime, lastKeepAliveTime);
+
+            if (started && window != -1 && idle >= getDelay()) {
+                if (growing) {
+                    // Still up past the window
+                    grownCount++;
+                    growAfter = GROW_AFTER;
+                    setWindow(idle);
+                }
+                else if (++survivedCount >= growAfter) {
+                    growing = true;
+                }
+
+                if (window != -1 && !growing) {
+                    sendKeepAlive(now);
+                }
+            }
+
+            schedule();
+        }
+    };
+
+    private void sendKeepAlive(long now) {
+        lastKeepAliveTime = now;
+
+        if (!mOperationQueue.isIdle()) {
+            // Something else is already going over the link
+            return;
+        }
+
+        Log.d(TAG_LOG, "Keep-alive: " + method);
+
+        stretchKeepAlives++;
+        keepAliveCount[method.ordinal()]++;
+
+        if (method == Method.Rssi) {
+            mOperationQueue.add(GattOperation.readRemoteRssi(KEEP_ALIVE_TIMEOUT, null));
+        }
+        else {
+            // Always readable, unlike the AMS Entity Attribute which needs a request written first
+            mOperationQueue.add(GattOperation.read(ServicesConstants.UUID_BAS, ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL, KEEP_ALIVE_TIMEOUT, 0, null));
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.codegy.ioswearconnect;
+
+/**
+ * Fixed bucket histogram for durations in milliseconds.
+ *
+ * Recording a value doesn't allocate, percentiles are resolved to the upper bound of the bucket
+ * they fall in.
+ */
+public class LatencyHistogram {
+
+    // Upper bounds of each bucket, values over the last one go to an overflow bucket
+    private static final long[] BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000, 300000
+    };
+
+    private final long[] counts = new long[BOUNDS.length + 1];
+    private long count;
+    private long sum;
+    private long max;
+
+
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        int bucket = 0;
+        while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+            bucket++;
+        }
+
+        counts[bucket]++;
+        count++;
+        sum += value;
+
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile (0-100), the maximum
+     * recorded value if it falls in the overflow bucket.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(count * percentile / 100.0);
+        long accumulated = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            accumulated += counts[i];
+
+            if (accumulated >= threshold) {
+                return i < BOUNDS.length ? Math.min(BOUNDS[i], max) : max;
+            }
+        }
+
+        return max;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + count
+                + " p50=" + getPercentile(50)
+                + " p95=" + getPercentile(95)
+                + " p99=" + getPercentile(99)
+                + " max=" + max;
+    }
+
+}
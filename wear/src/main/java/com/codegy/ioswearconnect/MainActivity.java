@@ -11,6 +11,7 @@ import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.wearable.view.WatchViewStub;
 import android.util.Log;
+import android.view.View;
 import android.widget.CompoundButton;
 import android.widget.Switch;
 import android.widget.TextView;
@@ -22,6 +23,8 @@ public class MainActivity extends Activity {
     private Switch mServiceSwitch;
     private Switch mColorBackgroundsSwitch;
     private Switch mBatteryUpdatesSwitch;
+    private Switch mRecordTrafficSwitch;
+    private TextView mDebugTextView;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -42,10 +45,12 @@ public class MainActivity extends Activity {
                 mServiceSwitch = (Switch) stub.findViewById(R.id.serviceSwitch);
                 mColorBackgroundsSwitch = (Switch) stub.findViewById(R.id.colorBackgroundsSwitch);
                 mBatteryUpdatesSwitch = (Switch) stub.findViewById(R.id.batteryUpdatesSwitch);
+                mRecordTrafficSwitch = (Switch) stub.findViewById(R.id.recordTrafficSwitch);
 
                 SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(MainActivity.this);
                 final boolean colorBackgrounds = sp.getBoolean(Constants.SPK_COLOR_BACKGROUNDS, false);
                 final boolean batteryUpdates = sp.getBoolean(Constants.SPK_BATTERY_UPDATES, true);
+                final boolean recordTraffic = sp.getBoolean(Constants.SPK_RECORD_TRAFFIC, false);
                 final boolean serviceRunning = isServiceRunning();
 
 
@@ -86,8 +91,37 @@ public class MainActivity extends Activity {
                 });
 
 
+                mRecordTrafficSwitch.setChecked(recordTraffic);
+                mRecordTrafficSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(MainActivity.this);
+                        sp.edit().putBoolean(Constants.SPK_RECORD_TRAFFIC, isChecked).apply();
+
+                        MainActivity.this.sendBroadcast(new Intent(Constants.IA_RECORD_TRAFFIC_CHANGED));
+                    }
+                });
+
+
                 TextView modelTextView = (TextView) stub.findViewById(R.id.modelTextView);
                 modelTextView.setText(Build.MODEL);
+
+                // Hidden debug view with the notification latency, toggled by a long press on the model
+                mDebugTextView = (TextView) stub.findViewById(R.id.debugTextView);
+                modelTextView.setOnLongClickListener(new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View v) {
+                        if (mDebugTextView.getVisibility() == View.VISIBLE) {
+                            mDebugTextView.setVisibility(View.GONE);
+                        }
+                        else {
+                            updateDebugView();
+                            mDebugTextView.setVisibility(View.VISIBLE);
+                        }
+
+                        return true;
+                    }
+                });
             }
         });
     }
@@ -106,6 +140,15 @@ public class MainActivity extends Activity {
             final boolean serviceRunning = isServiceRunning();
             mServiceSwitch.setChecked(serviceRunning);
         }
+
+        if (mDebugTextView != null && mDebugTextView.getVisibility() == View.VISIBLE) {
+            updateDebugView();
+        }
+    }
+
+    private void updateDebugView() {
+        String report = BLEService.getDebugReport();
+        mDebugTextView.setText(report != null ? report : getString(R.string.debug_not_running));
     }
 
     private boolean isServiceRunning() {
@@ -0,0 +1,112 @@
+package com.codegy.ioswearconnect;
+
+/**
+ * Stage between the AMS Entity Update notifications and the MediaSession and media card.
+ *
+ * Updates are applied to a MediaState as they arrive. Updates that change nothing are dropped,
+ * the rest are gathered for the publish delay from the first change and published together, so a
+ * track change sending title, artist and playback info rebuilds the card once.
+ *
+ * Public methods can be called from any thread, the Sink and getState() are used on the EventLoop.
+ */
+public class MediaCoalescer {
+
+    public interface Sink {
+        /**
+         * @param changes the MediaState CHANGED_ flags of everything that changed since the last publish
+         */
+        void publishMedia(MediaState state, int changes);
+    }
+
+
+    private final EventLoop mEventLoop;
+    private final Sink mSink;
+    private final long publishDelay;
+
+    private final MediaState state = new MediaState();
+    private int pendingChanges;
+
+    private int updateCount;
+    private int unchangedCount;
+    private int publishCount;
+
+
+    public MediaCoalescer(EventLoop eventLoop, Sink sink, long publishDelay) {
+        this.mEventLoop = eventLoop;
+        this.mSink = sink;
+        this.publishDelay = publishDelay;
+    }
+
+    /**
+     * Applies an Entity Update notification, the packet must not be modified afterwards.
+     */
+    public void submit(final byte[] packet) {
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                updateCount++;
+
+                int changes = state.update(packet, mEventLoop.now());
+
+                if (changes == 0) {
+                    unchangedCount++;
+                    return;
+                }
+
+                if (pendingChanges == 0) {
+                    mEventLoop.postDelayed(mPublishRunnable, publishDelay);
+                }
+
+                pendingChanges |= changes;
+            }
+        });
+    }
+
+    /**
+     * Forgets what was playing, for when the iOS device is gone.
+     */
+    public void clear() {
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                mEventLoop.remove(mPublishRunnable);
+
+                pendingChanges = 0;
+                state.clear();
+            }
+        });
+    }
+
+    public MediaState getState() {
+        return state;
+    }
+
+    public int getUpdateCount() {
+        return updateCount;
+    }
+
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    public int getPublishCount() {
+        return publishCount;
+    }
+
+    @Override
+    public String toString() {
+        return "updates=" + updateCount + " unchanged=" + unchangedCount + " publishes=" + publishCount;
+    }
+
+    private final Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int changes = pendingChanges;
+            pendingChanges = 0;
+
+            publishCount++;
+            mSink.publishMedia(state, changes);
+        }
+    };
+
+}
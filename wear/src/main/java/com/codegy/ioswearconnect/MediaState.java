@@ -0,0 +1,261 @@
+package com.codegy.ioswearconnect;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What the iOS device is playing, built from the AMS Entity Update notifications.
+ *
+ * Each update is compared with the current value and only reports the fields it really changed,
+ * so repeated values don't cause a publish. The iOS device only sends the PlaybackInfo when the
+ * state, rate or position jumps, the position in between is interpolated from the elapsed time,
+ * the rate and the time it was received. Not thread safe.
+ */
+public class MediaState {
+
+    public static final int CHANGED_PLAYBACK = 1;
+    public static final int CHANGED_METADATA = 1 << 1;
+
+    // PlaybackInfo playback states
+    public static final int PLAYBACK_STATE_PAUSED = 0;
+    public static final int PLAYBACK_STATE_PLAYING = 1;
+    public static final int PLAYBACK_STATE_REWINDING = 2;
+    public static final int PLAYBACK_STATE_FAST_FORWARDING = 3;
+
+    // Difference with the interpolated position that is still considered the same
+    private static final long POSITION_TOLERANCE = 100;
+
+
+    private int playbackState = PLAYBACK_STATE_PAUSED;
+    // False when there's no media app, the PlaybackInfo comes without rate and elapsed time
+    private boolean playerPresent;
+    private float playbackRate;
+    // Elapsed time in milliseconds when the PlaybackInfo was received at updateTime
+    private long elapsedTime;
+    private long updateTime;
+    // Track duration in milliseconds, -1 if unknown
+    private long duration = -1;
+    private String title;
+    private boolean titleTruncated;
+    private String artist;
+    private boolean artistTruncated;
+
+
+    /**
+     * Applies an Entity Update notification received at the given time.
+     *
+     * @return the CHANGED_ flags of what it changed, 0 if nothing did
+     */
+    public int update(byte[] packet, long time) {
+        if (packet == null || packet.length < 3) {
+            return 0;
+        }
+
+        String value = new String(packet, 3, packet.length - 3, StandardCharsets.UTF_8);
+        boolean truncated = (packet[2] & ServicesConstants.EntityUpdateFlagTruncated) != 0;
+
+        return update(packet[0], packet[1], truncated, value, time);
+    }
+
+    public int update(byte entityId, byte attributeId, boolean truncated, String value, long time) {
+        if (value.length() == 0) {
+            value = null;
+            truncated = false;
+        }
+
+        switch (entityId) {
+            case ServicesConstants.EntityIDPlayer:
+                if (attributeId == ServicesConstants.PlayerAttributeIDPlaybackInfo) {
+                    return updatePlaybackInfo(value, time);
+                }
+
+                break;
+            case ServicesConstants.EntityIDTrack:
+                switch (attributeId) {
+                    case ServicesConstants.TrackAttributeIDTitle:
+                        if (equals(value, title) && truncated == titleTruncated) {
+                            return 0;
+                        }
+
+                        title = value;
+                        titleTruncated = truncated;
+
+                        return CHANGED_METADATA;
+                    case ServicesConstants.TrackAttributeIDArtist:
+                        if (equals(value, artist) && truncated == artistTruncated) {
+                            return 0;
+                        }
+
+                        artist = value;
+                        artistTruncated = truncated;
+
+                        return CHANGED_METADATA;
+                    case ServicesConstants.TrackAttributeIDDuration:
+                        long newDuration = parseSeconds(value);
+
+                        if (newDuration == duration) {
+                            return 0;
+                        }
+
+                        duration = newDuration;
+
+                        return CHANGED_METADATA;
+                }
+
+                break;
+        }
+
+        return 0;
+    }
+
+    public void clear() {
+        playbackState = PLAYBACK_STATE_PAUSED;
+        playerPresent = false;
+        playbackRate = 0;
+        elapsedTime = 0;
+        updateTime = 0;
+        duration = -1;
+        title = null;
+        titleTruncated = false;
+        artist = null;
+        artistTruncated = false;
+    }
+
+    public int getPlaybackState() {
+        return playbackState;
+    }
+
+    public boolean isPlaying() {
+        return playbackState != PLAYBACK_STATE_PAUSED;
+    }
+
+    public boolean isPlayerPresent() {
+        return playerPresent;
+    }
+
+    /**
+     * Playback speed, 1 at normal speed, negative when rewinding and 0 when paused.
+     */
+    public float getPlaybackRate() {
+        return playbackRate;
+    }
+
+    /**
+     * Elapsed time of the track in milliseconds as of getUpdateTime().
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * Time the elapsed time was received, in the time base of the update() calls.
+     */
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    /**
+     * Returns the position of the track at the given time, interpolated from the last PlaybackInfo.
+     */
+    public long getPosition(long now) {
+        long position = elapsedTime + (long) ((now - updateTime) * playbackRate);
+
+        if (duration != -1) {
+            position = Math.min(position, duration);
+        }
+
+        return Math.max(0, position);
+    }
+
+    /**
+     * Track duration in milliseconds, -1 if unknown.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the title, ending in "..." if the iOS device truncated it, or null if it's unknown.
+     */
+    public String getTitle() {
+        return titleTruncated ? title + "..." : title;
+    }
+
+    public String getArtist() {
+        return artistTruncated ? artist + "..." : artist;
+    }
+
+    @Override
+    public String toString() {
+        return (playerPresent ? "state=" + playbackState + " rate=" + playbackRate + " elapsed=" + elapsedTime + "ms" : "no player")
+                + " duration=" + duration + "ms title=" + getTitle() + " artist=" + getArtist();
+    }
+
+    /**
+     * PlaybackInfo is "state,rate,elapsed time", the elapsed time in seconds. Rate and elapsed time
+     * are empty without a media app.
+     */
+    private int updatePlaybackInfo(String value, long time) {
+        int state = PLAYBACK_STATE_PAUSED;
+        float rate = 0;
+        long elapsed = -1;
+
+        if (value != null) {
+            String[] fields = value.split(",", -1);
+
+            try {
+                state = Integer.parseInt(fields[0]);
+            }
+            catch (NumberFormatException e) {
+                // Unknown state, treated as paused
+            }
+
+            if (fields.length >= 3 && fields[1].length() > 0 && fields[2].length() > 0) {
+                try {
+                    rate = Float.parseFloat(fields[1]);
+                    elapsed = parseSeconds(fields[2]);
+                }
+                catch (NumberFormatException e) {
+                    rate = 0;
+                    elapsed = -1;
+                }
+            }
+        }
+
+        boolean present = elapsed != -1;
+
+        if (state == playbackState && present == playerPresent && rate == playbackRate
+                && (!present || Math.abs(elapsed - getPosition(time)) <= POSITION_TOLERANCE)) {
+            // Where the interpolation already is, nothing to correct
+            return 0;
+        }
+
+        playbackState = state;
+        playerPresent = present;
+        playbackRate = rate;
+        elapsedTime = present ? elapsed : 0;
+        updateTime = time;
+
+        return CHANGED_PLAYBACK;
+    }
+
+    /**
+     * Returns the milliseconds in a number of seconds like "245.123", or -1 if it's not a number.
+     */
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            return Math.round(Double.parseDouble(value) * 1000);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.codegy.ioswearconnect;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Stage between BLEManager and the NotificationManager that batches notification cards.
+ *
+ * Notifications are held until no other one arrives for the merge window, or for the max delay
+ * since the first one, and then posted in arrival order. Updates of a UID that hasn't been posted
+ * yet replace the pending one. Only one alert is fired per burst, a burst ends once no alerting
+ * notification arrived during the burst gap.
+ *
+ * Public methods can be called from any thread, the Sink is called on the EventLoop.
+ */
+public class NotificationCoalescer {
+
+    public interface Sink {
+        void postNotification(NotificationData notificationData);
+        void cancelNotification(String notificationId);
+        void alert(boolean silent);
+    }
+
+
+    private final EventLoop mEventLoop;
+    private final Sink mSink;
+    private final long mergeWindow;
+    private final long maxDelay;
+    private final long burstGap;
+
+    // Notifications waiting to be posted, by UID string in arrival order
+    private final LinkedHashMap<String, NotificationData> pending = new LinkedHashMap<>();
+    private long firstPendingTime = -1;
+    private long lastAlertCandidateTime = -1;
+    private boolean closed;
+
+    private int postCount;
+    private int suppressedPostCount;
+    private int alertCount;
+    private int suppressedAlertCount;
+
+
+    public NotificationCoalescer(EventLoop eventLoop, Sink sink, long mergeWindow, long maxDelay, long burstGap) {
+        this.mEventLoop = eventLoop;
+        this.mSink = sink;
+        this.mergeWindow = mergeWindow;
+        this.maxDelay = maxDelay;
+        this.burstGap = burstGap;
+    }
+
+    public void submit(final NotificationData notificationData) {
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+
+                long now = mEventLoop.now();
+
+                if (pending.put(notificationData.getUIDString(), notificationData) != null) {
+                    suppressedPostCount++;
+                }
+
+                if (firstPendingTime == -1) {
+                    firstPendingTime = now;
+                }
+
+                // Wait for the rest of the burst, but never longer than the max delay
+                mEventLoop.remove(mFlushRunnable);
+                mEventLoop.postAtTime(mFlushRunnable, Math.min(now + mergeWindow, firstPendingTime + maxDelay));
+            }
+        });
+    }
+
+    public void cancel(final String notificationId) {
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(notificationId) != null) {
+                    suppressedPostCount++;
+                }
+
+                // It may have been posted in an earlier batch
+                mSink.cancelNotification(notificationId);
+            }
+        });
+    }
+
+    /**
+     * Drops the notifications that haven't been posted yet.
+     */
+    public void clear() {
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                mEventLoop.remove(mFlushRunnable);
+
+                suppressedPostCount += pending.size();
+                pending.clear();
+                firstPendingTime = -1;
+            }
+        });
+    }
+
+    /**
+     * Drops the notifications that haven't been posted yet and stops posting right away, a flush
+     * that is already due never runs. Called on the EventLoop's thread.
+     */
+    public void close() {
+        closed = true;
+        mEventLoop.quit();
+
+        suppressedPostCount += pending.size();
+        pending.clear();
+        firstPendingTime = -1;
+    }
+
+    public int getPostCount() {
+        return postCount;
+    }
+
+    public int getSuppressedPostCount() {
+        return suppressedPostCount;
+    }
+
+    public int getAlertCount() {
+        return alertCount;
+    }
+
+    public int getSuppressedAlertCount() {
+        return suppressedAlertCount;
+    }
+
+    @Override
+    public String toString() {
+        return "posts=" + postCount + " suppressedPosts=" + suppressedPostCount
+                + " alerts=" + alertCount + " suppressedAlerts=" + suppressedAlertCount;
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private void flush() {
+        long now = mEventLoop.now();
+
+        int alertCandidates = 0;
+        boolean silent = true;
+
+        Iterator<NotificationData> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            NotificationData notificationData = iterator.next();
+            iterator.remove();
+
+            mSink.postNotification(notificationData);
+            postCount++;
+
+            if (!notificationData.isPreExisting()) {
+                alertCandidates++;
+
+                if (!notificationData.isSilent()) {
+                    silent = false;
+                }
+            }
+        }
+
+        firstPendingTime = -1;
+
+        if (alertCandidates == 0) {
+            return;
+        }
+
+        boolean newBurst = lastAlertCandidateTime == -1 || now - lastAlertCandidateTime >= burstGap;
+        lastAlertCandidateTime = now;
+
+        if (newBurst) {
+            mSink.alert(silent);
+            alertCount++;
+            alertCandidates--;
+        }
+
+        suppressedAlertCount += alertCandidates;
+    }
+
+}
@@ -2,8 +2,6 @@ package com.codegy.ioswearconnect;
 
 import android.graphics.Color;
 
-import java.util.Arrays;
-
 /**
  * Created by Guiye on 13/4/15.
  */
@@ -14,11 +12,23 @@ public class NotificationData {
 //    private int backgroundColor = Color.rgb(140, 140, 145);
     private int backgroundColor = Color.rgb(0, 0, 0);
     private byte[] UID;
+    // The 4 bytes ANCS UID packed in an int, used as key for lookups
+    private int packedUID;
+    private String UIDString;
     private String appId;
+    // Display name of the app, null until it's known
+    private String appName;
     private String title;
     private String message;
     private String positiveAction;
     private String negativeAction;
+    private byte eventFlags;
+    private byte categoryId;
+    // Uptime at each stage of its delivery, -1 until reached, see StageLatency
+    private long eventTime = -1;
+    private long requestTime = -1;
+    private long firstFragmentTime = -1;
+    private long reassembledTime = -1;
     boolean silent;
     boolean preExisting;
     boolean incomingCall;
@@ -26,22 +36,34 @@ public class NotificationData {
     boolean hasNegativeAction;
 
     public NotificationData(byte[] packet) {
-        int eventFlags = packet[1];
-        this.silent = (eventFlags & 1) != 0; // EventFlagSilent
-        // boolean important = (eventFlags & 2) != 0; // EventFlagImportant
-        this.preExisting = (eventFlags & 4) != 0; // EventFlagPreExisting
-        this.hasPositiveAction = (eventFlags & 8) != 0; // EventFlagPositiveAction
-        this.hasNegativeAction = (eventFlags & 16) != 0; // EventFlagNegativeAction
-
-        if (packet[2] == 1) {
-            this.incomingCall = true;
-        }
+        this(packUID(packet, 4), packet[1], packet[2]);
+    }
 
-        this.UID = Arrays.copyOfRange(packet, 4, 8);
+    /**
+     * Creates the notification of a Notification Source event from its fields.
+     */
+    public NotificationData(int packedUID, byte eventFlags, byte categoryId) {
+        this.eventFlags = eventFlags;
+        this.categoryId = categoryId;
+
+        this.silent = (eventFlags & ServicesConstants.EventFlagSilent) != 0;
+        this.preExisting = (eventFlags & ServicesConstants.EventFlagPreExisting) != 0;
+        this.hasPositiveAction = (eventFlags & ServicesConstants.EventFlagPositiveAction) != 0;
+        this.hasNegativeAction = (eventFlags & ServicesConstants.EventFlagNegativeAction) != 0;
+        this.incomingCall = categoryId == ServicesConstants.CategoryIDIncomingCall;
+
+        this.UID = new byte[] {
+                (byte) packedUID,
+                (byte) (packedUID >> 8),
+                (byte) (packedUID >> 16),
+                (byte) (packedUID >> 24)
+        };
+        this.packedUID = packedUID;
     }
 
     public NotificationData(byte[] UID, String appId, String title, String message, String positiveAction, String negativeAction) {
         this.UID = UID;
+        this.packedUID = packUID(UID, 0);
         this.appId = appId;
         this.title = title;
         this.message = message;
@@ -58,8 +80,29 @@ public class NotificationData {
         return UID;
     }
 
+    public int getPackedUID() {
+        return packedUID;
+    }
+
+    /**
+     * Identifier used as the tag of this notification's card.
+     */
     public String getUIDString() {
-        return new String(UID);
+        if (UIDString == null) {
+            UIDString = Integer.toString(packedUID);
+        }
+
+        return UIDString;
+    }
+
+    /**
+     * Packs the 4 bytes UID found at the given offset, ANCS sends it in little endian.
+     */
+    public static int packUID(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | (bytes[offset + 1] & 0xff) << 8
+                | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
     }
 
     public int getAppIcon() {
@@ -94,6 +137,14 @@ public class NotificationData {
         this.appId = appId;
     }
 
+    public String getAppName() {
+        return appName;
+    }
+
+    public void setAppName(String appName) {
+        this.appName = appName;
+    }
+
     public String getTitle() {
         return title;
     }
@@ -136,6 +187,46 @@ public class NotificationData {
         }
     }
 
+    public byte getEventFlags() {
+        return eventFlags;
+    }
+
+    public byte getCategoryId() {
+        return categoryId;
+    }
+
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    public void setEventTime(long eventTime) {
+        this.eventTime = eventTime;
+    }
+
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    public void setRequestTime(long requestTime) {
+        this.requestTime = requestTime;
+    }
+
+    public long getFirstFragmentTime() {
+        return firstFragmentTime;
+    }
+
+    public void setFirstFragmentTime(long firstFragmentTime) {
+        this.firstFragmentTime = firstFragmentTime;
+    }
+
+    public long getReassembledTime() {
+        return reassembledTime;
+    }
+
+    public void setReassembledTime(long reassembledTime) {
+        this.reassembledTime = reassembledTime;
+    }
+
     public boolean isSilent() {
         return silent;
     }
@@ -155,17 +246,4 @@ public class NotificationData {
     public boolean hasNegativeAction() {
         return hasNegativeAction;
     }
-
-    public boolean compareUID(byte[] UID) {
-        boolean result = false;
-
-        try {
-            result = ((this.UID[0] == UID[0]) && (this.UID[1] == UID[1]) && (this.UID[2] == UID[2]) && (this.UID[3] == UID[3]));
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        return result;
-    }
 }
@@ -0,0 +1,64 @@
+package com.codegy.ioswearconnect;
+
+/**
+ * Flyweight view of a Notification Source packet. The fields are read straight out of the wrapped
+ * packet, so decoding an event allocates nothing. Reused for every event on BLEManager's thread.
+ */
+public class NotificationSourceEvent {
+
+    // Event, flags, category, category count and UID
+    public static final int LENGTH = 8;
+
+
+    private byte[] packet;
+
+
+    /**
+     * Points the view at a new packet, returns false if it's too short to be an event.
+     */
+    public boolean wrap(byte[] packet) {
+        this.packet = packet;
+
+        return packet != null && packet.length >= LENGTH;
+    }
+
+    public byte getEventId() {
+        return packet[0];
+    }
+
+    public byte getEventFlags() {
+        return packet[1];
+    }
+
+    public byte getCategoryId() {
+        return packet[2];
+    }
+
+    public int getCategoryCount() {
+        return packet[3] & 0xff;
+    }
+
+    /**
+     * The UID packed in an int, see NotificationData.packUID().
+     */
+    public int getUID() {
+        return NotificationData.packUID(packet, 4);
+    }
+
+    public boolean isPreExisting() {
+        return (packet[1] & ServicesConstants.EventFlagPreExisting) != 0;
+    }
+
+    public boolean hasPositiveAction() {
+        return (packet[1] & ServicesConstants.EventFlagPositiveAction) != 0;
+    }
+
+    public boolean hasNegativeAction() {
+        return (packet[1] & ServicesConstants.EventFlagNegativeAction) != 0;
+    }
+
+    public boolean isIncomingCall() {
+        return packet[2] == ServicesConstants.CategoryIDIncomingCall;
+    }
+
+}
@@ -0,0 +1,427 @@
+package com.codegy.ioswearconnect;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Last known attributes of the notifications on the iOS device, kept on disk so a reconnection
+ * can show their cards right away and only posts again the ones whose attributes changed.
+ *
+ * Changes are appended to a log file, which is rewritten with just the live entries when it's
+ * loaded and when it grows too much. Without a file the store only lives in memory. Not thread
+ * safe, it's used on BLEManager's thread.
+ */
+public class NotificationStore {
+
+    private static final String TAG_LOG = "NotificationStore";
+
+    private static final byte RECORD_REMOVE = 2;
+    // Type 1 was a put without the event flags, logs with it are dropped. Type 3 had its strings
+    // written with writeUTF(), which can't write more than 64 KB
+    private static final byte RECORD_PUT_UTF = 3;
+    private static final byte RECORD_PUT = 4;
+
+    // Longer strings are taken as a corrupt log
+    private static final int MAX_STRING_BYTES = 1 << 20;
+
+    // Set on every event announced when the Notification Source is subscribed, not part of the match
+    private static final byte PRE_EXISTING_MASK = ~ServicesConstants.EventFlagPreExisting;
+
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+
+    public static class Entry {
+        private final byte eventFlags;
+        private final byte categoryId;
+        private final int contentHash;
+        private final String appId;
+        private final String title;
+        private final String message;
+        private final String positiveAction;
+        private final String negativeAction;
+        // Card posted by this process
+        boolean posted;
+        // Announced by the iOS device during the current connection
+        boolean seen;
+
+        Entry(byte eventFlags, byte categoryId, int contentHash, String appId, String title, String message, String positiveAction, String negativeAction) {
+            this.eventFlags = (byte) (eventFlags & PRE_EXISTING_MASK);
+            this.categoryId = categoryId;
+            this.contentHash = contentHash;
+            this.appId = appId;
+            this.title = title;
+            this.message = message;
+            this.positiveAction = positiveAction;
+            this.negativeAction = negativeAction;
+        }
+
+        public byte getCategoryId() {
+            return categoryId;
+        }
+
+        /**
+         * True if an event may be about this notification. UIDs start over when the iOS device
+         * restarts, so a match still has to be checked against the attributes.
+         */
+        public boolean matches(byte eventFlags, byte categoryId) {
+            return this.categoryId == categoryId && this.eventFlags == (byte) (eventFlags & PRE_EXISTING_MASK);
+        }
+
+        public boolean isPosted() {
+            return posted;
+        }
+
+        /**
+         * Fills a notification decoded from a Notification Source event with the stored attributes.
+         */
+        public void restore(NotificationData notificationData) {
+            notificationData.setAppId(appId);
+            notificationData.setTitle(title);
+            notificationData.setMessage(message);
+            notificationData.setPositiveAction(positiveAction);
+            notificationData.setNegativeAction(negativeAction);
+        }
+    }
+
+
+    private final File file;
+    private final IntObjectMap<Entry> entries = new IntObjectMap<>(64);
+    private DataOutputStream out;
+    private int recordCount;
+    // Records are encoded here first, so a failure never leaves half of one in the log
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBuffer);
+
+
+    public NotificationStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the log file, if any, and opens it for appending.
+     */
+    public void load() {
+        if (file == null) {
+            return;
+        }
+
+        if (file.exists()) {
+            DataInputStream in = null;
+
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+                while (true) {
+                    byte type = in.readByte();
+                    int UID = in.readInt();
+
+                    if (type == RECORD_PUT) {
+                        byte eventFlags = in.readByte();
+                        byte categoryId = in.readByte();
+                        int contentHash = in.readInt();
+                        entries.put(UID, new Entry(eventFlags, categoryId, contentHash, readString(in), readString(in), readString(in), readString(in), readString(in)));
+                    }
+                    else if (type == RECORD_PUT_UTF) {
+                        byte eventFlags = in.readByte();
+                        byte categoryId = in.readByte();
+                        int contentHash = in.readInt();
+                        entries.put(UID, new Entry(eventFlags, categoryId, contentHash, in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF()));
+                    }
+                    else if (type == RECORD_REMOVE) {
+                        entries.remove(UID);
+                    }
+                    else {
+                        throw new IOException("Unknown record " + type);
+                    }
+                }
+            }
+            catch (EOFException e) {
+                // End of the log, a partially written last record is dropped
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        Log.d(TAG_LOG, "Loaded " + entries.size() + " notifications");
+
+        compact();
+    }
+
+    public Entry get(int UID) {
+        return entries.get(UID);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Stores the attributes of a notification as they arrived from the iOS device. Returns false if
+     * they are the same already stored and its card was posted, there is nothing to update then.
+     */
+    public boolean put(NotificationData notificationData) {
+        int UID = notificationData.getPackedUID();
+        int contentHash = contentHash(notificationData);
+
+        Entry entry = entries.get(UID);
+
+        if (entry != null && entry.contentHash == contentHash && entry.matches(notificationData.getEventFlags(), notificationData.getCategoryId())) {
+            entry.seen = true;
+
+            if (entry.posted) {
+                return false;
+            }
+
+            entry.posted = true;
+            return true;
+        }
+
+        entry = new Entry(notificationData.getEventFlags(), notificationData.getCategoryId(), contentHash,
+                nonNull(notificationData.getAppId()), nonNull(notificationData.getTitle()), nonNull(notificationData.getMessage()),
+                nonNull(notificationData.getPositiveAction()), nonNull(notificationData.getNegativeAction()));
+        entry.posted = true;
+        entry.seen = true;
+        entries.put(UID, entry);
+
+        if (out != null && encodePut(UID, entry)) {
+            try {
+                recordBuffer.writeTo(out);
+                out.flush();
+
+                recordWritten();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                closeFile();
+            }
+        }
+
+        return true;
+    }
+
+    public void remove(int UID) {
+        if (entries.remove(UID) == null) {
+            return;
+        }
+
+        if (out != null) {
+            try {
+                out.writeByte(RECORD_REMOVE);
+                out.writeInt(UID);
+                out.flush();
+
+                recordWritten();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                closeFile();
+            }
+        }
+    }
+
+    public void markSeen(int UID) {
+        Entry entry = entries.get(UID);
+
+        if (entry != null) {
+            entry.seen = true;
+        }
+    }
+
+    /**
+     * Starts a new connection, every entry has to be announced again to be kept.
+     */
+    public void markAllUnseen() {
+        for (int i = 0; i < entries.capacity(); i++) {
+            Entry entry = entries.valueAt(i);
+
+            if (entry != null) {
+                entry.seen = false;
+            }
+        }
+    }
+
+    /**
+     * Removes the entries that haven't been announced during the current connection, they were
+     * removed from the iOS device while disconnected. Returns their UIDs.
+     */
+    public List<Integer> removeUnseen() {
+        List<Integer> removed = new ArrayList<>();
+
+        for (int i = 0; i < entries.capacity(); i++) {
+            Entry entry = entries.valueAt(i);
+
+            if (entry != null && !entry.seen) {
+                removed.add(entries.keyAt(i));
+            }
+        }
+
+        for (int UID : removed) {
+            remove(UID);
+        }
+
+        return removed;
+    }
+
+    public void close() {
+        closeFile();
+    }
+
+    private void recordWritten() {
+        recordCount++;
+
+        if (recordCount > MIN_COMPACT_RECORDS && recordCount > 2 * entries.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with one record per live entry and reopens it for appending.
+     */
+    private void compact() {
+        closeFile();
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream tmpOut = null;
+
+        try {
+            tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            for (int i = 0; i < entries.capacity(); i++) {
+                Entry entry = entries.valueAt(i);
+
+                // An entry that can't be encoded is only kept in memory
+                if (entry != null && encodePut(entries.keyAt(i), entry)) {
+                    recordBuffer.writeTo(tmpOut);
+                }
+            }
+
+            tmpOut.close();
+            tmpOut = null;
+
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+
+            recordCount = entries.size();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        catch (IOException e) {
+            // Keep working in memory only
+            e.printStackTrace();
+
+            if (tmpOut != null) {
+                try {
+                    tmpOut.close();
+                }
+                catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes a put record into recordBuffer, returns false if it couldn't be encoded.
+     */
+    private boolean encodePut(int UID, Entry entry) {
+        recordBuffer.reset();
+
+        try {
+            record.writeByte(RECORD_PUT);
+            record.writeInt(UID);
+            record.writeByte(entry.eventFlags);
+            record.writeByte(entry.categoryId);
+            record.writeInt(entry.contentHash);
+            writeString(record, entry.appId);
+            writeString(record, entry.title);
+            writeString(record, entry.message);
+            writeString(record, entry.positiveAction);
+            writeString(record, entry.negativeAction);
+            record.flush();
+
+            return true;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            recordBuffer.reset();
+
+            return false;
+        }
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            out = null;
+        }
+    }
+
+    static int contentHash(NotificationData notificationData) {
+        int hash = nonNull(notificationData.getAppId()).hashCode();
+        hash = 31 * hash + nonNull(notificationData.getTitle()).hashCode();
+        hash = 31 * hash + nonNull(notificationData.getMessage()).hashCode();
+        hash = 31 * hash + nonNull(notificationData.getPositiveAction()).hashCode();
+        hash = 31 * hash + nonNull(notificationData.getNegativeAction()).hashCode();
+
+        return hash;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IOException("String of " + bytes.length + " bytes");
+        }
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String nonNull(String string) {
+        return string != null ? string : "";
+    }
+
+}
@@ -2,10 +2,7 @@ package com.codegy.ioswearconnect;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Created by kusabuka on 15/03/15.
@@ -13,54 +10,86 @@ import java.util.Arrays;
 public class PacketProcessor {
 
     private enum PacketProcessingStatus {
+        Idle,
         Init,
-        AppId,
-        Title,
-        Message,
-        PositiveAction,
-        NegativeAction,
+        AttributeHeader,
+        AttributeValue,
         Finished
     }
 
     private static final String TAG_LOG = "PacketProcessor";
 
+    // Command ID followed by the notification UID
+    private static final int RESPONSE_HEADER_LENGTH = 5;
+    // Attribute ID followed by a 2-bytes length
+    private static final int ATTRIBUTE_HEADER_LENGTH = 3;
+
+    private final FragmentBuffer buffer = new FragmentBuffer();
+
     private NotificationData notificationData;
-    private ByteArrayOutputStream processingAttribute;
 
-    private byte[] bytesFromPreviousPacket;
-    // The number of bytes left to process on the current packet
-    private int bytesLeftToProcess;
-    // The number of bytes of the current attribute being processed that are in the next packet
-    private int attributeBytesInNextPacket;
+    private int attributeId;
+    private int attributeLength;
+    // The number of attributes still expected on the current response
+    private int attributesLeft;
+    // Data Source packets the current response arrived in
+    private int fragmentCount;
 
-    private PacketProcessingStatus processingStatus;
+    private PacketProcessingStatus processingStatus = PacketProcessingStatus.Idle;
 
 
-    public PacketProcessor(NotificationData notificationData) {
-        processingStatus = PacketProcessingStatus.Init;
+    public PacketProcessor() {
+    }
 
-        bytesLeftToProcess = 0;
-        attributeBytesInNextPacket = 0;
-        bytesFromPreviousPacket = new byte[] {};
+    public PacketProcessor(NotificationData notificationData) {
+        start(notificationData);
+    }
 
-        processingAttribute = new ByteArrayOutputStream();
+    /**
+     * Prepares the processor to reassemble the response for the given notification, the internal
+     * buffers are reused between notifications.
+     */
+    public void start(NotificationData notificationData) {
+        buffer.clear();
+        fragmentCount = 0;
 
         this.notificationData = notificationData;
+
+        if (notificationData == null) {
+            processingStatus = PacketProcessingStatus.Idle;
+            return;
+        }
+
+        // App identifier, title and message are always requested
+        attributesLeft = 3;
+        if (notificationData.hasPositiveAction()) {
+            attributesLeft++;
+        }
+        if (notificationData.hasNegativeAction()) {
+            attributesLeft++;
+        }
+
+        processingStatus = PacketProcessingStatus.Init;
+    }
+
+    public void reset() {
+        start(null);
     }
 
     public NotificationData getNotificationData() {
         return notificationData;
     }
 
-    public boolean hasFinishedProcessing() {
-        return processingStatus == PacketProcessingStatus.Finished || notificationData == null;
+    public int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    public boolean isProcessing() {
+        return processingStatus != PacketProcessingStatus.Idle;
     }
 
-    private int getAttributeLength(byte[] packet, int lengthIndex){
-        //get att0's length
-        byte[] byteLength = {packet[lengthIndex + 2], packet[lengthIndex + 1]};
-        BigInteger length = new BigInteger(byteLength);
-        return length.intValue();
+    public boolean hasFinishedProcessing() {
+        return processingStatus == PacketProcessingStatus.Finished || notificationData == null;
     }
 
     public static byte[] concat(byte[] a, byte[] b) {
@@ -72,191 +101,89 @@ public class PacketProcessor {
         return c;
     }
 
-    private void updateProcessingStatus() {
-        switch (processingStatus) {
-            case Init:
-                Log.d(TAG_LOG, "$$$ init -> app_id.");
-                processingStatus = PacketProcessingStatus.Title;
-                break;
-            case AppId:
-                Log.d(TAG_LOG, "$$$ finish app id reading.");
-                processingStatus = PacketProcessingStatus.Title;
-                try {
-                    notificationData.setAppId(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(TAG_LOG, "$$$ app_id : " + notificationData.getAppId());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case Title:
-                Log.d(TAG_LOG, "$$$ finish title  reading.");
-                processingStatus = PacketProcessingStatus.Message;
-                try {
-                    notificationData.setTitle(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(TAG_LOG, "$$$ title : " + notificationData.getTitle());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case Message:
-                Log.d(TAG_LOG, "$$ finish message  reading.");
-                if (notificationData.hasPositiveAction()) {
-                    processingStatus = PacketProcessingStatus.PositiveAction;
-                }
-                else if (notificationData.hasNegativeAction()) {
-                    processingStatus = PacketProcessingStatus.NegativeAction;
-                }
-                else {
-                    processingStatus = PacketProcessingStatus.Finished;
-                }
-
-                try {
-                    notificationData.setMessage(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(TAG_LOG, "$$ message : " + notificationData.getMessage());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case PositiveAction:
-                Log.d(TAG_LOG, "$$ finish positiveAction  reading.");
-
-                if (notificationData.hasNegativeAction()) {
-                    processingStatus = PacketProcessingStatus.NegativeAction;
-                }
-                else {
-                    processingStatus = PacketProcessingStatus.Finished;
-                }
-
-                try {
-                    notificationData.setPositiveAction(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(TAG_LOG, "$$ positiveAction : " + notificationData.getPositiveAction());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case NegativeAction:
-                Log.d(TAG_LOG, "$$ finish negativeAction  reading.");
-                processingStatus = PacketProcessingStatus.Finished;
-                try {
-                    notificationData.setNegativeAction(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(TAG_LOG, "$$ negativeAction : " + notificationData.getNegativeAction());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            default:
-                Log.d(TAG_LOG, "$$.");
-                break;
-        }
-    }
-
     public void process(byte[] packet) {
-        // Get size of received data
-        packet = concat(bytesFromPreviousPacket, packet);
-        bytesLeftToProcess = packet.length;
-        bytesFromPreviousPacket = new byte[] {};
-
-        int attributeIndex;
-
-        while (bytesLeftToProcess > 0) {
-            if (attributeBytesInNextPacket > 0) {
-                // Still processing attribute started in a previous packet
-
-                if (bytesLeftToProcess < attributeBytesInNextPacket) {
-                    // The attribute is still not finished with this packet
-
-                    // Save attribute data
-                    processingAttribute.write(packet, 0, bytesLeftToProcess);
-
-                    // Update bytes left of current attribute
-                    attributeBytesInNextPacket -= bytesLeftToProcess;
-
-                    // All bytes have been processed
-                    bytesLeftToProcess = 0;
-                }
-                else {
-                    // The attribute ends in this packet
-
-                    // Save attribute data
-                    processingAttribute.write(packet, 0, attributeBytesInNextPacket);
-
-                    // There may be bytes of another attribute left in this packet
-                    bytesLeftToProcess -= attributeBytesInNextPacket;
+        if (hasFinishedProcessing()) {
+            return;
+        }
 
-                    if (bytesLeftToProcess > 0 && bytesLeftToProcess <= 2) {
-                        // Not enough bytes to start processing next attribute
+        buffer.add(packet);
+        fragmentCount++;
 
-                        // Save bytes for next packet
-                        bytesFromPreviousPacket = Arrays.copyOfRange(packet, attributeBytesInNextPacket, packet.length);
-                        bytesLeftToProcess = 0;
+        while (true) {
+            switch (processingStatus) {
+                case Init:
+                    if (buffer.available() < RESPONSE_HEADER_LENGTH) {
+                        return;
                     }
 
-                    // This attribute's bytes have been processed
-                    attributeBytesInNextPacket = 0;
-
-                    updateProcessingStatus();
-                }
-            }
-            else if (bytesLeftToProcess > 0) {
-                // Attribute index
-                if (processingStatus == PacketProcessingStatus.Init) {
-                    // Previous bytes' data is already known
-                    attributeIndex = 5;
-                    processingStatus = PacketProcessingStatus.AppId;
-                }
-                else {
-                    attributeIndex = packet.length - bytesLeftToProcess;
-                }
-
-                // Length of attribute to read
-                int attributeLength = getAttributeLength(packet, attributeIndex);
-
-                // Not counting bytes offering attribute length info
-                int bytesInCurrentPacket = packet.length - (attributeIndex + 3);
-
-                if (bytesInCurrentPacket < attributeLength) {
-                    // The attribute is divided
-
-                    // Save attribute data
-                    processingAttribute.write(packet, attributeIndex + 3, bytesInCurrentPacket);
+                    // Command and UID are already known
+                    buffer.skip(RESPONSE_HEADER_LENGTH);
+                    processingStatus = PacketProcessingStatus.AttributeHeader;
 
-                    // Update bytes left of current attribute
-                    attributeBytesInNextPacket = attributeLength - bytesInCurrentPacket;
-
-                    // All bytes have been processed
-                    bytesLeftToProcess = 0;
-                }
-                else {
-                    // The attribute ends in this packet
-
-                    // Save attribute data
-                    processingAttribute.write(packet, attributeIndex + 3, attributeLength);
+                    break;
+                case AttributeHeader:
+                    if (buffer.available() < ATTRIBUTE_HEADER_LENGTH) {
+                        // Wait for the rest of the attribute header
+                        return;
+                    }
 
-                    // This attribute's bytes have been processed
-                    attributeBytesInNextPacket = 0;
+                    attributeId = buffer.readByte();
+                    attributeLength = buffer.readUInt16();
+                    processingStatus = PacketProcessingStatus.AttributeValue;
 
-                    // There may be bytes of another attribute left in this packet
-                    bytesLeftToProcess = bytesInCurrentPacket - attributeLength;
+                    break;
+                case AttributeValue:
+                    if (buffer.available() < attributeLength) {
+                        // The attribute continues in the next packet
+                        return;
+                    }
 
-                    if (bytesLeftToProcess > 0 && bytesLeftToProcess <= 2) {
-                        // Not enough bytes to start processing next attribute
+                    buffer.readSlice(attributeLength);
+                    setAttribute(attributeId, new String(buffer.getSliceArray(), buffer.getSliceOffset(), buffer.getSliceLength(), StandardCharsets.UTF_8));
 
-                        // Offset of processed bytes
-                        int offset = attributeIndex + 3 + attributeLength;
+                    attributesLeft--;
+                    if (attributesLeft > 0) {
+                        processingStatus = PacketProcessingStatus.AttributeHeader;
+                    }
+                    else {
+                        processingStatus = PacketProcessingStatus.Finished;
 
-                        // Save bytes for next packet
-                        bytesFromPreviousPacket = Arrays.copyOfRange(packet, offset, packet.length);
-                        bytesLeftToProcess = 0;
+                        // Any trailing bytes are not part of this response
+                        buffer.clear();
                     }
 
-                    updateProcessingStatus();
-                }
+                    break;
+                default:
+                    return;
             }
         }
     }
+
+    private void setAttribute(int attributeId, String value) {
+        switch (attributeId) {
+            case ServicesConstants.NotificationAttributeIDAppIdentifier:
+                notificationData.setAppId(value);
+                Log.d(TAG_LOG, "$$$ app_id : " + value);
+                break;
+            case ServicesConstants.NotificationAttributeIDTitle:
+                notificationData.setTitle(value);
+                Log.d(TAG_LOG, "$$$ title : " + value);
+                break;
+            case ServicesConstants.NotificationAttributeIDMessage:
+                notificationData.setMessage(value);
+                Log.d(TAG_LOG, "$$ message : " + value);
+                break;
+            case ServicesConstants.NotificationAttributeIDPositiveActionLabel:
+                notificationData.setPositiveAction(value);
+                Log.d(TAG_LOG, "$$ positiveAction : " + value);
+                break;
+            case ServicesConstants.NotificationAttributeIDNegativeActionLabel:
+                notificationData.setNegativeAction(value);
+                Log.d(TAG_LOG, "$$ negativeAction : " + value);
+                break;
+            default:
+                Log.d(TAG_LOG, "$$ unexpected attribute: " + attributeId);
+                break;
+        }
+    }
 }
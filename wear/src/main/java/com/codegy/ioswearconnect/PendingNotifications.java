@@ -0,0 +1,215 @@
+package com.codegy.ioswearconnect;
+
+import android.util.Log;
+
+/**
+ * Notifications waiting for their GetNotificationAttributes response, keyed by notification UID.
+ *
+ * Every entry carries its own deadline so a response that never arrives only drops its own
+ * notification. The table is bounded, when full the entry closest to its deadline is dropped.
+ *
+ * Entries only keep the event's fields and are recycled, the NotificationData is created once its
+ * response starts arriving, so tracking an event allocates nothing.
+ */
+public class PendingNotifications {
+
+    private static final String TAG_LOG = "PendingNotifications";
+
+    public static final int MAX_SIZE = 256;
+
+
+    private static class Entry {
+        int UID;
+        byte eventFlags;
+        byte categoryId;
+        long eventTime;
+        long requestTime;
+        long deadline;
+    }
+
+    private final IntObjectMap<Entry> entries = new IntObjectMap<>(MAX_SIZE);
+    // Recycled entries
+    private final Entry[] pool = new Entry[MAX_SIZE];
+    private int poolSize;
+
+    private int expiredCount = 0;
+    private int evictedCount = 0;
+
+
+    public void put(int UID, byte eventFlags, byte categoryId, long eventTime, long deadline) {
+        // A modified notification replaces the previous request
+        Entry entry = entries.get(UID);
+
+        if (entry == null) {
+            if (entries.size() >= MAX_SIZE) {
+                evictOldest();
+            }
+
+            entry = obtain();
+            entry.UID = UID;
+            entries.put(UID, entry);
+        }
+
+        entry.eventFlags = eventFlags;
+        entry.categoryId = categoryId;
+        entry.eventTime = eventTime;
+        entry.requestTime = -1;
+        entry.deadline = deadline;
+    }
+
+    /**
+     * Returns the time of the event that added the notification, or -1 if it isn't pending.
+     */
+    public long getEventTime(int UID) {
+        Entry entry = entries.get(UID);
+
+        return entry != null ? entry.eventTime : -1;
+    }
+
+    public void setRequestTime(int UID, long requestTime) {
+        Entry entry = entries.get(UID);
+
+        if (entry != null) {
+            entry.requestTime = requestTime;
+        }
+    }
+
+    /**
+     * Removes the notification and returns its NotificationData, with the event and request times
+     * set, or null if it isn't pending.
+     */
+    public NotificationData remove(int UID) {
+        Entry entry = entries.remove(UID);
+
+        if (entry == null) {
+            return null;
+        }
+
+        NotificationData notificationData = new NotificationData(entry.UID, entry.eventFlags, entry.categoryId);
+        notificationData.setEventTime(entry.eventTime);
+        notificationData.setRequestTime(entry.requestTime);
+
+        recycle(entry);
+
+        return notificationData;
+    }
+
+    /**
+     * Removes the notification without creating its NotificationData, returns false if it wasn't
+     * pending.
+     */
+    public boolean discard(int UID) {
+        Entry entry = entries.remove(UID);
+
+        if (entry == null) {
+            return false;
+        }
+
+        recycle(entry);
+
+        return true;
+    }
+
+    /**
+     * Removes and returns the notification with the UID found at the given offset of the packet.
+     */
+    public NotificationData remove(byte[] packet, int offset) {
+        return remove(NotificationData.packUID(packet, offset));
+    }
+
+    /**
+     * Drops every entry whose deadline has passed.
+     *
+     * @return the closest deadline still pending, or -1 if the table is empty
+     */
+    public long removeExpired(long now) {
+        long nextDeadline = -1;
+
+        for (int i = 0; i < entries.capacity(); ) {
+            Entry entry = entries.valueAt(i);
+
+            if (entry != null && entry.deadline <= now) {
+                // Another entry may take this slot, check it again
+                entries.removeAt(i);
+
+                expiredCount++;
+                Log.d(TAG_LOG, "Attributes never arrived for " + entry.UID);
+
+                recycle(entry);
+
+                continue;
+            }
+
+            if (entry != null && (nextDeadline == -1 || entry.deadline < nextDeadline)) {
+                nextDeadline = entry.deadline;
+            }
+
+            i++;
+        }
+
+        return nextDeadline;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        for (int i = 0; i < entries.capacity(); i++) {
+            Entry entry = entries.valueAt(i);
+
+            if (entry != null) {
+                recycle(entry);
+            }
+        }
+
+        entries.clear();
+    }
+
+    public int getExpiredCount() {
+        return expiredCount;
+    }
+
+    public int getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Recycled entries waiting to be reused.
+     */
+    int getPooledCount() {
+        return poolSize;
+    }
+
+    private void evictOldest() {
+        int oldestIndex = -1;
+
+        for (int i = 0; i < entries.capacity(); i++) {
+            Entry entry = entries.valueAt(i);
+
+            if (entry != null && (oldestIndex == -1 || entry.deadline < entries.valueAt(oldestIndex).deadline)) {
+                oldestIndex = i;
+            }
+        }
+
+        if (oldestIndex != -1) {
+            Entry eldest = entries.removeAt(oldestIndex);
+
+            evictedCount++;
+            Log.w(TAG_LOG, "Too many pending notifications, dropping " + eldest.UID);
+
+            recycle(eldest);
+        }
+    }
+
+    private Entry obtain() {
+        return poolSize > 0 ? pool[--poolSize] : new Entry();
+    }
+
+    private void recycle(Entry entry) {
+        if (poolSize < pool.length) {
+            pool[poolSize++] = entry;
+        }
+    }
+
+}
@@ -101,6 +101,7 @@ public class PhoneActivity extends Activity {
         if (callUID != null) {
             Intent positiveIntent = new Intent(Constants.IA_POSITIVE);
             positiveIntent.putExtra(BLEService.INTENT_EXTRA_UID, callUID);
+            positiveIntent.putExtra(BLEService.INTENT_EXTRA_CALL, true);
 
             sendBroadcast(positiveIntent);
         }
@@ -112,6 +113,7 @@ public class PhoneActivity extends Activity {
         if (callUID != null) {
             Intent negativeIntent = new Intent(Constants.IA_NEGATIVE);
             negativeIntent.putExtra(BLEService.INTENT_EXTRA_UID, callUID);
+            negativeIntent.putExtra(BLEService.INTENT_EXTRA_CALL, true);
 
             sendBroadcast(negativeIntent);
         }
@@ -0,0 +1,171 @@
+package com.codegy.ioswearconnect;
+
+import java.util.UUID;
+
+/**
+ * Passes everything through to another transport and hands the traffic to a GattRecorder:
+ * notifications, read responses, writes that were started and connection changes.
+ */
+public class RecordingGattTransport implements GattTransport {
+
+    private final GattTransport mTransport;
+    private final GattRecorder mRecorder;
+    private final EventLoop mClock;
+
+    private Listener mListener;
+
+
+    /**
+     * Records are stamped with the event loop's time.
+     */
+    public RecordingGattTransport(GattTransport transport, GattRecorder recorder, EventLoop clock) {
+        this.mTransport = transport;
+        this.mRecorder = recorder;
+        this.mClock = clock;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+        mTransport.setListener(listener != null ? mRecordingListener : null);
+    }
+
+    @Override
+    public boolean startScan(String serviceUUID, int scanMode, long reportDelay) {
+        return mTransport.startScan(serviceUUID, scanMode, reportDelay);
+    }
+
+    @Override
+    public void stopScan() {
+        mTransport.stopScan();
+    }
+
+    @Override
+    public boolean connect(String address, boolean autoConnect) {
+        return mTransport.connect(address, autoConnect);
+    }
+
+    @Override
+    public void disconnect() {
+        mTransport.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mTransport.close();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mTransport.discoverServices();
+    }
+
+    @Override
+    public boolean hasService(UUID serviceUUID) {
+        return mTransport.hasService(serviceUUID);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mTransport.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean subscribe(UUID serviceUUID, String characteristic) {
+        return mTransport.subscribe(serviceUUID, characteristic);
+    }
+
+    @Override
+    public boolean write(UUID serviceUUID, String characteristic, byte[] value) {
+        boolean started = mTransport.write(serviceUUID, characteristic, value);
+
+        if (started) {
+            mRecorder.recordWrite(characteristic, value, mClock.now());
+        }
+
+        return started;
+    }
+
+    @Override
+    public boolean read(UUID serviceUUID, String characteristic) {
+        return mTransport.read(serviceUUID, characteristic);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return mTransport.readRemoteRssi();
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return mTransport.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    public int getBondState() {
+        return mTransport.getBondState();
+    }
+
+    @Override
+    public void createBond() {
+        mTransport.createBond();
+    }
+
+    @Override
+    public void removeBond() {
+        mTransport.removeBond();
+    }
+
+    private final Listener mRecordingListener = new Listener() {
+        @Override
+        public void onDeviceFound(String address, String name) {
+            mListener.onDeviceFound(address, name);
+        }
+
+        @Override
+        public void onConnectionStateChange(boolean connected, int status) {
+            mRecorder.recordConnection(connected, mClock.now());
+            mListener.onConnectionStateChange(connected, status);
+        }
+
+        @Override
+        public void onServicesDiscovered(int status) {
+            mListener.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, int status) {
+            mListener.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(String characteristic, int status) {
+            mListener.onDescriptorWrite(characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(String characteristic, byte[] value, int status) {
+            mListener.onCharacteristicWrite(characteristic, value, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(String characteristic, byte[] value, int status) {
+            if (value != null) {
+                mRecorder.recordRead(characteristic, value, mClock.now());
+            }
+            mListener.onCharacteristicRead(characteristic, value, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(String characteristic, byte[] value) {
+            mRecorder.recordNotification(characteristic, value, mClock.now());
+            mListener.onCharacteristicChanged(characteristic, value);
+        }
+
+        @Override
+        public void onReadRemoteRssi(int rssi, int status) {
+            mListener.onReadRemoteRssi(rssi, status);
+        }
+    };
+
+}
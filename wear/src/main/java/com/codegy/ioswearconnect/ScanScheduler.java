@@ -0,0 +1,188 @@
+package com.codegy.ioswearconnect;
+
+import android.bluetooth.le.ScanSettings;
+import android.util.Log;
+
+/**
+ * Scans for the iOS device in duty cycles that get cheaper the longer it stays out of range.
+ *
+ * Scanning starts with a low latency burst, right after a disconnect the phone is most likely
+ * still around. Then it steps down to balanced and low power scans with growing pauses between
+ * them. Low power scans batch their results when the hardware supports it. The time spent
+ * scanning is recorded per scan mode. Used on BLEManager's thread.
+ */
+public class ScanScheduler {
+
+    private static final String TAG_LOG = "ScanScheduler";
+
+
+    private static class Step {
+        final int scanMode;
+        final long onTime;
+        final long offTime;
+        // Windows before the next step, the last step repeats forever
+        final int windows;
+        final long reportDelay;
+
+        Step(int scanMode, long onTime, long offTime, int windows, long reportDelay) {
+            this.scanMode = scanMode;
+            this.onTime = onTime;
+            this.offTime = offTime;
+            this.windows = windows;
+            this.reportDelay = reportDelay;
+        }
+    }
+
+    private static final Step[] STEPS = {
+            new Step(ScanSettings.SCAN_MODE_LOW_LATENCY, 10000, 0, 1, 0),
+            new Step(ScanSettings.SCAN_MODE_BALANCED, 10000, 10000, 6, 0),
+            new Step(ScanSettings.SCAN_MODE_LOW_POWER, 10000, 30000, 6, 2000),
+            new Step(ScanSettings.SCAN_MODE_LOW_POWER, 10000, 120000, 10, 2000),
+            new Step(ScanSettings.SCAN_MODE_LOW_POWER, 10000, 300000, 1, 2000)
+    };
+
+    // Indexed by scan mode, low power, balanced and low latency
+    private static final int SCAN_MODES = 3;
+
+
+    private final EventLoop mEventLoop;
+    private final GattTransport mTransport;
+    private final String serviceUUID;
+
+    private boolean active;
+    private boolean scanning;
+    private int step;
+    private int window;
+    private long scanStartTime;
+
+    private final long[] scanOnTime = new long[SCAN_MODES];
+    private int scanCount;
+
+
+    public ScanScheduler(EventLoop eventLoop, GattTransport transport, String serviceUUID) {
+        this.mEventLoop = eventLoop;
+        this.mTransport = transport;
+        this.serviceUUID = serviceUUID;
+    }
+
+    /**
+     * Starts over from the low latency burst.
+     */
+    public void start() {
+        stop();
+
+        active = true;
+        step = 0;
+        window = 0;
+
+        startWindow();
+    }
+
+    public void stop() {
+        mEventLoop.remove(mStartWindowRunnable);
+        mEventLoop.remove(mEndWindowRunnable);
+
+        stopScan();
+        active = false;
+    }
+
+    /**
+     * Returns true from start() to stop(), including the pauses between scans.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    /**
+     * Returns the time spent scanning with the given ScanSettings scan mode.
+     */
+    public long getScanOnTime(int scanMode) {
+        long time = scanOnTime[scanMode];
+
+        if (scanning && STEPS[step].scanMode == scanMode) {
+            time += mEventLoop.now() - scanStartTime;
+        }
+
+        return time;
+    }
+
+    public long getScanOnTime() {
+        long time = 0;
+
+        for (int scanMode = 0; scanMode < SCAN_MODES; scanMode++) {
+            time += getScanOnTime(scanMode);
+        }
+
+        return time;
+    }
+
+    public int getScanCount() {
+        return scanCount;
+    }
+
+    @Override
+    public String toString() {
+        return "scans=" + scanCount + " on=" + getScanOnTime() + "ms"
+                + " lowLatency=" + getScanOnTime(ScanSettings.SCAN_MODE_LOW_LATENCY) + "ms"
+                + " balanced=" + getScanOnTime(ScanSettings.SCAN_MODE_BALANCED) + "ms"
+                + " lowPower=" + getScanOnTime(ScanSettings.SCAN_MODE_LOW_POWER) + "ms";
+    }
+
+    private final Runnable mStartWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startWindow();
+        }
+    };
+
+    private final Runnable mEndWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    };
+
+    private void startWindow() {
+        Step current = STEPS[step];
+
+        scanning = mTransport.startScan(serviceUUID, current.scanMode, current.reportDelay);
+
+        if (scanning) {
+            Log.d(TAG_LOG, "Scanning, mode " + current.scanMode);
+
+            scanStartTime = mEventLoop.now();
+            scanCount++;
+        }
+
+        // Bluetooth may be off, try again on the next window
+        mEventLoop.postDelayed(mEndWindowRunnable, current.onTime);
+    }
+
+    private void endWindow() {
+        Step current = STEPS[step];
+
+        stopScan();
+
+        window++;
+        if (window >= current.windows && step < STEPS.length - 1) {
+            step++;
+            window = 0;
+        }
+
+        mEventLoop.postDelayed(mStartWindowRunnable, current.offTime);
+    }
+
+    private void stopScan() {
+        if (scanning) {
+            mTransport.stopScan();
+            scanning = false;
+
+            scanOnTime[STEPS[step].scanMode] += mEventLoop.now() - scanStartTime;
+        }
+    }
+
+}
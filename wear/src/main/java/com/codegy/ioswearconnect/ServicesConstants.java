@@ -17,6 +17,14 @@ public class ServicesConstants {
     public static final byte EventIDNotificationModified = 0x01;
     public static final byte EventIDNotificationRemoved = 0x02;
 
+    public static final byte EventFlagSilent = 1;
+    public static final byte EventFlagImportant = 1 << 1;
+    public static final byte EventFlagPreExisting = 1 << 2;
+    public static final byte EventFlagPositiveAction = 1 << 3;
+    public static final byte EventFlagNegativeAction = 1 << 4;
+
+    public static final byte CategoryIDIncomingCall = 0x01;
+
     public static final byte CommandIDGetNotificationAttributes = 0x00;
     public static final byte CommandIDGetAppAttributes = 0x01;
     public static final byte CommandIDPerformNotificationAction = 0x02;
@@ -30,6 +38,8 @@ public class ServicesConstants {
     public static final byte NotificationAttributeIDPositiveActionLabel = 0x06;
     public static final byte NotificationAttributeIDNegativeActionLabel = 0x07;
 
+    public static final byte AppAttributeIDDisplayName = 0x00;
+
     public static final byte ActionIDPositive = 0x00;
     public static final byte ActionIDNegative = 0x01;
 
@@ -65,6 +75,8 @@ public class ServicesConstants {
     public static final byte PlayerAttributeIDPlaybackInfo = 0x01;
     public static final byte PlayerAttributeIDVolume = 0x02;
 
+    public static final byte EntityUpdateFlagTruncated = 1;
+
 
     // BAS - Battery Service
     public static final UUID UUID_BAS = UUID.fromString("0000180F-0000-1000-8000-00805f9b34fb");
@@ -0,0 +1,74 @@
+package com.codegy.ioswearconnect;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms of the stages a notification goes through, from the Notification Source event
+ * to its card being posted. Each owner records the stages it sees, recording doesn't allocate.
+ */
+public class StageLatency {
+
+    public enum Stage {
+        // Notification Source event until its Get Notification Attributes command is written
+        Request("event -> request written"),
+        // Command written until the first Data Source fragment of its response
+        FirstFragment("request -> first fragment"),
+        // First fragment until the attributes are reassembled
+        Reassembly("first fragment -> reassembled"),
+        // Attributes reassembled until NotificationManager.notify() returns, coalescing included
+        Post("reassembled -> posted"),
+        // Notification Source event until NotificationManager.notify() returns
+        EndToEnd("event -> posted");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+
+
+    public StageLatency() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records a stage from its start and end times, nothing is recorded if either is unknown.
+     */
+    public void record(Stage stage, long startTime, long endTime) {
+        if (startTime < 0 || endTime < 0) {
+            return;
+        }
+
+        histograms[stage.ordinal()].record(endTime - startTime);
+    }
+
+    public LatencyHistogram get(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Writes the stages that have been recorded, one per line.
+     */
+    public void dump(PrintWriter writer) {
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+
+            if (histogram.getCount() > 0) {
+                writer.println(stage.getLabel() + ": " + histogram);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AppRegistryTest {
+
+    private AppRegistry registry;
+
+
+    @Before
+    public void setUp() throws Exception {
+        // Profiles bundled with the app, added to the test resources by the build
+        registry = new AppRegistry();
+        registry.read(new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/app_profiles.txt"), StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void loadsBundledProfiles() {
+        assertTrue(registry.size() > 0);
+
+        AppProfile whatsApp = registry.get("net.whatsapp.WhatsApp");
+        assertEquals(R.drawable.ic_whatsapp, whatsApp.getAppIcon());
+        assertEquals(0xff43c354, whatsApp.getBackgroundColor());
+        assertEquals(AppProfile.ParseRule.SenderBody, whatsApp.getParseRule());
+
+        assertEquals(AppProfile.ParseRule.None, registry.get("com.apple.mobilemail").getParseRule());
+    }
+
+    @Test
+    public void senderBodyRuleSplitsTheMessage() {
+        NotificationData notificationData = notification("net.whatsapp.WhatsApp", "Group", "Alice: See you at 8: sharp");
+        registry.get(notificationData.getAppId()).apply(notificationData);
+
+        assertEquals("Alice", notificationData.getTitle());
+        assertEquals("See you at 8: sharp", notificationData.getMessage());
+        assertEquals(R.drawable.ic_whatsapp, notificationData.getAppIcon());
+
+        // Nothing to split, or no sender before the separator
+        notificationData = notification("net.whatsapp.WhatsApp", "Alice", "No sender here");
+        registry.get(notificationData.getAppId()).apply(notificationData);
+        assertEquals("Alice", notificationData.getTitle());
+        assertEquals("No sender here", notificationData.getMessage());
+
+        notificationData = notification("net.whatsapp.WhatsApp", "Alice", ": leading separator");
+        registry.get(notificationData.getAppId()).apply(notificationData);
+        assertEquals("Alice", notificationData.getTitle());
+        assertEquals(": leading separator", notificationData.getMessage());
+    }
+
+    @Test
+    public void noneRuleKeepsTheMessage() {
+        NotificationData notificationData = notification("com.apple.mobilemail", "Subject", "Alice: hello");
+        registry.get(notificationData.getAppId()).apply(notificationData);
+
+        assertEquals("Subject", notificationData.getTitle());
+        assertEquals("Alice: hello", notificationData.getMessage());
+        assertEquals(R.drawable.ic_mail, notificationData.getAppIcon());
+    }
+
+    @Test
+    public void overridesTakePrecedence() {
+        assertTrue(registry.putOverride("com.apple.mobilemail", "ic_whatsapp 112233 sender"));
+
+        AppProfile mail = registry.get("com.apple.mobilemail");
+        assertEquals(R.drawable.ic_whatsapp, mail.getAppIcon());
+        assertEquals(0xff112233, mail.getBackgroundColor());
+        assertEquals(AppProfile.ParseRule.SenderBody, mail.getParseRule());
+
+        // Invalid overrides leave the profile alone
+        assertFalse(registry.putOverride("com.apple.mobilemail", "ic_missing 112233 sender"));
+        assertFalse(registry.putOverride("com.apple.mobilemail", "- 12345 -"));
+        assertFalse(registry.putOverride("com.apple.mobilemail", "- - body"));
+        assertSame(mail, registry.get("com.apple.mobilemail"));
+
+        registry.removeOverride("com.apple.mobilemail");
+        assertEquals(R.drawable.ic_mail, registry.get("com.apple.mobilemail").getAppIcon());
+        assertEquals(AppProfile.ParseRule.None, registry.get("com.apple.mobilemail").getParseRule());
+    }
+
+    @Test
+    public void missesShareTheUnknownProfile() {
+        assertSame(AppProfile.UNKNOWN, registry.get("com.example.unknown"));
+        assertSame(AppProfile.UNKNOWN, registry.get("com.example.unknown"));
+        assertSame(AppProfile.UNKNOWN, registry.get(null));
+
+        NotificationData notificationData = notification("com.example.unknown", "Title", "Sender: body");
+        int backgroundColor = notificationData.getBackgroundColor();
+        registry.get(notificationData.getAppId()).apply(notificationData);
+        assertEquals("Title", notificationData.getTitle());
+        assertEquals("Sender: body", notificationData.getMessage());
+        assertEquals(backgroundColor, notificationData.getBackgroundColor());
+
+        // A miss isn't remembered past an override for the app
+        assertTrue(registry.putOverride("com.example.unknown", "- - sender"));
+        assertEquals(AppProfile.ParseRule.SenderBody, registry.get("com.example.unknown").getParseRule());
+    }
+
+    @Test
+    public void skipsInvalidLines() throws Exception {
+        AppRegistry registry = new AppRegistry();
+        registry.read(new BufferedReader(new StringReader("# comment\n\ncom.example.a - - -\ncom.example.b - -\ncom.example.c - zzzzzz -\n")));
+
+        assertEquals(1, registry.size());
+        assertEquals(AppProfile.ParseRule.None, registry.get("com.example.a").getParseRule());
+        assertSame(AppProfile.UNKNOWN, registry.get("com.example.b"));
+    }
+
+
+    private static NotificationData notification(String appId, String title, String message) {
+        return new NotificationData(new byte[] { 1, 0, 0, 0 }, appId, title, message, "", "");
+    }
+
+}
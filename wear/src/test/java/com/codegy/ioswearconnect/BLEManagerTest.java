@@ -0,0 +1,713 @@
+package com.codegy.ioswearconnect;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives BLEManager end to end against FakeIOSPeripheral on a virtual clock.
+ */
+public class BLEManagerTest {
+
+    private static final byte CATEGORY_OTHER = 0;
+    private static final byte CATEGORY_INCOMING_CALL = 1;
+    private static final byte CATEGORY_SOCIAL = 4;
+
+
+    private static class RecordingCallback implements BLEManager.BLEManagerCallback {
+        final VirtualEventLoop eventLoop;
+        final List<BLEManager.BLEManagerState> states = new ArrayList<>();
+        final Map<String, NotificationData> notifications = new HashMap<>();
+        final List<String> canceled = new ArrayList<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final Map<String, Long> postTimes = new HashMap<>();
+        final List<String> mediaAttributes = new ArrayList<>();
+        NotificationData incomingCall;
+        int batteryLevel = -1;
+        long lastDeliveryTime;
+
+        RecordingCallback(VirtualEventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        BLEManager.BLEManagerState getState() {
+            return states.isEmpty() ? BLEManager.BLEManagerState.Disconnected : states.get(states.size() - 1);
+        }
+
+        @Override
+        public void onConnectionStateChange(BLEManager.BLEManagerState state) {
+            states.add(state);
+        }
+
+        @Override
+        public void onIncomingCall(NotificationData notificationData) {
+            incomingCall = notificationData;
+            delivered(notificationData);
+        }
+
+        @Override
+        public void onCallEnded() {
+            incomingCall = null;
+        }
+
+        @Override
+        public void onNotificationReceived(NotificationData notificationData) {
+            notifications.put(notificationData.getUIDString(), notificationData);
+            delivered(notificationData);
+        }
+
+        @Override
+        public void onNotificationCanceled(String notificationId) {
+            notifications.remove(notificationId);
+            canceled.add(notificationId);
+        }
+
+        @Override
+        public boolean shouldUpdateBatteryLevel() {
+            return batteryLevel == -1;
+        }
+
+        @Override
+        public void onBatteryLevelChanged(int newBatteryLevel) {
+            batteryLevel = newBatteryLevel;
+        }
+
+        @Override
+        public void onMediaDataUpdated(byte[] packet, String attribute) {
+            mediaAttributes.add(attribute);
+        }
+
+        private void delivered(NotificationData notificationData) {
+            Long postTime = postTimes.get(notificationData.getUIDString());
+
+            if (postTime != null) {
+                latency.record(eventLoop.now() - postTime);
+            }
+
+            lastDeliveryTime = eventLoop.now();
+        }
+    }
+
+
+    private VirtualEventLoop eventLoop;
+    private FakeIOSPeripheral peripheral;
+    private RecordingCallback callback;
+    private BLEManager manager;
+
+
+    @Before
+    public void setUp() {
+        eventLoop = new VirtualEventLoop();
+        peripheral = new FakeIOSPeripheral(eventLoop);
+        callback = new RecordingCallback(eventLoop);
+        manager = new BLEManager(callback, peripheral, eventLoop, new NotificationStore(null), new AppNameCache(null), null, null, 0);
+    }
+
+    @Test
+    public void connectsAndSubscribes() {
+        peripheral.setTrackAttribute(ServicesConstants.TrackAttributeIDTitle, "Song");
+        connect();
+
+        assertEquals(BLEManager.BLEManagerState.Connecting, callback.states.get(0));
+        assertTrue(peripheral.isSubscribed(ServicesConstants.CHARACTERISTIC_DATA_SOURCE));
+        assertTrue(peripheral.isSubscribed(ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE));
+        assertTrue(peripheral.isSubscribed(ServicesConstants.CHARACTERISTIC_REMOTE_COMMAND));
+        assertTrue(peripheral.isSubscribed(ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE));
+        assertTrue(peripheral.isSubscribed(ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL));
+        assertEquals(2, peripheral.getWrites(ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE).size());
+
+        eventLoop.advance(1000);
+
+        assertEquals(80, callback.batteryLevel);
+        assertTrue(callback.mediaAttributes.contains("Song"));
+    }
+
+    @Test
+    public void deliversAndCancelsNotification() {
+        connect();
+
+        peripheral.postNotification(42, (byte) 0, CATEGORY_SOCIAL, "com.apple.MobileSMS", "John", "A message long enough to be split in several packets");
+        eventLoop.advance(1000);
+
+        NotificationData notificationData = callback.notifications.get("42");
+        assertNotNull(notificationData);
+        assertEquals("com.apple.MobileSMS", notificationData.getAppId());
+        assertEquals("John", notificationData.getTitle());
+        assertEquals("A message long enough to be split in several packets", notificationData.getMessage());
+
+        peripheral.removeNotification(42);
+        eventLoop.advance(1000);
+
+        assertEquals(0, callback.notifications.size());
+        assertEquals("42", callback.canceled.get(0));
+    }
+
+    @Test
+    public void reassemblesAtAnyMtu() {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            message.append("L\u00ednea ").append(i).append(" \u2603 ");
+        }
+
+        for (int peripheralMtu : new int[] { 23, 24, 30, 64, 185, 517, 1024 }) {
+            setUp();
+            peripheral.setMtu(peripheralMtu);
+            connect();
+
+            int mtu = Math.min(peripheralMtu, 517);
+            assertEquals(mtu, manager.getMtu());
+            assertEquals(mtu, peripheral.getAttMtu());
+
+            peripheral.postNotification(5, (byte) 0, CATEGORY_SOCIAL, "com.apple.MobileSMS", "John", message.toString());
+            peripheral.postNotification(6, (byte) 0, CATEGORY_SOCIAL, "com.apple.MobileSMS", "Jane", "Short");
+            eventLoop.advance(5000);
+
+            assertEquals(message.toString(), callback.notifications.get("5").getMessage());
+            assertEquals("Short", callback.notifications.get("6").getMessage());
+
+            // Header, then app identifier, title and message with their attribute headers
+            int length = 5 + 3 + "com.apple.MobileSMS".length() + 3 + "John".length() + 3 + message.toString().getBytes(StandardCharsets.UTF_8).length;
+            assertEquals((length + mtu - 4) / (mtu - 3), manager.getFragmentHistogram().getMax());
+        }
+    }
+
+    @Test
+    public void recordsStageLatency() {
+        peripheral.setLinkDelay(50);
+        connect();
+
+        long postTime = eventLoop.now();
+        peripheral.postNotification(8, (byte) 0, CATEGORY_SOCIAL, "com.example", "Title", "A message long enough to be split in several packets");
+        eventLoop.advance(1000);
+
+        NotificationData notificationData = callback.notifications.get("8");
+        assertEquals(postTime + 50, notificationData.getEventTime());
+
+        StageLatency stageLatency = manager.getStageLatency();
+        assertEquals(1, stageLatency.get(StageLatency.Stage.Request).getCount());
+        assertEquals(1, stageLatency.get(StageLatency.Stage.FirstFragment).getCount());
+        assertEquals(1, stageLatency.get(StageLatency.Stage.Reassembly).getCount());
+        assertTrue(notificationData.getEventTime() < notificationData.getRequestTime());
+        assertTrue(notificationData.getRequestTime() < notificationData.getFirstFragmentTime());
+        assertTrue(notificationData.getFirstFragmentTime() < notificationData.getReassembledTime());
+
+        // Posting is recorded by the service
+        assertEquals(0, stageLatency.get(StageLatency.Stage.Post).getCount());
+    }
+
+    @Test
+    public void incomingCallSkipsBackgroundRequests() {
+        connect();
+
+        for (int UID = 1; UID <= 50; UID++) {
+            peripheral.postNotification(UID, (byte) 0, CATEGORY_OTHER, "com.example", "Title " + UID, "Message");
+        }
+        peripheral.postNotification(1000, (byte) (8 | 16), CATEGORY_INCOMING_CALL, "com.apple.mobilephone", "Mom", "Incoming call", "Answer", "Decline");
+
+        eventLoop.advance(60000);
+
+        assertNotNull(callback.incomingCall);
+        assertEquals("Answer", callback.incomingCall.getPositiveAction());
+        assertEquals(50, callback.notifications.size());
+
+        // Only the request already in flight when the call arrived is written before it
+        List<FakeIOSPeripheral.Write> writes = getControlPointWrites(ServicesConstants.CommandIDGetNotificationAttributes);
+        int callIndex = -1;
+        for (int i = 0; i < writes.size(); i++) {
+            if (NotificationData.packUID(writes.get(i).value, 1) == 1000) {
+                callIndex = i;
+            }
+        }
+        assertTrue("call request written at " + callIndex, callIndex >= 0 && callIndex <= 1);
+    }
+
+    @Test
+    public void setupRunsBackToBack() {
+        connect();
+
+        // Service discovery, the MTU request and the five subscriptions, one link delay each
+        LatencyHistogram setup = manager.getSetupHistogram();
+        assertEquals(1, setup.getCount());
+        assertTrue(setup.getMax() < 8 * 30 + 50);
+    }
+
+    @Test
+    public void stuckSubscriptionIsRetried() {
+        peripheral.loseNextDescriptorWrites(1);
+        connect();
+
+        GattOperationQueue operationQueue = manager.getOperationQueue();
+        assertEquals(1, operationQueue.getTimeoutCount());
+        assertEquals(1, operationQueue.getRetryCount());
+        assertEquals(0, operationQueue.getFailedCount());
+        assertTrue(peripheral.isSubscribed(ServicesConstants.CHARACTERISTIC_DATA_SOURCE));
+        // Well before the old four second check would have noticed
+        assertTrue(manager.getSetupHistogram().getMax() < 2000);
+    }
+
+    @Test
+    public void retriesFailedWrites() {
+        connect();
+
+        peripheral.failNextWrites(2);
+        peripheral.postNotification(7, (byte) 0, CATEGORY_SOCIAL, "com.example", "Title", "Message");
+        eventLoop.advance(10000);
+
+        assertNotNull(callback.notifications.get("7"));
+        assertEquals(3, getControlPointWrites(ServicesConstants.CommandIDGetNotificationAttributes).size());
+    }
+
+    @Test
+    public void lateWriteResultIsIgnored() {
+        connect();
+
+        // Arrives after the command timed out, while the next one is in flight
+        peripheral.delayNextWrites(1, 3010);
+        peripheral.postNotification(7, (byte) 0, CATEGORY_SOCIAL, "com.example", "Title", "Message");
+        peripheral.postNotification(8, (byte) 0, CATEGORY_SOCIAL, "com.example", "Title", "Message");
+        peripheral.postNotification(9, (byte) 0, CATEGORY_SOCIAL, "com.example", "Title", "Message");
+        eventLoop.advance(10000);
+
+        // Nothing else is written to the control point until the late result arrived
+        List<FakeIOSPeripheral.Write> writes = getControlPointWrites(ServicesConstants.CommandIDGetNotificationAttributes);
+        assertEquals(7, NotificationData.packUID(writes.get(0).value, 1));
+        assertTrue(writes.get(1).time - writes.get(0).time >= 3010);
+        for (int i = 1; i < writes.size(); i++) {
+            assertTrue("write " + i + " started before the previous one was answered", writes.get(i).time - writes.get(i - 1).time >= 30);
+        }
+        assertEquals(3, callback.notifications.size());
+    }
+
+    @Test
+    public void reconnectsAfterLinkLoss() {
+        connect();
+
+        peripheral.dropConnection();
+        eventLoop.advance(100);
+        assertEquals(BLEManager.BLEManagerState.Disconnected, callback.getState());
+
+        eventLoop.advance(5000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+
+        peripheral.postNotification(9, (byte) 0, CATEGORY_SOCIAL, "com.example", "After", "Reconnect");
+        eventLoop.advance(1000);
+        assertNotNull(callback.notifications.get("9"));
+    }
+
+    @Test
+    public void reconnectsDirectlyWithoutScanning() {
+        connect();
+        assertEquals(1, peripheral.getScanCount());
+
+        for (int i = 0; i < 10; i++) {
+            peripheral.dropConnection();
+            eventLoop.advance(2000);
+            assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+        }
+
+        assertEquals(1, peripheral.getScanCount());
+        assertEquals(10, manager.getReconnectHistogram().getCount());
+        assertTrue("reconnect took " + manager.getReconnectHistogram(), manager.getReconnectHistogram().getMax() < 1000);
+    }
+
+    @Test
+    public void reconnectWaitsForPhoneInRange() {
+        connect();
+
+        peripheral.setAdvertising(false);
+        peripheral.dropConnection();
+        eventLoop.advance(10000);
+        assertEquals(BLEManager.BLEManagerState.Reconnecting, callback.getState());
+
+        // The background connection completes as soon as the phone is back
+        peripheral.setAdvertising(true);
+        eventLoop.advance(1000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+        assertEquals(1, peripheral.getScanCount());
+    }
+
+    @Test
+    public void reconnectFallsBackToScanning() {
+        connect();
+
+        peripheral.setAdvertising(false);
+        peripheral.dropConnection();
+        eventLoop.advance(5 * 60000);
+        assertTrue(manager.getScanScheduler().isActive());
+
+        peripheral.setAdvertising(true);
+        eventLoop.advance(2000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+    }
+
+    @Test
+    public void scansInDutyCycles() {
+        peripheral.setAdvertising(false);
+        eventLoop.advance(60 * 60000);
+
+        assertEquals(BLEManager.BLEManagerState.Disconnected, callback.getState());
+
+        // Low latency burst first, then cheaper and cheaper scans
+        List<Integer> scanModes = peripheral.getScanModes();
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, (int) scanModes.get(0));
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, (int) scanModes.get(1));
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, (int) scanModes.get(scanModes.size() - 1));
+
+        ScanScheduler scanScheduler = manager.getScanScheduler();
+        assertEquals(scanModes.size(), scanScheduler.getScanCount());
+        assertTrue("scanning " + scanScheduler, scanScheduler.getScanOnTime() < 15 * 60000);
+
+        // Found on the next scan window
+        peripheral.setAdvertising(true);
+        eventLoop.advance(5 * 60000 + 15000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+        assertTrue(!scanScheduler.isActive());
+    }
+
+    @Test
+    public void remembersLastDevice() throws Exception {
+        File lastDeviceFile = File.createTempFile("last_device", null);
+        lastDeviceFile.delete();
+
+        try {
+            manager = new BLEManager(callback, peripheral, eventLoop, new NotificationStore(null), new AppNameCache(null), lastDeviceFile, null, 0);
+            eventLoop.advance(2000);
+            assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+            assertTrue(lastDeviceFile.exists());
+
+            manager.close();
+            eventLoop.advance(1000);
+
+            // A new manager connects straight to it
+            eventLoop = new VirtualEventLoop();
+            peripheral = new FakeIOSPeripheral(eventLoop);
+            callback = new RecordingCallback(eventLoop);
+            manager = new BLEManager(callback, peripheral, eventLoop, new NotificationStore(null), new AppNameCache(null), lastDeviceFile, null, 0);
+            eventLoop.advance(1000);
+
+            assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+            assertEquals(0, peripheral.getScanCount());
+        }
+        finally {
+            lastDeviceFile.delete();
+        }
+    }
+
+    @Test
+    public void reconnectKeepsKnownNotifications() {
+        connect();
+
+        peripheral.postNotification(1, (byte) 0, CATEGORY_SOCIAL, "com.example", "Kept", "Message");
+        peripheral.postNotification(2, (byte) 0, CATEGORY_SOCIAL, "com.example", "Removed", "Message");
+        peripheral.postNotification(4, (byte) 0, CATEGORY_SOCIAL, "com.example", "Also kept", "Message");
+        eventLoop.advance(1000);
+        assertEquals(3, getControlPointWrites(ServicesConstants.CommandIDGetNotificationAttributes).size());
+        NotificationData kept = callback.notifications.get("1");
+        NotificationData alsoKept = callback.notifications.get("4");
+
+        peripheral.dropConnection();
+        eventLoop.advance(100);
+        peripheral.removeNotification(2);
+        peripheral.postNotification(3, (byte) 0, CATEGORY_SOCIAL, "com.example", "New", "Message");
+
+        eventLoop.advance(20000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+
+        // The first known card is checked against its attributes, the other one is trusted then,
+        // neither is posted again and the one removed meanwhile is canceled
+        List<FakeIOSPeripheral.Write> writes = getControlPointWrites(ServicesConstants.CommandIDGetNotificationAttributes);
+        assertEquals(5, writes.size());
+        assertEquals(1, NotificationData.packUID(writes.get(3).value, 1));
+        assertEquals(3, NotificationData.packUID(writes.get(4).value, 1));
+        assertSame(kept, callback.notifications.get("1"));
+        assertSame(alsoKept, callback.notifications.get("4"));
+        assertNotNull(callback.notifications.get("3"));
+        assertEquals("2", callback.canceled.get(0));
+
+        // Still removed normally
+        peripheral.removeNotification(1);
+        eventLoop.advance(1000);
+        assertEquals(2, callback.notifications.size());
+    }
+
+    @Test
+    public void reusedUidIsNotKeptStale() {
+        connect();
+
+        peripheral.postNotification(1, (byte) 0, CATEGORY_SOCIAL, "com.example", "Old", "Message");
+        peripheral.postNotification(2, (byte) 0, CATEGORY_SOCIAL, "com.example", "Old", "Message");
+        peripheral.postNotification(3, (byte) 0, CATEGORY_SOCIAL, "com.example", "Old", "Message");
+        eventLoop.advance(1000);
+
+        // The iOS device restarted and gave the UIDs to other notifications
+        peripheral.dropConnection();
+        eventLoop.advance(100);
+        peripheral.removeNotification(1);
+        peripheral.removeNotification(2);
+        peripheral.removeNotification(3);
+        peripheral.postNotification(1, (byte) 0, CATEGORY_SOCIAL, "com.example", "New", "Message");
+        peripheral.postNotification(2, ServicesConstants.EventFlagPositiveAction, CATEGORY_SOCIAL, "com.example", "New", "Message", "Accept", "");
+        peripheral.postNotification(3, (byte) 0, CATEGORY_SOCIAL, "com.example", "New", "Message");
+
+        eventLoop.advance(20000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+
+        // 3 matches what was stored for its UID, it's fetched once 1 shows the store is outdated
+        assertEquals("New", callback.notifications.get("1").getTitle());
+        assertEquals("New", callback.notifications.get("2").getTitle());
+        assertEquals("New", callback.notifications.get("3").getTitle());
+    }
+
+    @Test
+    public void fetchesAppNameOnce() {
+        peripheral.setAppName("com.example.chat", "Chat");
+        connect();
+
+        peripheral.postNotification(1, (byte) 0, CATEGORY_SOCIAL, "com.example.chat", "", "First");
+        peripheral.postNotification(2, (byte) 0, CATEGORY_SOCIAL, "com.example.unknown", "", "Unknown app");
+        eventLoop.advance(1000);
+
+        peripheral.dropConnection();
+        eventLoop.advance(20000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+
+        peripheral.postNotification(3, (byte) 0, CATEGORY_SOCIAL, "com.example.chat", "", "Second");
+        peripheral.postNotification(4, (byte) 0, CATEGORY_SOCIAL, "com.example.unknown", "", "Unknown app");
+        eventLoop.advance(1000);
+
+        assertEquals("Chat", callback.notifications.get("3").getAppName());
+        assertEquals(null, callback.notifications.get("4").getAppName());
+
+        // Asked once per app, even when the iOS device doesn't know it
+        List<FakeIOSPeripheral.Write> writes = getControlPointWrites(ServicesConstants.CommandIDGetAppAttributes);
+        assertEquals(2, writes.size());
+        assertTrue(Arrays.equals(BLEManager.buildGetAppAttributesPacket("com.example.chat"), writes.get(0).value));
+    }
+
+    @Test
+    public void connectionPriorityFollowsTraffic() {
+        connect();
+        ConnectionPriorityController controller = manager.getConnectionPriorityController();
+        assertEquals(ConnectionPriorityController.Mode.Balanced, controller.getMode());
+
+        for (int UID = 1; UID <= 20; UID++) {
+            peripheral.postNotification(UID, (byte) 4, CATEGORY_SOCIAL, "com.example", "Title " + UID, "Message");
+        }
+        eventLoop.advance(100);
+        assertEquals(ConnectionPriorityController.Mode.High, controller.getMode());
+
+        eventLoop.advance(30000);
+        assertEquals(20, callback.notifications.size());
+        assertEquals(ConnectionPriorityController.Mode.LowPower, controller.getMode());
+
+        List<Integer> priorities = peripheral.getConnectionPriorities();
+        assertEquals(ConnectionPriorityController.Mode.High.getConnectionPriority(), (int) priorities.get(0));
+        assertEquals(ConnectionPriorityController.Mode.LowPower.getConnectionPriority(), (int) priorities.get(priorities.size() - 1));
+        assertTrue(controller.getTimeInMode(ConnectionPriorityController.Mode.High) > 0);
+        assertTrue(controller.getTimeInMode(ConnectionPriorityController.Mode.LowPower) > 0);
+
+        // A call brings it back up right away
+        peripheral.postNotification(100, (byte) (8 | 16), CATEGORY_INCOMING_CALL, "com.apple.mobilephone", "Mom", "Incoming call", "Answer", "Decline");
+        eventLoop.advance(1000);
+        assertEquals(ConnectionPriorityController.Mode.High, controller.getMode());
+
+        peripheral.removeNotification(100);
+        eventLoop.advance(30000);
+        assertEquals(ConnectionPriorityController.Mode.LowPower, controller.getMode());
+    }
+
+    @Test
+    public void keepAliveLearnsIdleWindow() {
+        peripheral.setIdleTimeout(120000);
+        connect();
+
+        KeepAliveScheduler keepAlive = manager.getKeepAliveScheduler();
+        assertEquals(-1, keepAlive.getInterval());
+
+        // The first idle loss teaches the window
+        eventLoop.advance(130000);
+        assertEquals(1, keepAlive.getIdleLossCount());
+        assertTrue(keepAlive.getWindow() >= 120000 && keepAlive.getWindow() < 121000);
+        assertEquals(KeepAliveScheduler.Method.Rssi, keepAlive.getMethod());
+
+        // RSSI reads don't keep this link up, it moves to Battery Level reads
+        eventLoop.advance(150000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+        assertEquals(1, keepAlive.getKeptAliveLossCount());
+        assertTrue(keepAlive.getKeepAliveCount(KeepAliveScheduler.Method.Rssi) > 0);
+        assertEquals(KeepAliveScheduler.Method.BatteryRead, keepAlive.getMethod());
+
+        // Up until it waits past the window, which fails and is tried half as often after that
+        int states = callback.states.size();
+        eventLoop.advance(150000);
+        assertEquals(states, callback.states.size());
+        assertTrue(keepAlive.getKeepAliveCount(KeepAliveScheduler.Method.BatteryRead) > 0);
+
+        eventLoop.advance(800000);
+        assertEquals(2, keepAlive.getFailedGrowCount());
+        assertEquals(0, keepAlive.getGrownCount());
+        assertTrue(keepAlive.getWindow() >= 120000 && keepAlive.getWindow() < 121000);
+        assertEquals(37, keepAlive.getWakeupsPerHour());
+
+        // Traffic after an idle stretch longer than the window
+        peripheral.postNotification(1, (byte) 0, CATEGORY_SOCIAL, "com.example.chat", "Anna", "Still there?");
+        eventLoop.advance(1000);
+        assertEquals(1, keepAlive.getAvoidedCount());
+        assertEquals(1, keepAlive.getIdleLossCount());
+        assertEquals(1, keepAlive.getKeptAliveLossCount());
+    }
+
+    @Test
+    public void keepAliveIgnoresRangeLoss() {
+        connect();
+        KeepAliveScheduler keepAlive = manager.getKeepAliveScheduler();
+
+        // A supervision timeout after a long idle time
+        eventLoop.advance(200000);
+        peripheral.dropConnection();
+        eventLoop.advance(20000);
+
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+        assertEquals(1, keepAlive.getOtherLossCount());
+        assertEquals(0, keepAlive.getIdleLossCount());
+        assertEquals(-1, keepAlive.getWindow());
+        assertEquals(0, keepAlive.getWakeupCount());
+    }
+
+    @Test
+    public void keepAliveWindowGrowsBack() {
+        peripheral.setIdleTimeout(120000);
+        connect();
+        KeepAliveScheduler keepAlive = manager.getKeepAliveScheduler();
+
+        eventLoop.advance(130000);
+        assertTrue(keepAlive.getWindow() >= 120000 && keepAlive.getWindow() < 121000);
+
+        // The link stops timing out, the window grows until keep-alives aren't needed anymore
+        peripheral.setIdleTimeout(0);
+        eventLoop.advance(4 * 3600000);
+
+        assertEquals(-1, keepAlive.getWindow());
+        assertTrue(keepAlive.getGrownCount() > 0);
+        assertEquals(0, keepAlive.getFailedGrowCount());
+
+        int wakeups = keepAlive.getWakeupCount();
+        eventLoop.advance(3600000);
+        assertEquals(wakeups, keepAlive.getWakeupCount());
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+    }
+
+    @Test
+    public void fetchesTruncatedTrackAttributeOnce() {
+        String title = "A title far too long for a single Entity Update";
+
+        connect();
+        int reads = peripheral.getReadCount();
+
+        peripheral.setTrackAttribute(ServicesConstants.TrackAttributeIDTitle, title);
+        eventLoop.advance(1000);
+
+        // The truncated value first, then the full one read back
+        assertEquals(2, callback.mediaAttributes.size());
+        assertTrue(title.startsWith(callback.mediaAttributes.get(0)) && !title.equals(callback.mediaAttributes.get(0)));
+        assertEquals(title, callback.mediaAttributes.get(1));
+        assertEquals(1, peripheral.getWrites(ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE).size());
+        assertEquals(reads + 1, peripheral.getReadCount());
+
+        // Announced again, the cached value is delivered without another read
+        peripheral.setTrackAttribute(ServicesConstants.TrackAttributeIDTitle, title);
+        eventLoop.advance(1000);
+
+        assertEquals(3, callback.mediaAttributes.size());
+        assertEquals(title, callback.mediaAttributes.get(2));
+        assertEquals(1, peripheral.getWrites(ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE).size());
+    }
+
+    @Test
+    public void closeStopsEverything() {
+        connect();
+
+        manager.close();
+        eventLoop.advance(1000);
+
+        assertTrue(eventLoop.isQuit());
+        assertTrue(!peripheral.isConnected());
+        assertTrue(!peripheral.isScanning());
+    }
+
+    @Test
+    public void closeQuitsAfterQueuedLinkLoss() {
+        connect();
+
+        // The link loss is handled right before close() runs
+        peripheral.dropConnection();
+        eventLoop.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                manager.close();
+            }
+        }, 30);
+        eventLoop.advance(1000);
+
+        assertTrue(eventLoop.isQuit());
+        assertEquals(0, eventLoop.getPendingCount());
+    }
+
+    @Test
+    public void notificationBurstThroughput() {
+        connect();
+
+        int count = 200;
+        long start = eventLoop.now();
+
+        for (int UID = 1; UID <= count; UID++) {
+            callback.postTimes.put(Integer.toString(UID), eventLoop.now());
+            peripheral.postNotification(UID, (byte) 0, CATEGORY_SOCIAL, "com.example.app", "Sender " + UID, "Message body number " + UID + " with some text to fill a couple of packets");
+        }
+
+        eventLoop.advance(60000);
+
+        assertEquals(count, callback.notifications.size());
+        assertEquals(count, callback.latency.getCount());
+
+        long elapsed = callback.lastDeliveryTime - start;
+        System.out.println("BLEManagerTest burst of " + count + ": " + elapsed + " ms virtual, "
+                + (count * 1000 / Math.max(1, elapsed)) + " notifications/s, latency " + callback.latency
+                + ", connection priority " + manager.getConnectionPriorityController());
+    }
+
+
+    private List<FakeIOSPeripheral.Write> getControlPointWrites(byte commandId) {
+        List<FakeIOSPeripheral.Write> writes = new ArrayList<>();
+
+        for (FakeIOSPeripheral.Write write : peripheral.getWrites(ServicesConstants.CHARACTERISTIC_CONTROL_POINT)) {
+            if (write.value[0] == commandId) {
+                writes.add(write);
+            }
+        }
+
+        return writes;
+    }
+
+    private void connect() {
+        eventLoop.advance(2000);
+
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.getState());
+        assertTrue(peripheral.isConnected());
+    }
+
+}
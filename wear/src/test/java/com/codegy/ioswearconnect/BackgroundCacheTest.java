@@ -0,0 +1,105 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Eviction of the LRU behind BackgroundCache, with strings standing in for bitmaps sized by length.
+ */
+public class BackgroundCacheTest {
+
+    private static BackgroundCache.Lru<String> lru(int maxSize) {
+        return new BackgroundCache.Lru<String>(maxSize) {
+            @Override
+            protected int sizeOf(String value) {
+                return value.length();
+            }
+        };
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFirst() {
+        BackgroundCache.Lru<String> cache = lru(10);
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+
+        // Using 1 makes 2 the eldest
+        assertEquals("aaaa", cache.get(1));
+        cache.put(3, "cccc");
+
+        assertNull(cache.get(2));
+        assertEquals("aaaa", cache.get(1));
+        assertEquals("cccc", cache.get(3));
+        assertEquals(8, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void evictedEntryIsLoadedAgain() {
+        BackgroundCache.Lru<String> cache = lru(2);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+
+        assertNull(cache.get(1));
+        cache.put(1, "a");
+
+        assertEquals("a", cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals("c", cache.get(3));
+        assertEquals(2, cache.hitCount());
+        assertEquals(2, cache.missCount());
+        assertEquals(2, cache.evictionCount());
+    }
+
+    @Test
+    public void replacingKeepsTheSizeRight() {
+        BackgroundCache.Lru<String> cache = lru(10);
+        cache.put(1, "aaaa");
+        cache.put(1, "aaaaaaaa");
+        assertEquals(8, cache.size());
+        assertEquals(0, cache.evictionCount());
+
+        cache.put(2, "bb");
+        assertEquals(10, cache.size());
+        assertEquals("aaaaaaaa", cache.get(1));
+    }
+
+    @Test
+    public void oversizedValueIsNotKept() {
+        BackgroundCache.Lru<String> cache = lru(4);
+        cache.put(1, "aa");
+        cache.put(2, "bbbbbb");
+
+        assertNull(cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictAllEmptiesTheCache() {
+        BackgroundCache.Lru<String> cache = lru(10);
+        cache.put(1, "aaaa");
+        cache.evictAll();
+
+        assertEquals(0, cache.size());
+        assertNull(cache.get(1));
+
+        cache.put(1, "aaaa");
+        assertEquals("aaaa", cache.get(1));
+    }
+
+    @Test
+    public void countsEntriesByDefault() {
+        // Like the solid color cache
+        BackgroundCache.Lru<String> colors = new BackgroundCache.Lru<>(2);
+        colors.put(0xff000000, "black");
+        colors.put(0xffffffff, "white");
+        colors.put(0xffff0000, "red");
+        assertNull(colors.get(0xff000000));
+        assertEquals(2, colors.size());
+    }
+
+}
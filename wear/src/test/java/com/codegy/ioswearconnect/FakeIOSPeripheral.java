@@ -0,0 +1,736 @@
+package com.codegy.ioswearconnect;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * GattTransport acting as an iPhone exposing ANCS, AMS and BAS, scripted by the test.
+ *
+ * Every event reaches the listener through the VirtualEventLoop after a link delay, Data Source
+ * responses are split in MTU sized packets sent one packet interval apart. Events of a connection
+ * are dropped once it has been closed, like the platform transport does.
+ */
+public class FakeIOSPeripheral implements GattTransport {
+
+    public static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static final int GATT_SUCCESS = 0;
+    private static final int GATT_FAILURE = 0x101;
+
+    private static final int DEFAULT_MTU = 23;
+
+
+    public static class Write {
+        public final String characteristic;
+        public final byte[] value;
+        public final long time;
+
+        Write(String characteristic, byte[] value, long time) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private static class Notification {
+        final byte eventFlags;
+        final byte categoryId;
+        final Map<Byte, String> attributes = new HashMap<>();
+
+        Notification(byte eventFlags, byte categoryId) {
+            this.eventFlags = eventFlags;
+            this.categoryId = categoryId;
+        }
+    }
+
+
+    private final VirtualEventLoop mEventLoop;
+    private Listener mListener;
+
+    private String name = "iPhone";
+    private boolean advertising = true;
+    private long linkDelay = 30;
+    private long packetInterval = 10;
+    private long scanInterval = 100;
+    // Largest MTU the peripheral accepts and the one negotiated on the current connection
+    private int mtu = 23;
+    private int attMtu = DEFAULT_MTU;
+    private int failWrites;
+    private int delayWrites;
+    private long writeResultDelay;
+    private int loseDescriptorWrites;
+    // Time without ATT traffic after which the link is dropped, 0 to never drop it
+    private long idleTimeout;
+
+    private boolean scanning;
+    private int scanCount;
+    private final List<Integer> scanModes = new ArrayList<>();
+    private int connection;
+    private boolean connected;
+    // Connection waiting for the phone to advertise again, 0 if none
+    private int autoConnection;
+    private final Set<String> subscribed = new HashSet<>();
+
+    // In posting order, as iOS announces them again when the Notification Source is subscribed
+    private final Map<Integer, Notification> notifications = new LinkedHashMap<>();
+    private final Map<Integer, String> trackAttributes = new HashMap<>();
+    private final Map<String, String> appNames = new HashMap<>();
+    private byte[] entityAttributeRequest;
+    private int batteryLevel = 80;
+
+    private final List<Write> writes = new ArrayList<>();
+    // Last value written to each characteristic, like the platform's shared characteristic objects
+    private final Map<String, byte[]> characteristicValues = new HashMap<>();
+    private int reads;
+    private final List<Integer> connectionPriorities = new ArrayList<>();
+    private int bondState = 12; // BluetoothDevice.BOND_BONDED
+    // Time the last Data Source packet is scheduled at, responses are sent one after the other
+    private long dataSourceBusyUntil;
+
+
+    public FakeIOSPeripheral(VirtualEventLoop eventLoop) {
+        this.mEventLoop = eventLoop;
+    }
+
+
+    // Script
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setAdvertising(boolean advertising) {
+        this.advertising = advertising;
+
+        if (advertising && autoConnection == connection && autoConnection != 0) {
+            autoConnection = 0;
+            deliverConnected();
+        }
+    }
+
+    public void setLinkDelay(long linkDelay) {
+        this.linkDelay = linkDelay;
+    }
+
+    public void setPacketInterval(long packetInterval) {
+        this.packetInterval = packetInterval;
+    }
+
+    /**
+     * Sets the largest MTU accepted when the central asks for a larger one.
+     */
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * Drops the link once no ATT request or notification went through for the given time, like
+     * watches whose stack times out idle links. RSSI reads don't count as traffic.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        onLinkTraffic();
+    }
+
+    /**
+     * Never answers the next descriptor writes, like a stack that got stuck.
+     */
+    public void loseNextDescriptorWrites(int count) {
+        this.loseDescriptorWrites = count;
+    }
+
+    /**
+     * Answers the next writes only after the given delay, like a stack that is slow to confirm them.
+     */
+    public void delayNextWrites(int count, long delay) {
+        this.delayWrites = count;
+        this.writeResultDelay = delay;
+    }
+
+    /**
+     * Makes the next writes fail with an error status.
+     */
+    public void failNextWrites(int count) {
+        this.failWrites = count;
+    }
+
+    public void postNotification(int UID, byte eventFlags, byte categoryId, String appId, String title, String message) {
+        postNotification(UID, eventFlags, categoryId, appId, title, message, "", "");
+    }
+
+    public void postNotification(int UID, byte eventFlags, byte categoryId, String appId, String title, String message, String positiveAction, String negativeAction) {
+        Notification notification = new Notification(eventFlags, categoryId);
+        notification.attributes.put(ServicesConstants.NotificationAttributeIDAppIdentifier, appId);
+        notification.attributes.put(ServicesConstants.NotificationAttributeIDTitle, title);
+        notification.attributes.put(ServicesConstants.NotificationAttributeIDMessage, message);
+        notification.attributes.put(ServicesConstants.NotificationAttributeIDPositiveActionLabel, positiveAction);
+        notification.attributes.put(ServicesConstants.NotificationAttributeIDNegativeActionLabel, negativeAction);
+
+        boolean modified = notifications.put(UID, notification) != null;
+
+        sendNotificationSource(modified ? ServicesConstants.EventIDNotificationModified : ServicesConstants.EventIDNotificationAdded, eventFlags, categoryId, UID);
+    }
+
+    public void setAppName(String appId, String name) {
+        appNames.put(appId, name);
+    }
+
+    public void removeNotification(int UID) {
+        Notification notification = notifications.remove(UID);
+
+        if (notification != null) {
+            sendNotificationSource(ServicesConstants.EventIDNotificationRemoved, (byte) 0, notification.categoryId, UID);
+        }
+    }
+
+    public void setBatteryLevel(int batteryLevel) {
+        this.batteryLevel = batteryLevel;
+
+        notifyCharacteristic(ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL, new byte[] { (byte) batteryLevel }, linkDelay);
+    }
+
+    public void setTrackAttribute(byte attributeId, String value) {
+        trackAttributes.put((int) attributeId, value);
+
+        notifyCharacteristic(ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE, entityUpdate(ServicesConstants.EntityIDTrack, attributeId, value), linkDelay);
+    }
+
+    /**
+     * Drops the link as if the phone went out of range.
+     */
+    public void dropConnection() {
+        dropConnection(8); // GATT_CONN_TIMEOUT
+    }
+
+    /**
+     * Drops the link with the given disconnection status.
+     */
+    public void dropConnection(final int status) {
+        if (connected) {
+            connected = false;
+            subscribed.clear();
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onConnectionStateChange(false, status);
+                }
+            }, linkDelay);
+        }
+    }
+
+
+    // Inspection
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    /**
+     * Number of times a scan was started.
+     */
+    public int getScanCount() {
+        return scanCount;
+    }
+
+    /**
+     * Scan mode of every scan started, in order.
+     */
+    public List<Integer> getScanModes() {
+        return scanModes;
+    }
+
+    public boolean isSubscribed(String characteristic) {
+        return subscribed.contains(characteristic);
+    }
+
+    public List<Write> getWrites() {
+        return writes;
+    }
+
+    /**
+     * Connection priorities requested, in order.
+     */
+    public List<Integer> getConnectionPriorities() {
+        return connectionPriorities;
+    }
+
+    public List<Write> getWrites(String characteristic) {
+        List<Write> result = new ArrayList<>();
+
+        for (Write write : writes) {
+            if (write.characteristic.equals(characteristic)) {
+                result.add(write);
+            }
+        }
+
+        return result;
+    }
+
+    public int getReadCount() {
+        return reads;
+    }
+
+
+    // GattTransport
+
+    @Override
+    public void setListener(Listener listener) {
+        this.mListener = listener;
+    }
+
+    @Override
+    public boolean startScan(String serviceUUID, int scanMode, long reportDelay) {
+        scanning = true;
+        scanCount++;
+        scanModes.add(scanMode);
+        mEventLoop.postDelayed(mAdvertiseRunnable, scanInterval);
+
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        scanning = false;
+        mEventLoop.remove(mAdvertiseRunnable);
+    }
+
+    private final Runnable mAdvertiseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!scanning) {
+                return;
+            }
+
+            if (advertising) {
+                mListener.onDeviceFound(ADDRESS, name);
+            }
+
+            mEventLoop.postDelayed(this, scanInterval);
+        }
+    };
+
+    @Override
+    public boolean connect(String address, boolean autoConnect) {
+        if (!ADDRESS.equals(address)) {
+            return false;
+        }
+
+        connection++;
+        attMtu = DEFAULT_MTU;
+
+        if (advertising) {
+            deliverConnected();
+        }
+        else if (autoConnect) {
+            autoConnection = connection;
+        }
+
+        return true;
+    }
+
+    private void deliverConnected() {
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                connected = true;
+                onLinkTraffic();
+                mListener.onConnectionStateChange(true, GATT_SUCCESS);
+            }
+        }, linkDelay);
+    }
+
+    @Override
+    public void disconnect() {
+        if (connected) {
+            connected = false;
+            subscribed.clear();
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onConnectionStateChange(false, GATT_SUCCESS);
+                }
+            }, linkDelay);
+        }
+    }
+
+    @Override
+    public void close() {
+        connection++;
+        connected = false;
+        subscribed.clear();
+        dataSourceBusyUntil = 0;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!connected) {
+            return false;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onServicesDiscovered(GATT_SUCCESS);
+            }
+        }, linkDelay);
+
+        return true;
+    }
+
+    @Override
+    public boolean hasService(UUID serviceUUID) {
+        return connected && (serviceUUID.equals(ServicesConstants.UUID_ANCS) || serviceUUID.equals(ServicesConstants.UUID_AMS) || serviceUUID.equals(ServicesConstants.UUID_BAS));
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        if (!connected) {
+            return false;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                attMtu = Math.max(DEFAULT_MTU, Math.min(mtu, FakeIOSPeripheral.this.mtu));
+                mListener.onMtuChanged(attMtu, GATT_SUCCESS);
+            }
+        }, linkDelay);
+
+        return true;
+    }
+
+    public int getAttMtu() {
+        return attMtu;
+    }
+
+    @Override
+    public boolean subscribe(UUID serviceUUID, final String characteristic) {
+        if (!hasService(serviceUUID)) {
+            return false;
+        }
+
+        if (loseDescriptorWrites > 0) {
+            loseDescriptorWrites--;
+            return true;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                onLinkTraffic();
+                subscribed.add(characteristic);
+                mListener.onDescriptorWrite(characteristic, GATT_SUCCESS);
+
+                if (characteristic.equals(ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE)) {
+                    for (Map.Entry<Integer, Notification> entry : notifications.entrySet()) {
+                        Notification notification = entry.getValue();
+                        sendNotificationSource(ServicesConstants.EventIDNotificationAdded, (byte) (notification.eventFlags | 4), notification.categoryId, entry.getKey());
+                    }
+                }
+            }
+        }, linkDelay);
+
+        return true;
+    }
+
+    @Override
+    public boolean write(UUID serviceUUID, final String characteristic, final byte[] value) {
+        if (!hasService(serviceUUID)) {
+            return false;
+        }
+
+        writes.add(new Write(characteristic, value.clone(), mEventLoop.now()));
+        characteristicValues.put(characteristic, value.clone());
+        onLinkTraffic();
+
+        final int status = failWrites > 0 ? GATT_FAILURE : GATT_SUCCESS;
+
+        if (failWrites > 0) {
+            failWrites--;
+        }
+
+        long delay = linkDelay;
+
+        if (delayWrites > 0) {
+            delayWrites--;
+            delay = writeResultDelay;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                // Reports what the characteristic holds now, which a later write may have changed
+                mListener.onCharacteristicWrite(characteristic, characteristicValues.get(characteristic), status);
+
+                if (status == GATT_SUCCESS) {
+                    handleWrite(characteristic, value);
+                }
+            }
+        }, delay);
+
+        return true;
+    }
+
+    @Override
+    public boolean read(UUID serviceUUID, final String characteristic) {
+        if (!hasService(serviceUUID)) {
+            return false;
+        }
+
+        reads++;
+        onLinkTraffic();
+
+        final byte[] value;
+
+        if (characteristic.equals(ServicesConstants.CHARACTERISTIC_BATTERY_LEVEL)) {
+            value = new byte[] { (byte) batteryLevel };
+        }
+        else if (characteristic.equals(ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE) && entityAttributeRequest != null && entityAttributeRequest.length >= 2) {
+            String attribute = trackAttributes.get((int) entityAttributeRequest[1]);
+            value = (attribute != null ? attribute : "").getBytes(StandardCharsets.UTF_8);
+        }
+        else {
+            value = new byte[0];
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onCharacteristicRead(characteristic, value, GATT_SUCCESS);
+            }
+        }, linkDelay);
+
+        return true;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        if (!connected) {
+            return false;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onReadRemoteRssi(-60, GATT_SUCCESS);
+            }
+        }, linkDelay);
+
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        if (connected) {
+            connectionPriorities.add(connectionPriority);
+        }
+
+        return connected;
+    }
+
+    @Override
+    public int getBondState() {
+        return connection > 0 ? bondState : -1;
+    }
+
+    @Override
+    public void createBond() {
+        bondState = 12;
+    }
+
+    @Override
+    public void removeBond() {
+        bondState = 10; // BluetoothDevice.BOND_NONE
+    }
+
+
+    private void handleWrite(String characteristic, byte[] value) {
+        switch (characteristic) {
+            case ServicesConstants.CHARACTERISTIC_CONTROL_POINT:
+                if (value.length >= 5 && value[0] == ServicesConstants.CommandIDGetNotificationAttributes) {
+                    sendAttributes(value);
+                }
+                else if (value.length >= 3 && value[0] == ServicesConstants.CommandIDGetAppAttributes) {
+                    sendAppAttributes(value);
+                }
+                else if (value.length >= 6 && value[0] == ServicesConstants.CommandIDPerformNotificationAction) {
+                    removeNotification(NotificationData.packUID(value, 1));
+                }
+
+                break;
+            case ServicesConstants.CHARACTERISTIC_ENTITY_UPDATE:
+                if (value.length >= 2 && value[0] == ServicesConstants.EntityIDTrack) {
+                    for (int i = 1; i < value.length; i++) {
+                        String attribute = trackAttributes.get((int) value[i]);
+
+                        if (attribute != null) {
+                            notifyCharacteristic(characteristic, entityUpdate(value[0], value[i], attribute), packetInterval * i);
+                        }
+                    }
+                }
+
+                break;
+            case ServicesConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE:
+                entityAttributeRequest = value;
+
+                break;
+        }
+    }
+
+    private void sendAttributes(byte[] request) {
+        Notification notification = notifications.get(NotificationData.packUID(request, 1));
+
+        if (notification == null) {
+            // iOS answers unknown UIDs with an error on the write, the request is just ignored here
+            return;
+        }
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(request, 0, 5);
+
+        int i = 5;
+        while (i < request.length) {
+            byte attributeId = request[i++];
+
+            int maxLength = Integer.MAX_VALUE;
+            if (attributeId == ServicesConstants.NotificationAttributeIDTitle || attributeId == ServicesConstants.NotificationAttributeIDSubtitle || attributeId == ServicesConstants.NotificationAttributeIDMessage) {
+                maxLength = (request[i] & 0xff) | ((request[i + 1] & 0xff) << 8);
+                i += 2;
+            }
+
+            String attribute = notification.attributes.get(attributeId);
+            byte[] bytes = (attribute != null ? attribute : "").getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, maxLength);
+
+            response.write(attributeId);
+            response.write(length & 0xff);
+            response.write((length >> 8) & 0xff);
+            response.write(bytes, 0, length);
+        }
+
+        sendDataSource(response.toByteArray());
+    }
+
+    private void sendAppAttributes(byte[] request) {
+        int end = 1;
+        while (end < request.length && request[end] != 0) {
+            end++;
+        }
+
+        String name = appNames.get(new String(request, 1, end - 1, StandardCharsets.UTF_8));
+
+        // Command ID and NULL terminated app identifier
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(request, 0, end + 1);
+
+        for (int i = end + 1; i < request.length; i++) {
+            // Apps unknown to iOS have an empty display name
+            byte[] bytes = (request[i] == ServicesConstants.AppAttributeIDDisplayName && name != null ? name : "").getBytes(StandardCharsets.UTF_8);
+
+            response.write(request[i]);
+            response.write(bytes.length & 0xff);
+            response.write((bytes.length >> 8) & 0xff);
+            response.write(bytes, 0, bytes.length);
+        }
+
+        sendDataSource(response.toByteArray());
+    }
+
+    private void sendDataSource(byte[] bytes) {
+        int packetSize = attMtu - 3;
+
+        // Packets of consecutive responses never interleave
+        long start = Math.max(mEventLoop.now() + linkDelay, dataSourceBusyUntil + packetInterval);
+
+        for (int offset = 0, n = 0; offset < bytes.length; offset += packetSize, n++) {
+            byte[] packet = new byte[Math.min(packetSize, bytes.length - offset)];
+            System.arraycopy(bytes, offset, packet, 0, packet.length);
+
+            dataSourceBusyUntil = start + n * packetInterval;
+            notifyCharacteristic(ServicesConstants.CHARACTERISTIC_DATA_SOURCE, packet, dataSourceBusyUntil - mEventLoop.now());
+        }
+    }
+
+    private void sendNotificationSource(byte eventId, byte eventFlags, byte categoryId, int UID) {
+        notifyCharacteristic(ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE, new byte[] {
+                eventId, eventFlags, categoryId, 1,
+                (byte) UID, (byte) (UID >> 8), (byte) (UID >> 16), (byte) (UID >> 24)
+        }, linkDelay);
+    }
+
+    /**
+     * Values that don't fit in one notification are truncated and flagged, the full value is read
+     * through the Entity Attribute.
+     */
+    private byte[] entityUpdate(byte entityId, byte attributeId, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, attMtu - 3 - 3);
+        byte[] packet = new byte[3 + length];
+        packet[0] = entityId;
+        packet[1] = attributeId;
+        packet[2] = length < bytes.length ? ServicesConstants.EntityUpdateFlagTruncated : 0;
+        System.arraycopy(bytes, 0, packet, 3, length);
+
+        return packet;
+    }
+
+    private void notifyCharacteristic(final String characteristic, final byte[] value, long delay) {
+        if (!subscribed.contains(characteristic)) {
+            return;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (subscribed.contains(characteristic)) {
+                    onLinkTraffic();
+                    mListener.onCharacteristicChanged(characteristic, value);
+                }
+            }
+        }, delay);
+    }
+
+    private void onLinkTraffic() {
+        mEventLoop.remove(mIdleTimeoutRunnable);
+
+        if (idleTimeout > 0) {
+            mEventLoop.postDelayed(mIdleTimeoutRunnable, idleTimeout);
+        }
+    }
+
+    private final Runnable mIdleTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Terminated by the watch's stack
+            dropConnection(KeepAliveScheduler.STATUS_TERMINATED_LOCALLY);
+        }
+    };
+
+    private void deliver(final Runnable runnable, long delay) {
+        final int currentConnection = connection;
+
+        mEventLoop.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (currentConnection == connection) {
+                    runnable.run();
+                }
+            }
+        }, delay);
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IntObjectMapTest {
+
+    @Test
+    public void putGetRemove() {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+
+        assertEquals(1, map.size());
+        assertEquals("b", map.get(1));
+        assertTrue(map.containsKey(1));
+
+        assertEquals("b", map.remove(1));
+        assertNull(map.remove(1));
+        assertNull(map.get(1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValuesAreRejected() {
+        new IntObjectMap<String>().put(1, null);
+    }
+
+    @Test
+    public void collidingKeysAreAllFound() {
+        IntObjectMap<String> map = new IntObjectMap<>(4);
+        int[] keys = keysWithSlot(3, map.capacity(), 4);
+
+        for (int key : keys) {
+            map.put(key, "v" + key);
+        }
+        for (int key : keys) {
+            assertEquals("v" + key, map.get(key));
+        }
+
+        // Removing the head of the run keeps the rest reachable
+        map.remove(keys[0]);
+        assertNull(map.get(keys[0]));
+        for (int i = 1; i < keys.length; i++) {
+            assertEquals("v" + keys[i], map.get(keys[i]));
+        }
+    }
+
+    @Test
+    public void removalShiftsBackAcrossTheEnd() {
+        IntObjectMap<String> map = new IntObjectMap<>(4);
+        int last = map.capacity() - 1;
+
+        // Two keys wanting the last slot, the second wraps to slot 0, then one wanting slot 0
+        int[] wrapping = keysWithSlot(last, map.capacity(), 2);
+        int first = keysWithSlot(0, map.capacity(), 1)[0];
+        map.put(wrapping[0], "a");
+        map.put(wrapping[1], "b");
+        map.put(first, "c");
+        assertEquals(wrapping[1], map.keyAt(0));
+        assertEquals(first, map.keyAt(1));
+
+        map.remove(wrapping[0]);
+
+        // Both moved back towards their ideal slot
+        assertEquals(wrapping[1], map.keyAt(last));
+        assertEquals(first, map.keyAt(0));
+        assertNull(map.valueAt(1));
+        assertEquals("b", map.get(wrapping[1]));
+        assertEquals("c", map.get(first));
+    }
+
+    @Test
+    public void removeAtWhileIterating() {
+        IntObjectMap<Integer> map = new IntObjectMap<>(64);
+        for (int key = 0; key < 64; key++) {
+            map.put(key, key);
+        }
+
+        for (int i = 0; i < map.capacity(); ) {
+            Integer value = map.valueAt(i);
+
+            if (value != null && value % 3 != 0) {
+                // Another entry may move into this slot
+                map.removeAt(i);
+                continue;
+            }
+
+            i++;
+        }
+
+        assertEquals(22, map.size());
+        for (int key = 0; key < 64; key++) {
+            if (key % 3 == 0) {
+                assertEquals(Integer.valueOf(key), map.get(key));
+            }
+            else {
+                assertNull(map.get(key));
+            }
+        }
+        assertNull(map.removeAt(indexOfEmptySlot(map)));
+    }
+
+    @Test
+    public void resizeKeepsEntries() {
+        IntObjectMap<Integer> map = new IntObjectMap<>(4);
+        assertEquals(8, map.capacity());
+        for (int key = 0; key < 4; key++) {
+            map.put(key * 1000, key);
+        }
+        assertEquals(8, map.capacity());
+
+        for (int key = 0; key < 100; key++) {
+            map.put(key * 1000, key);
+        }
+
+        assertEquals(100, map.size());
+        assertTrue(map.capacity() >= 200);
+        for (int key = 0; key < 100; key++) {
+            assertEquals(Integer.valueOf(key), map.get(key * 1000));
+        }
+
+        // Clearing doesn't shrink the table
+        int capacity = map.capacity();
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(capacity, map.capacity());
+        assertNull(map.get(0));
+    }
+
+    @Test
+    public void sequentialUidsSpreadOut() {
+        IntObjectMap<Integer> map = new IntObjectMap<>(PendingNotifications.MAX_SIZE);
+
+        // UIDs handed out by the iPhone, starting anywhere
+        int start = 0x7ffffff0;
+        for (int i = 0; i < PendingNotifications.MAX_SIZE; i++) {
+            map.put(start + i, i);
+        }
+
+        int occupiedRun = 0;
+        int longestRun = 0;
+        for (int i = 0; i < map.capacity(); i++) {
+            occupiedRun = map.valueAt(i) != null ? occupiedRun + 1 : 0;
+            longestRun = Math.max(longestRun, occupiedRun);
+        }
+        assertTrue("Longest run " + longestRun, longestRun < 16);
+
+        for (int i = 0; i < PendingNotifications.MAX_SIZE; i++) {
+            assertEquals(Integer.valueOf(i), map.get(start + i));
+        }
+    }
+
+    @Test
+    public void matchesHashMap() {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10000; i++) {
+            // Few distinct keys so puts and removes meet
+            int key = random.nextInt(200);
+
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+
+    private static int[] keysWithSlot(int slot, int capacity, int count) {
+        int[] keys = new int[count];
+
+        for (int key = 0, found = 0; found < count; key++) {
+            if ((IntObjectMap.hash(key) & (capacity - 1)) == slot) {
+                keys[found++] = key;
+            }
+        }
+
+        return keys;
+    }
+
+    private static int indexOfEmptySlot(IntObjectMap<?> map) {
+        for (int i = 0; i < map.capacity(); i++) {
+            if (map.valueAt(i) == null) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+}
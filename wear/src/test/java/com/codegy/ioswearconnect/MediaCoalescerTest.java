@@ -0,0 +1,171 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MediaCoalescerTest {
+
+    private static final long PUBLISH_DELAY = 100;
+
+
+    private VirtualEventLoop eventLoop;
+    private MediaCoalescer coalescer;
+    private final List<Integer> publishes = new ArrayList<>();
+
+
+    @Before
+    public void setUp() {
+        eventLoop = new VirtualEventLoop();
+        coalescer = new MediaCoalescer(eventLoop, new MediaCoalescer.Sink() {
+            @Override
+            public void publishMedia(MediaState state, int changes) {
+                publishes.add(changes);
+            }
+        }, PUBLISH_DELAY);
+    }
+
+    @Test
+    public void trackChangePublishesOnce() {
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDArtist, false, "Artist"));
+        eventLoop.advance(30);
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDTitle, false, "Title"));
+        eventLoop.advance(30);
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "1,1.0,0.0"));
+        eventLoop.advance(PUBLISH_DELAY);
+
+        assertEquals(1, publishes.size());
+        assertEquals(MediaState.CHANGED_METADATA | MediaState.CHANGED_PLAYBACK, (int) publishes.get(0));
+
+        MediaState state = coalescer.getState();
+        assertTrue(state.isPlaying());
+        assertTrue(state.isPlayerPresent());
+        assertEquals("Title", state.getTitle());
+        assertEquals("Artist", state.getArtist());
+    }
+
+    @Test
+    public void unchangedValuesSkipThePublish() {
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDTitle, false, "Title"));
+        eventLoop.advance(PUBLISH_DELAY);
+        assertEquals(1, publishes.size());
+
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDTitle, false, "Title"));
+        // Paused without a player is the initial state
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "0,,"));
+        eventLoop.advance(PUBLISH_DELAY);
+
+        assertEquals(1, publishes.size());
+        assertEquals(2, coalescer.getUnchangedCount());
+    }
+
+    @Test
+    public void playerGoesAway() {
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "0,1.0,12.5"));
+        eventLoop.advance(PUBLISH_DELAY);
+        assertTrue(coalescer.getState().isPlayerPresent());
+        assertFalse(coalescer.getState().isPlaying());
+
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "0,,"));
+        eventLoop.advance(PUBLISH_DELAY);
+
+        assertEquals(2, publishes.size());
+        assertEquals(MediaState.CHANGED_PLAYBACK, (int) publishes.get(1));
+        assertFalse(coalescer.getState().isPlayerPresent());
+    }
+
+    @Test
+    public void truncatedAndEmptyAttributes() {
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDTitle, true, "A very long ti"));
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDArtist, false, "Artist"));
+        eventLoop.advance(PUBLISH_DELAY);
+
+        assertEquals("A very long ti...", coalescer.getState().getTitle());
+
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDArtist, false, ""));
+        eventLoop.advance(PUBLISH_DELAY);
+
+        assertNull(coalescer.getState().getArtist());
+        assertEquals(2, publishes.size());
+    }
+
+    @Test
+    public void positionIsInterpolated() {
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDDuration, false, "200.5"));
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "1,1.0,10.25"));
+        eventLoop.advance(PUBLISH_DELAY);
+
+        MediaState state = coalescer.getState();
+        long received = state.getUpdateTime();
+        assertEquals(200500, state.getDuration());
+        assertEquals(10250, state.getElapsedTime());
+        assertEquals(1.0f, state.getPlaybackRate(), 0);
+        assertEquals(15250, state.getPosition(received + 5000));
+        // Clamped to the duration
+        assertEquals(200500, state.getPosition(received + 1000000));
+
+        // The phone confirming where the interpolation already is doesn't publish
+        eventLoop.advance(5000);
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "1,1.0,15.25"));
+        eventLoop.advance(PUBLISH_DELAY);
+        assertEquals(1, publishes.size());
+
+        // A seek does
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "1,1.0,90.0"));
+        eventLoop.advance(PUBLISH_DELAY);
+        assertEquals(2, publishes.size());
+        assertEquals(MediaState.CHANGED_PLAYBACK, (int) publishes.get(1));
+        assertEquals(90000, state.getPosition(state.getUpdateTime()));
+    }
+
+    @Test
+    public void fastForwardAndPause() {
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "3,2.0,30.0"));
+        eventLoop.advance(PUBLISH_DELAY);
+
+        MediaState state = coalescer.getState();
+        assertEquals(MediaState.PLAYBACK_STATE_FAST_FORWARDING, state.getPlaybackState());
+        assertEquals(34000, state.getPosition(state.getUpdateTime() + 2000));
+
+        coalescer.submit(update(ServicesConstants.EntityIDPlayer, ServicesConstants.PlayerAttributeIDPlaybackInfo, false, "0,0.0,31.0"));
+        eventLoop.advance(PUBLISH_DELAY);
+
+        // Paused, the position doesn't move
+        assertFalse(state.isPlaying());
+        assertEquals(31000, state.getPosition(state.getUpdateTime() + 60000));
+        // Unknown duration
+        assertEquals(-1, state.getDuration());
+    }
+
+    @Test
+    public void clearDropsPendingPublish() {
+        coalescer.submit(update(ServicesConstants.EntityIDTrack, ServicesConstants.TrackAttributeIDTitle, false, "Title"));
+        coalescer.clear();
+        eventLoop.advance(PUBLISH_DELAY);
+
+        assertEquals(0, publishes.size());
+        assertNull(coalescer.getState().getTitle());
+    }
+
+
+    private static byte[] update(byte entityId, byte attributeId, boolean truncated, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[bytes.length + 3];
+
+        packet[0] = entityId;
+        packet[1] = attributeId;
+        packet[2] = truncated ? ServicesConstants.EntityUpdateFlagTruncated : 0;
+        System.arraycopy(bytes, 0, packet, 3, bytes.length);
+
+        return packet;
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationCoalescerTest {
+
+    private static final long MERGE_WINDOW = 100;
+    private static final long MAX_DELAY = 300;
+    private static final long BURST_GAP = 2000;
+
+    private static final byte CATEGORY_SOCIAL = 4;
+
+
+    private VirtualEventLoop eventLoop;
+    private NotificationCoalescer coalescer;
+    private final List<NotificationData> posts = new ArrayList<>();
+    private final List<Long> postTimes = new ArrayList<>();
+    private final List<String> cancels = new ArrayList<>();
+    private final List<Boolean> alerts = new ArrayList<>();
+
+
+    @Before
+    public void setUp() {
+        eventLoop = new VirtualEventLoop();
+        coalescer = new NotificationCoalescer(eventLoop, new NotificationCoalescer.Sink() {
+            @Override
+            public void postNotification(NotificationData notificationData) {
+                posts.add(notificationData);
+                postTimes.add(eventLoop.now());
+            }
+
+            @Override
+            public void cancelNotification(String notificationId) {
+                cancels.add(notificationId);
+            }
+
+            @Override
+            public void alert(boolean silent) {
+                alerts.add(silent);
+            }
+        }, MERGE_WINDOW, MAX_DELAY, BURST_GAP);
+    }
+
+    @Test
+    public void postsAfterTheMergeWindow() {
+        coalescer.submit(notification(1, 0));
+        eventLoop.advance(MERGE_WINDOW - 1);
+        assertTrue(posts.isEmpty());
+
+        eventLoop.advance(1);
+        assertEquals(1, posts.size());
+        assertEquals(MERGE_WINDOW, (long) postTimes.get(0));
+    }
+
+    @Test
+    public void updatesOfAUidCollapse() {
+        NotificationData latest = notification(1, 0);
+
+        coalescer.submit(notification(1, 0));
+        eventLoop.advance(30);
+        coalescer.submit(notification(2, 0));
+        eventLoop.advance(30);
+        coalescer.submit(latest);
+        eventLoop.advance(MERGE_WINDOW);
+
+        // Arrival order of the UIDs, with the latest data
+        assertEquals(2, posts.size());
+        assertSame(latest, posts.get(0));
+        assertEquals("2", posts.get(1).getUIDString());
+        assertEquals(2, coalescer.getPostCount());
+        assertEquals(1, coalescer.getSuppressedPostCount());
+    }
+
+    @Test
+    public void maxDelayFlushesAContinuousStream() {
+        // Never quiet for a whole merge window
+        for (int i = 0; i < 10; i++) {
+            coalescer.submit(notification(i, 0));
+            eventLoop.advance(MERGE_WINDOW / 2);
+        }
+
+        assertTrue(posts.size() > 0);
+        assertEquals(MAX_DELAY, (long) postTimes.get(0));
+
+        eventLoop.advance(MAX_DELAY);
+        assertEquals(10, posts.size());
+        for (long postTime : postTimes) {
+            assertTrue(postTime <= MAX_DELAY * 2);
+        }
+    }
+
+    @Test
+    public void alertsOncePerBurst() {
+        for (int i = 0; i < 5; i++) {
+            coalescer.submit(notification(i, 0));
+            eventLoop.advance(MERGE_WINDOW * 2);
+        }
+
+        assertEquals(5, posts.size());
+        assertEquals(1, alerts.size());
+        assertFalse(alerts.get(0));
+        assertEquals(4, coalescer.getSuppressedAlertCount());
+
+        // The burst is over once nothing alerting came for the gap
+        eventLoop.advance(BURST_GAP);
+        coalescer.submit(notification(10, 0));
+        eventLoop.advance(MERGE_WINDOW);
+
+        assertEquals(2, alerts.size());
+        assertEquals(2, coalescer.getAlertCount());
+    }
+
+    @Test
+    public void preExistingNotificationsDontAlert() {
+        coalescer.submit(notification(1, ServicesConstants.EventFlagPreExisting));
+        coalescer.submit(notification(2, ServicesConstants.EventFlagPreExisting));
+        eventLoop.advance(MERGE_WINDOW);
+
+        assertEquals(2, posts.size());
+        assertTrue(alerts.isEmpty());
+        assertEquals(0, coalescer.getSuppressedAlertCount());
+
+        // Nor do they start a burst
+        coalescer.submit(notification(3, 0));
+        eventLoop.advance(MERGE_WINDOW);
+        assertEquals(1, alerts.size());
+    }
+
+    @Test
+    public void silentBurstAlertsSilently() {
+        coalescer.submit(notification(1, ServicesConstants.EventFlagSilent));
+        coalescer.submit(notification(2, ServicesConstants.EventFlagSilent));
+        eventLoop.advance(MERGE_WINDOW);
+
+        assertEquals(1, alerts.size());
+        assertTrue(alerts.get(0));
+
+        // One audible notification in the batch makes the alert audible
+        eventLoop.advance(BURST_GAP);
+        coalescer.submit(notification(3, ServicesConstants.EventFlagSilent));
+        coalescer.submit(notification(4, 0));
+        eventLoop.advance(MERGE_WINDOW);
+
+        assertEquals(2, alerts.size());
+        assertFalse(alerts.get(1));
+    }
+
+    @Test
+    public void cancelDropsAPendingCard() {
+        coalescer.submit(notification(1, 0));
+        coalescer.submit(notification(2, 0));
+        eventLoop.advance(10);
+        coalescer.cancel("1");
+        eventLoop.advance(MERGE_WINDOW);
+
+        assertEquals(1, posts.size());
+        assertEquals("2", posts.get(0).getUIDString());
+        // Also canceled in case it was posted in an earlier batch
+        assertEquals(1, cancels.size());
+        assertEquals("1", cancels.get(0));
+        assertEquals(1, coalescer.getSuppressedPostCount());
+    }
+
+    @Test
+    public void cancelAfterPostCancelsTheCard() {
+        coalescer.submit(notification(1, 0));
+        eventLoop.advance(MERGE_WINDOW);
+        coalescer.cancel("1");
+        eventLoop.advance(0);
+
+        assertEquals(1, posts.size());
+        assertEquals(1, cancels.size());
+        assertEquals(0, coalescer.getSuppressedPostCount());
+    }
+
+    @Test
+    public void clearDropsPendingCards() {
+        coalescer.submit(notification(1, 0));
+        eventLoop.advance(10);
+        coalescer.clear();
+        eventLoop.advance(MERGE_WINDOW);
+
+        assertTrue(posts.isEmpty());
+        assertTrue(alerts.isEmpty());
+        assertEquals(1, coalescer.getSuppressedPostCount());
+    }
+
+    @Test
+    public void closeStopsAFlushThatIsAlreadyDue() {
+        coalescer.submit(notification(1, 0));
+        eventLoop.advance(10);
+        coalescer.submit(notification(2, 0));
+
+        // Called right away, before the submit and the flush get to run
+        coalescer.close();
+        eventLoop.advance(MAX_DELAY);
+        coalescer.submit(notification(3, 0));
+        eventLoop.advance(MAX_DELAY);
+
+        assertTrue(posts.isEmpty());
+        assertTrue(alerts.isEmpty());
+    }
+
+
+    private static NotificationData notification(int UID, int eventFlags) {
+        return new NotificationData(UID, (byte) eventFlags, CATEGORY_SOCIAL);
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decoding of Notification Source packets and the Get Notification Attributes requests built for
+ * them.
+ */
+public class NotificationSourceEventTest {
+
+    private static final byte CATEGORY_SOCIAL = 4;
+
+    // Command, UID, app identifier, title and message with their max length
+    private static final int BASE_REQUEST_LENGTH = 12;
+
+
+    @Test
+    public void rejectsShortPackets() {
+        NotificationSourceEvent event = new NotificationSourceEvent();
+
+        assertFalse(event.wrap(null));
+        assertFalse(event.wrap(new byte[0]));
+        assertFalse(event.wrap(new byte[NotificationSourceEvent.LENGTH - 1]));
+
+        assertTrue(event.wrap(new byte[NotificationSourceEvent.LENGTH]));
+        // Later iOS versions may append fields
+        assertTrue(event.wrap(new byte[NotificationSourceEvent.LENGTH + 4]));
+    }
+
+    @Test
+    public void decodesFields() {
+        NotificationSourceEvent event = new NotificationSourceEvent();
+        assertTrue(event.wrap(packet(ServicesConstants.EventIDNotificationModified, ServicesConstants.EventFlagSilent,
+                CATEGORY_SOCIAL, 3, 0x12345678)));
+
+        assertEquals(ServicesConstants.EventIDNotificationModified, event.getEventId());
+        assertEquals(ServicesConstants.EventFlagSilent, event.getEventFlags());
+        assertEquals(CATEGORY_SOCIAL, event.getCategoryId());
+        assertEquals(3, event.getCategoryCount());
+        assertEquals(0x12345678, event.getUID());
+        assertFalse(event.isIncomingCall());
+
+        // Unsigned count and UID bytes
+        assertTrue(event.wrap(packet(ServicesConstants.EventIDNotificationAdded, 0, ServicesConstants.CategoryIDIncomingCall, 200, 0xfffffffe)));
+        assertEquals(200, event.getCategoryCount());
+        assertEquals(0xfffffffe, event.getUID());
+        assertTrue(event.isIncomingCall());
+    }
+
+    @Test
+    public void decodesFlags() {
+        NotificationSourceEvent event = new NotificationSourceEvent();
+
+        event.wrap(packet(ServicesConstants.EventIDNotificationAdded, 0, CATEGORY_SOCIAL, 1, 1));
+        assertFalse(event.isPreExisting());
+        assertFalse(event.hasPositiveAction());
+        assertFalse(event.hasNegativeAction());
+
+        event.wrap(packet(ServicesConstants.EventIDNotificationAdded, ServicesConstants.EventFlagPreExisting | ServicesConstants.EventFlagNegativeAction,
+                CATEGORY_SOCIAL, 1, 1));
+        assertTrue(event.isPreExisting());
+        assertFalse(event.hasPositiveAction());
+        assertTrue(event.hasNegativeAction());
+
+        // Every flag set, including the ones not defined yet
+        event.wrap(packet(ServicesConstants.EventIDNotificationAdded, 0xff, CATEGORY_SOCIAL, 1, 1));
+        assertTrue(event.isPreExisting());
+        assertTrue(event.hasPositiveAction());
+        assertTrue(event.hasNegativeAction());
+        assertEquals((byte) 0xff, event.getEventFlags());
+    }
+
+    @Test
+    public void requestsOnlyTheActionsTheNotificationHas() {
+        byte[] none = BLEManager.buildGetAttributesPacket(1, (byte) 0);
+        byte[] positive = BLEManager.buildGetAttributesPacket(1, ServicesConstants.EventFlagPositiveAction);
+        byte[] negative = BLEManager.buildGetAttributesPacket(1, ServicesConstants.EventFlagNegativeAction);
+        byte[] both = BLEManager.buildGetAttributesPacket(1, (byte) (ServicesConstants.EventFlagPositiveAction | ServicesConstants.EventFlagNegativeAction));
+
+        assertArrayEquals(new byte[] {
+                ServicesConstants.CommandIDGetNotificationAttributes,
+                1, 0, 0, 0,
+                ServicesConstants.NotificationAttributeIDAppIdentifier,
+                ServicesConstants.NotificationAttributeIDTitle, (byte) 0xff, (byte) 0xff,
+                ServicesConstants.NotificationAttributeIDMessage, (byte) 0xff, (byte) 0xff
+        }, none);
+
+        assertEquals(BASE_REQUEST_LENGTH + 1, positive.length);
+        assertEquals(ServicesConstants.NotificationAttributeIDPositiveActionLabel, positive[BASE_REQUEST_LENGTH]);
+
+        assertEquals(BASE_REQUEST_LENGTH + 1, negative.length);
+        assertEquals(ServicesConstants.NotificationAttributeIDNegativeActionLabel, negative[BASE_REQUEST_LENGTH]);
+
+        assertEquals(BASE_REQUEST_LENGTH + 2, both.length);
+        assertEquals(ServicesConstants.NotificationAttributeIDPositiveActionLabel, both[BASE_REQUEST_LENGTH]);
+        assertEquals(ServicesConstants.NotificationAttributeIDNegativeActionLabel, both[BASE_REQUEST_LENGTH + 1]);
+
+        // Other flags don't change the request
+        assertArrayEquals(none, BLEManager.buildGetAttributesPacket(1, (byte) (ServicesConstants.EventFlagSilent | ServicesConstants.EventFlagPreExisting)));
+    }
+
+    @Test
+    public void fillsInTheUidLittleEndian() {
+        byte[] request = BLEManager.buildGetAttributesPacket(0x12345678, ServicesConstants.EventFlagPositiveAction);
+        assertArrayEquals(new byte[] { 0x78, 0x56, 0x34, 0x12 }, Arrays.copyOfRange(request, 1, 5));
+        assertEquals(0x12345678, NotificationData.packUID(request, 1));
+
+        request = BLEManager.buildGetAttributesPacket(0xfffffffe, (byte) 0);
+        assertArrayEquals(new byte[] { (byte) 0xfe, (byte) 0xff, (byte) 0xff, (byte) 0xff }, Arrays.copyOfRange(request, 1, 5));
+
+        // Each request is a copy, building the next one leaves it alone
+        byte[] first = BLEManager.buildGetAttributesPacket(7, (byte) 0);
+        byte[] second = BLEManager.buildGetAttributesPacket(8, (byte) 0);
+        assertEquals(7, NotificationData.packUID(first, 1));
+        assertEquals(8, NotificationData.packUID(second, 1));
+    }
+
+    @Test
+    public void eventUidMatchesTheRequest() {
+        NotificationSourceEvent event = new NotificationSourceEvent();
+        byte[] packet = packet(ServicesConstants.EventIDNotificationAdded, ServicesConstants.EventFlagNegativeAction, CATEGORY_SOCIAL, 1, 0x0badcafe);
+        event.wrap(packet);
+
+        byte[] request = BLEManager.buildGetAttributesPacket(event.getUID(), event.getEventFlags());
+        assertArrayEquals(Arrays.copyOfRange(packet, 4, 8), Arrays.copyOfRange(request, 1, 5));
+    }
+
+
+    private static byte[] packet(byte eventId, int eventFlags, byte categoryId, int categoryCount, int UID) {
+        return new byte[] {
+                eventId,
+                (byte) eventFlags,
+                categoryId,
+                (byte) categoryCount,
+                (byte) UID,
+                (byte) (UID >> 8),
+                (byte) (UID >> 16),
+                (byte) (UID >> 24)
+        };
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationStoreTest {
+
+    private File file;
+
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("notifications", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void survivesReload() {
+        NotificationStore store = new NotificationStore(file);
+        store.load();
+        assertTrue(store.put(notification(1, "Title", "Message")));
+        assertTrue(store.put(notification(2, "Other", "Message")));
+        assertFalse(store.put(notification(1, "Title", "Message")));
+        store.remove(2);
+        store.close();
+
+        store = new NotificationStore(file);
+        store.load();
+
+        assertEquals(1, store.size());
+        assertNull(store.get(2));
+        assertEquals("Message", restore(store, 1).getMessage());
+        assertFalse(store.get(1).isPosted());
+    }
+
+    @Test
+    public void storesAttributesOver64Kb() {
+        String message = repeat("\u00e9", 40000);
+
+        NotificationStore store = new NotificationStore(file);
+        store.load();
+        store.put(notification(1, "Long", message));
+        // Still written after it
+        store.put(notification(2, "Short", "Message"));
+        store.close();
+
+        store = new NotificationStore(file);
+        store.load();
+
+        assertEquals(2, store.size());
+        assertEquals(message, restore(store, 1).getMessage());
+        assertEquals("Short", restore(store, 2).getTitle());
+    }
+
+    @Test
+    public void oversizedRecordIsOnlyKeptInMemory() {
+        NotificationStore store = new NotificationStore(file);
+        store.load();
+        assertTrue(store.put(notification(1, "Huge", repeat("a", (1 << 20) + 1))));
+        store.put(notification(2, "Short", "Message"));
+        assertEquals(2, store.size());
+        store.close();
+
+        // The rest of the log is kept
+        store = new NotificationStore(file);
+        store.load();
+
+        assertNull(store.get(1));
+        assertEquals("Short", restore(store, 2).getTitle());
+    }
+
+    @Test
+    public void readsWriteUtfRecords() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeByte(3);
+        out.writeInt(1);
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeInt(NotificationStore.contentHash(notification(1, "Title", "Message")));
+        out.writeUTF("com.example");
+        out.writeUTF("Title");
+        out.writeUTF("Message");
+        out.writeUTF("");
+        out.writeUTF("");
+        out.close();
+
+        NotificationStore store = new NotificationStore(file);
+        store.load();
+        assertEquals("Title", restore(store, 1).getTitle());
+
+        // Rewritten in the current format when loaded
+        store.close();
+        store = new NotificationStore(file);
+        store.load();
+        assertEquals("Message", restore(store, 1).getMessage());
+        // Same attributes, only its card is posted again
+        assertTrue(store.put(notification(1, "Title", "Message")));
+        assertFalse(store.put(notification(1, "Title", "Message")));
+    }
+
+
+    private static NotificationData notification(int UID, String title, String message) {
+        return new NotificationData(new byte[] { (byte) UID, 0, 0, 0 }, "com.example", title, message, "", "");
+    }
+
+    private static NotificationData restore(NotificationStore store, int UID) {
+        NotificationData notificationData = new NotificationData(UID, (byte) 0, (byte) 0);
+        store.get(UID).restore(notificationData);
+
+        return notificationData;
+    }
+
+    private static String repeat(String string, int count) {
+        char[] chars = new char[string.length() * count];
+        for (int i = 0; i < count; i++) {
+            string.getChars(0, string.length(), chars, i * string.length());
+        }
+
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,331 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PacketProcessorTest {
+
+    private static final byte[] UID = { 0x2a, 0x00, 0x00, 0x00 };
+    private static final String LONG_MESSAGE = "This is a long message body that does not fit in a single twenty byte fragment, ñandú ✓";
+
+
+    @Test
+    public void singlePacket() {
+        byte[] response = response(false, false, "com.apple.MobileSMS", "John", "Hi");
+
+        NotificationData notificationData = notificationData(false, false);
+        PacketProcessor processor = new PacketProcessor(notificationData);
+        processor.process(response);
+
+        assertTrue(processor.hasFinishedProcessing());
+        assertEquals("com.apple.MobileSMS", notificationData.getAppId());
+        assertEquals("John", notificationData.getTitle());
+        assertEquals("Hi", notificationData.getMessage());
+        assertNull(notificationData.getPositiveAction());
+        assertNull(notificationData.getNegativeAction());
+    }
+
+    @Test
+    public void defaultMtuFragments() {
+        assertMatchesLegacy(response(true, true, "com.apple.mobilephone", "Mom", LONG_MESSAGE, "Answer", "Decline"), true, true, 20);
+        assertMatchesLegacy(response(false, true, "net.whatsapp.WhatsApp", "", LONG_MESSAGE, "Clear"), false, true, 20);
+    }
+
+    @Test
+    public void everyFragmentSize() {
+        byte[] response = response(true, true, "com.google.Gmail", "Subject line", LONG_MESSAGE, "Archive", "Reply");
+
+        // The legacy parser needs the response header and the first attribute header in the first packet
+        for (int size = 8; size <= response.length; size++) {
+            assertMatchesLegacy(response, true, true, size);
+        }
+    }
+
+    @Test
+    public void splitAttributeHeader() {
+        byte[] response = response(false, false, "com.apple.mobilemail", "Title", "Message");
+
+        // Split after each byte of every attribute header, including between both length bytes
+        for (int split = 8; split < response.length; split++) {
+            assertMatchesLegacy(response, false, false, split, response.length - split);
+        }
+    }
+
+    @Test
+    public void splitLength() {
+        // 300 bytes message, so both length bytes are used
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            builder.append("0123456789");
+        }
+
+        byte[] response = response(false, false, "com.apple.mobilemail", "Long", builder.toString());
+        int lengthIndex = 5 + 3 + "com.apple.mobilemail".length() + 3 + "Long".length() + 1;
+
+        // Packet ends between both bytes of the message length
+        assertMatchesLegacy(response, false, false, lengthIndex + 1, response.length - lengthIndex - 1);
+        // Packet ends right after the attribute id
+        assertMatchesLegacy(response, false, false, lengthIndex, response.length - lengthIndex);
+        // Packet ends right after the length
+        assertMatchesLegacy(response, false, false, lengthIndex + 2, response.length - lengthIndex - 2);
+    }
+
+    @Test
+    public void splitResponseHeader() {
+        byte[] response = response(false, false, "com.apple.AppStore", "Update", "Available");
+
+        for (int split = 1; split < 8; split++) {
+            NotificationData notificationData = notificationData(false, false);
+            PacketProcessor processor = new PacketProcessor(notificationData);
+            processor.process(Arrays.copyOfRange(response, 0, split));
+            assertFalse(processor.hasFinishedProcessing());
+            processor.process(Arrays.copyOfRange(response, split, response.length));
+
+            assertTrue(processor.hasFinishedProcessing());
+            assertEquals("com.apple.AppStore", notificationData.getAppId());
+            assertEquals("Update", notificationData.getTitle());
+            assertEquals("Available", notificationData.getMessage());
+        }
+    }
+
+    @Test
+    public void reuseBetweenNotifications() {
+        PacketProcessor processor = new PacketProcessor();
+        assertFalse(processor.isProcessing());
+
+        for (int i = 0; i < 3; i++) {
+            NotificationData notificationData = notificationData(false, false);
+            processor.start(notificationData);
+
+            for (byte[] fragment : fragment(response(false, false, "app" + i, "title" + i, LONG_MESSAGE), 20)) {
+                processor.process(fragment);
+            }
+
+            assertTrue(processor.hasFinishedProcessing());
+            assertEquals("app" + i, notificationData.getAppId());
+            assertEquals("title" + i, notificationData.getTitle());
+            assertEquals(LONG_MESSAGE, notificationData.getMessage());
+
+            processor.reset();
+            assertFalse(processor.isProcessing());
+        }
+    }
+
+
+    private static void assertMatchesLegacy(byte[] response, boolean positive, boolean negative, int... sizes) {
+        List<byte[]> fragments = new ArrayList<>();
+        int offset = 0;
+        for (int size : sizes) {
+            fragments.add(Arrays.copyOfRange(response, offset, offset + size));
+            offset += size;
+        }
+
+        assertMatchesLegacy(fragments, positive, negative);
+    }
+
+    private static void assertMatchesLegacy(byte[] response, boolean positive, boolean negative, int fragmentSize) {
+        assertMatchesLegacy(fragment(response, fragmentSize), positive, negative);
+    }
+
+    private static void assertMatchesLegacy(List<byte[]> fragments, boolean positive, boolean negative) {
+        NotificationData legacyData = notificationData(positive, negative);
+        LegacyPacketProcessor legacy = new LegacyPacketProcessor(legacyData);
+
+        NotificationData notificationData = notificationData(positive, negative);
+        PacketProcessor processor = new PacketProcessor(notificationData);
+
+        for (byte[] fragment : fragments) {
+            assertFalse(processor.hasFinishedProcessing());
+
+            legacy.process(fragment);
+            processor.process(fragment);
+        }
+
+        assertTrue(legacy.hasFinishedProcessing());
+        assertTrue(processor.hasFinishedProcessing());
+
+        assertEquals(legacyData.getAppId(), notificationData.getAppId());
+        assertEquals(legacyData.getTitle(), notificationData.getTitle());
+        assertEquals(legacyData.getMessage(), notificationData.getMessage());
+        assertEquals(legacyData.getPositiveAction(), notificationData.getPositiveAction());
+        assertEquals(legacyData.getNegativeAction(), notificationData.getNegativeAction());
+    }
+
+    private static List<byte[]> fragment(byte[] response, int fragmentSize) {
+        List<byte[]> fragments = new ArrayList<>();
+        for (int offset = 0; offset < response.length; offset += fragmentSize) {
+            fragments.add(Arrays.copyOfRange(response, offset, Math.min(offset + fragmentSize, response.length)));
+        }
+
+        return fragments;
+    }
+
+    private static NotificationData notificationData(boolean positive, boolean negative) {
+        int flags = (positive ? 8 : 0) | (negative ? 16 : 0);
+
+        return new NotificationData(new byte[] {
+                ServicesConstants.EventIDNotificationAdded, (byte) flags, 0, 1, UID[0], UID[1], UID[2], UID[3]
+        });
+    }
+
+    /**
+     * Builds a GetNotificationAttributes response with app identifier, title, message and the
+     * available action labels.
+     */
+    private static byte[] response(boolean positive, boolean negative, String... values) {
+        byte[] ids = {
+                ServicesConstants.NotificationAttributeIDAppIdentifier,
+                ServicesConstants.NotificationAttributeIDTitle,
+                ServicesConstants.NotificationAttributeIDMessage,
+                positive ? ServicesConstants.NotificationAttributeIDPositiveActionLabel : ServicesConstants.NotificationAttributeIDNegativeActionLabel,
+                ServicesConstants.NotificationAttributeIDNegativeActionLabel
+        };
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(ServicesConstants.CommandIDGetNotificationAttributes);
+        stream.write(UID, 0, UID.length);
+
+        for (int i = 0; i < values.length; i++) {
+            byte[] value = values[i].getBytes(StandardCharsets.UTF_8);
+            stream.write(ids[i]);
+            stream.write(value.length & 0xff);
+            stream.write((value.length >> 8) & 0xff);
+            stream.write(value, 0, value.length);
+        }
+
+        return stream.toByteArray();
+    }
+
+
+    /**
+     * The parser as it was before the fragment buffer, kept as a reference for the expected output.
+     */
+    private static class LegacyPacketProcessor {
+
+        private NotificationData notificationData;
+        private ByteArrayOutputStream processingAttribute = new ByteArrayOutputStream();
+        private byte[] bytesFromPreviousPacket = new byte[] {};
+        private int bytesLeftToProcess;
+        private int attributeBytesInNextPacket;
+        private boolean init = true;
+        private int attributesRead;
+
+        LegacyPacketProcessor(NotificationData notificationData) {
+            this.notificationData = notificationData;
+        }
+
+        boolean hasFinishedProcessing() {
+            int expected = 3 + (notificationData.hasPositiveAction() ? 1 : 0) + (notificationData.hasNegativeAction() ? 1 : 0);
+            return attributesRead >= expected;
+        }
+
+        private int getAttributeLength(byte[] packet, int lengthIndex){
+            byte[] byteLength = {packet[lengthIndex + 2], packet[lengthIndex + 1]};
+            BigInteger length = new BigInteger(byteLength);
+            return length.intValue();
+        }
+
+        private void updateProcessingStatus() {
+            String value = new String(processingAttribute.toByteArray(), StandardCharsets.UTF_8);
+            processingAttribute.reset();
+
+            switch (attributesRead) {
+                case 0:
+                    notificationData.setAppId(value);
+                    break;
+                case 1:
+                    notificationData.setTitle(value);
+                    break;
+                case 2:
+                    notificationData.setMessage(value);
+                    break;
+                case 3:
+                    if (notificationData.hasPositiveAction()) {
+                        notificationData.setPositiveAction(value);
+                    }
+                    else {
+                        notificationData.setNegativeAction(value);
+                    }
+                    break;
+                case 4:
+                    notificationData.setNegativeAction(value);
+                    break;
+            }
+
+            attributesRead++;
+        }
+
+        void process(byte[] packet) {
+            packet = PacketProcessor.concat(bytesFromPreviousPacket, packet);
+            bytesLeftToProcess = packet.length;
+            bytesFromPreviousPacket = new byte[] {};
+
+            int attributeIndex;
+
+            while (bytesLeftToProcess > 0) {
+                if (attributeBytesInNextPacket > 0) {
+                    if (bytesLeftToProcess < attributeBytesInNextPacket) {
+                        processingAttribute.write(packet, 0, bytesLeftToProcess);
+                        attributeBytesInNextPacket -= bytesLeftToProcess;
+                        bytesLeftToProcess = 0;
+                    }
+                    else {
+                        processingAttribute.write(packet, 0, attributeBytesInNextPacket);
+                        bytesLeftToProcess -= attributeBytesInNextPacket;
+
+                        if (bytesLeftToProcess > 0 && bytesLeftToProcess <= 2) {
+                            bytesFromPreviousPacket = Arrays.copyOfRange(packet, attributeBytesInNextPacket, packet.length);
+                            bytesLeftToProcess = 0;
+                        }
+
+                        attributeBytesInNextPacket = 0;
+
+                        updateProcessingStatus();
+                    }
+                }
+                else {
+                    if (init) {
+                        attributeIndex = 5;
+                        init = false;
+                    }
+                    else {
+                        attributeIndex = packet.length - bytesLeftToProcess;
+                    }
+
+                    int attributeLength = getAttributeLength(packet, attributeIndex);
+                    int bytesInCurrentPacket = packet.length - (attributeIndex + 3);
+
+                    if (bytesInCurrentPacket < attributeLength) {
+                        processingAttribute.write(packet, attributeIndex + 3, bytesInCurrentPacket);
+                        attributeBytesInNextPacket = attributeLength - bytesInCurrentPacket;
+                        bytesLeftToProcess = 0;
+                    }
+                    else {
+                        processingAttribute.write(packet, attributeIndex + 3, attributeLength);
+                        attributeBytesInNextPacket = 0;
+                        bytesLeftToProcess = bytesInCurrentPacket - attributeLength;
+
+                        if (bytesLeftToProcess > 0 && bytesLeftToProcess <= 2) {
+                            int offset = attributeIndex + 3 + attributeLength;
+                            bytesFromPreviousPacket = Arrays.copyOfRange(packet, offset, packet.length);
+                            bytesLeftToProcess = 0;
+                        }
+
+                        updateProcessingStatus();
+                    }
+                }
+            }
+        }
+    }
+}
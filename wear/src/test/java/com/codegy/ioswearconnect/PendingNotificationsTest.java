@@ -0,0 +1,143 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PendingNotificationsTest {
+
+    private static final byte CATEGORY_SOCIAL = 4;
+
+
+    private PendingNotifications pending;
+
+
+    @Before
+    public void setUp() {
+        pending = new PendingNotifications();
+    }
+
+    @Test
+    public void removeReturnsTheEvent() {
+        pending.put(7, ServicesConstants.EventFlagSilent, CATEGORY_SOCIAL, 100, 1100);
+        pending.setRequestTime(7, 150);
+        assertEquals(100, pending.getEventTime(7));
+
+        NotificationData notificationData = pending.remove(7);
+        assertEquals(7, notificationData.getPackedUID());
+        assertEquals(ServicesConstants.EventFlagSilent, notificationData.getEventFlags());
+        assertEquals(CATEGORY_SOCIAL, notificationData.getCategoryId());
+        assertEquals(100, notificationData.getEventTime());
+        assertEquals(150, notificationData.getRequestTime());
+
+        assertNull(pending.remove(7));
+        assertEquals(-1, pending.getEventTime(7));
+        assertEquals(0, pending.size());
+    }
+
+    @Test
+    public void modifiedNotificationReplacesTheRequest() {
+        pending.put(7, (byte) 0, CATEGORY_SOCIAL, 100, 1100);
+        pending.setRequestTime(7, 150);
+        pending.put(7, (byte) 0, CATEGORY_SOCIAL, 200, 1200);
+
+        assertEquals(1, pending.size());
+        NotificationData notificationData = pending.remove(7);
+        assertEquals(200, notificationData.getEventTime());
+        assertEquals(-1, notificationData.getRequestTime());
+    }
+
+    @Test
+    public void evictsTheEarliestDeadlineWhenFull() {
+        for (int UID = 0; UID < PendingNotifications.MAX_SIZE; UID++) {
+            // UID 10 is due first
+            pending.put(UID, (byte) 0, CATEGORY_SOCIAL, 0, UID == 10 ? 500 : 1000 + UID);
+        }
+        assertEquals(0, pending.getEvictedCount());
+
+        pending.put(1000, (byte) 0, CATEGORY_SOCIAL, 0, 5000);
+
+        assertEquals(PendingNotifications.MAX_SIZE, pending.size());
+        assertEquals(1, pending.getEvictedCount());
+        assertEquals(-1, pending.getEventTime(10));
+        assertEquals(0, pending.getEventTime(1000));
+        assertEquals(0, pending.getEventTime(0));
+
+        // Updating a pending UID doesn't evict anything
+        pending.put(1000, (byte) 0, CATEGORY_SOCIAL, 0, 6000);
+        assertEquals(1, pending.getEvictedCount());
+    }
+
+    @Test
+    public void removeExpiredReturnsTheNextDeadline() {
+        pending.put(1, (byte) 0, CATEGORY_SOCIAL, 0, 1000);
+        pending.put(2, (byte) 0, CATEGORY_SOCIAL, 0, 3000);
+        pending.put(3, (byte) 0, CATEGORY_SOCIAL, 0, 2000);
+
+        assertEquals(1000, pending.removeExpired(999));
+        assertEquals(3, pending.size());
+
+        assertEquals(2000, pending.removeExpired(1000));
+        assertEquals(1, pending.getExpiredCount());
+        assertEquals(-1, pending.getEventTime(1));
+
+        assertEquals(-1, pending.removeExpired(5000));
+        assertEquals(3, pending.getExpiredCount());
+        assertEquals(0, pending.size());
+    }
+
+    @Test
+    public void removeExpiredChecksShiftedEntries() {
+        // Enough entries to fill whole probe runs, all expired together
+        for (int UID = 0; UID < PendingNotifications.MAX_SIZE; UID++) {
+            pending.put(UID, (byte) 0, CATEGORY_SOCIAL, 0, UID % 2 == 0 ? 1000 : 2000);
+        }
+
+        assertEquals(2000, pending.removeExpired(1000));
+        assertEquals(PendingNotifications.MAX_SIZE / 2, pending.size());
+        for (int UID = 0; UID < PendingNotifications.MAX_SIZE; UID++) {
+            assertEquals(UID % 2 == 0 ? -1 : 0, pending.getEventTime(UID));
+        }
+    }
+
+    @Test
+    public void discardDropsWithoutAResult() {
+        pending.put(7, (byte) 0, CATEGORY_SOCIAL, 100, 1100);
+
+        assertTrue(pending.discard(7));
+        assertFalse(pending.discard(7));
+        assertNull(pending.remove(7));
+        assertEquals(0, pending.size());
+    }
+
+    @Test
+    public void entriesAreReused() {
+        pending.put(1, (byte) 0, CATEGORY_SOCIAL, 0, 1000);
+        pending.put(2, (byte) 0, CATEGORY_SOCIAL, 0, 1000);
+        pending.put(3, (byte) 0, CATEGORY_SOCIAL, 0, 1000);
+        assertEquals(0, pending.getPooledCount());
+
+        pending.remove(1);
+        pending.discard(2);
+        pending.removeExpired(1000);
+        assertEquals(3, pending.getPooledCount());
+
+        // New requests take from the pool first
+        pending.put(4, (byte) 0, CATEGORY_SOCIAL, 0, 2000);
+        pending.put(5, (byte) 0, CATEGORY_SOCIAL, 0, 2000);
+        assertEquals(1, pending.getPooledCount());
+
+        pending.clear();
+        assertEquals(3, pending.getPooledCount());
+        assertEquals(0, pending.size());
+
+        // A reused entry doesn't carry the old request time
+        pending.put(6, (byte) 0, CATEGORY_SOCIAL, 300, 2000);
+        assertEquals(-1, pending.remove(6).getRequestTime());
+    }
+
+}
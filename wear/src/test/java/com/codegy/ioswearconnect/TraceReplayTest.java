@@ -0,0 +1,246 @@
+package com.codegy.ioswearconnect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Records sessions between BLEManager and FakeIOSPeripheral with GattRecorder, then replays the
+ * traces through TraceReplayer. Field captures can be replayed the same way.
+ */
+public class TraceReplayTest {
+
+    private static final byte CATEGORY_SOCIAL = 4;
+    private static final byte CATEGORY_EMAIL = 6;
+
+
+    private static class NotificationList implements BLEManager.BLEManagerCallback {
+        final List<String> notifications = new ArrayList<>();
+        BLEManager.BLEManagerState state = BLEManager.BLEManagerState.Disconnected;
+
+        @Override
+        public void onConnectionStateChange(BLEManager.BLEManagerState state) {
+            this.state = state;
+        }
+
+        @Override
+        public void onIncomingCall(NotificationData notificationData) {
+            add(notificationData);
+        }
+
+        @Override
+        public void onCallEnded() {
+        }
+
+        @Override
+        public void onNotificationReceived(NotificationData notificationData) {
+            add(notificationData);
+        }
+
+        @Override
+        public void onNotificationCanceled(String notificationId) {
+            notifications.add("canceled " + notificationId);
+        }
+
+        @Override
+        public boolean shouldUpdateBatteryLevel() {
+            return false;
+        }
+
+        @Override
+        public void onBatteryLevelChanged(int newBatteryLevel) {
+        }
+
+        @Override
+        public void onMediaDataUpdated(byte[] packet, String attribute) {
+        }
+
+        private void add(NotificationData notificationData) {
+            notifications.add(notificationData.getUIDString() + " " + notificationData.getAppId() + " "
+                    + notificationData.getAppName() + " " + notificationData.getTitle() + ": " + notificationData.getMessage());
+        }
+    }
+
+
+    private File traceFile;
+
+
+    @Before
+    public void setUp() throws Exception {
+        traceFile = File.createTempFile("gatt_traffic", null);
+        traceFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        traceFile.delete();
+        new File(traceFile.getPath() + ".1").delete();
+    }
+
+    @Test
+    public void replaysRecordedSession() throws Exception {
+        List<String> recorded = record(new Session() {
+            @Override
+            public void run(FakeIOSPeripheral peripheral, VirtualEventLoop eventLoop) {
+                peripheral.setAppName("com.example.chat", "Chat");
+                peripheral.setMtu(185);
+
+                peripheral.postNotification(1, (byte) 0, CATEGORY_SOCIAL, "com.example.chat", "Anna", "See you at eight");
+                eventLoop.advance(500);
+                peripheral.postNotification(2, (byte) 0, CATEGORY_EMAIL, "com.apple.mobilemail", "Invoice", "Your invoice for March is attached, it's due at the end of the month.");
+                peripheral.postNotification(3, (byte) 0, CATEGORY_SOCIAL, "com.example.chat", "Ben", "On my way");
+                eventLoop.advance(2000);
+                peripheral.removeNotification(1);
+                eventLoop.advance(2000);
+            }
+        });
+
+        assertEquals(4, recorded.size());
+
+        VirtualEventLoop eventLoop = new VirtualEventLoop();
+        TraceReplayer replayer = new TraceReplayer(eventLoop, false, traceFile);
+        NotificationList callback = replay(replayer, eventLoop, 10000);
+
+        assertEquals(recorded, callback.notifications);
+        assertEquals(0, replayer.getUnansweredWriteCount());
+    }
+
+    @Test
+    public void replaysRotatedTrace() throws Exception {
+        // Small enough for the session to rotate the recording
+        final int count = 100;
+
+        List<String> recorded = record(new Session() {
+            @Override
+            public void run(FakeIOSPeripheral peripheral, VirtualEventLoop eventLoop) {
+                for (int UID = 1; UID <= count; UID++) {
+                    peripheral.postNotification(UID, (byte) 0, CATEGORY_SOCIAL, "com.example.chat", "Sender " + UID, "Message " + UID);
+                    eventLoop.advance(100);
+                }
+                eventLoop.advance(10000);
+            }
+        }, 8 * 1024);
+
+        File rotated = new File(traceFile.getPath() + ".1");
+        assertEquals(true, rotated.exists());
+
+        // Only the tail of the session is left, the replay must deliver exactly that
+        VirtualEventLoop eventLoop = new VirtualEventLoop();
+        TraceReplayer replayer = new TraceReplayer(eventLoop, false, rotated, traceFile);
+        NotificationList callback = replay(replayer, eventLoop, 60000);
+
+        List<String> replayed = callback.notifications;
+        assertEquals(true, replayed.size() > 0 && replayed.size() < count);
+        assertEquals(recorded.subList(count - replayed.size(), count), replayed);
+    }
+
+    @Test
+    public void recorderFlushesOnTheEventLoop() {
+        VirtualEventLoop eventLoop = new VirtualEventLoop();
+        GattRecorder recorder = new GattRecorder(traceFile, 1024 * 1024, eventLoop);
+        recorder.setEnabled(true);
+
+        recorder.recordNotification(ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE, new byte[8], 0);
+        eventLoop.advance(999);
+        assertEquals(0, traceFile.length());
+
+        // Without any later record
+        eventLoop.advance(1);
+        long length = GattRecorder.FILE_HEADER_LENGTH + 2 + GattRecorder.RECORD_HEADER_LENGTH + 8;
+        assertEquals(length, traceFile.length());
+
+        // Connection changes are written right away
+        recorder.recordConnection(false, eventLoop.now());
+        assertEquals(length + 2 + GattRecorder.RECORD_HEADER_LENGTH + 1, traceFile.length());
+        assertEquals(0, eventLoop.getPendingCount());
+
+        recorder.close();
+    }
+
+    @Test
+    public void replayThroughput() throws Exception {
+        // Sent at once in fast mode, more than PendingNotifications holds would be dropped
+        final int count = 200;
+        final int runs = 5;
+
+        record(new Session() {
+            @Override
+            public void run(FakeIOSPeripheral peripheral, VirtualEventLoop eventLoop) {
+                peripheral.setMtu(185);
+
+                for (int UID = 1; UID <= count; UID++) {
+                    peripheral.postNotification(UID, (byte) 0, CATEGORY_SOCIAL, "com.example.app" + (UID % 10), "Sender " + UID,
+                            "Message body number " + UID + " with some text to fill a couple of packets");
+                    eventLoop.advance(50);
+                }
+                eventLoop.advance(60000);
+            }
+        });
+
+        long elapsed = 0;
+
+        for (int run = 0; run < runs; run++) {
+            VirtualEventLoop eventLoop = new VirtualEventLoop();
+            TraceReplayer replayer = new TraceReplayer(eventLoop, true, traceFile);
+
+            long start = System.nanoTime();
+            NotificationList callback = replay(replayer, eventLoop, 60000);
+            elapsed += System.nanoTime() - start;
+
+            assertEquals(count, callback.notifications.size());
+            assertEquals(0, replayer.getUnansweredWriteCount());
+        }
+
+        long elapsedMillis = Math.max(1, elapsed / 1000000);
+        System.out.println("TraceReplayTest fast replay of " + count + " notifications x" + runs + ": " + elapsedMillis + " ms, "
+                + (count * runs * 1000L / elapsedMillis) + " notifications/s");
+    }
+
+
+    private interface Session {
+        void run(FakeIOSPeripheral peripheral, VirtualEventLoop eventLoop);
+    }
+
+    private List<String> record(Session session) {
+        return record(session, 1024 * 1024);
+    }
+
+    /**
+     * Runs the session with its traffic recorded to the trace file, returns what BLEManager
+     * delivered.
+     */
+    private List<String> record(Session session, long maxBytes) {
+        VirtualEventLoop eventLoop = new VirtualEventLoop();
+        FakeIOSPeripheral peripheral = new FakeIOSPeripheral(eventLoop);
+        GattRecorder recorder = new GattRecorder(traceFile, maxBytes, eventLoop);
+        NotificationList callback = new NotificationList();
+
+        recorder.setEnabled(true);
+        new BLEManager(callback, new RecordingGattTransport(peripheral, recorder, eventLoop), eventLoop,
+                new NotificationStore(null), new AppNameCache(null), null, null, 0);
+
+        eventLoop.advance(2000);
+        assertEquals(BLEManager.BLEManagerState.Connected, callback.state);
+
+        session.run(peripheral, eventLoop);
+        recorder.close();
+
+        return callback.notifications;
+    }
+
+    private NotificationList replay(TraceReplayer replayer, VirtualEventLoop eventLoop, long duration) {
+        NotificationList callback = new NotificationList();
+        new BLEManager(callback, replayer, eventLoop, new NotificationStore(null), new AppNameCache(null), null, null, 0);
+
+        eventLoop.advance(duration);
+
+        return callback;
+    }
+
+}
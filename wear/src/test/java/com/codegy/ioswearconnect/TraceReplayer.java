@@ -0,0 +1,449 @@
+package com.codegy.ioswearconnect;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * GattTransport playing back a trace recorded by GattRecorder, to drive BLEManager with the
+ * traffic of a real iOS device.
+ *
+ * Notifications other than Data Source are sent once Notification Source is subscribed, at their
+ * recorded times or, in fast mode, all at once. Data Source packets are sent when BLEManager writes
+ * the Control Point request they answered, after the same delay unless in fast mode. Requests may
+ * be pipelined, so a response is matched to its request by its header, the command and the UID or
+ * app identifier, and the packets following it are its continuations. Reads are answered with the recorded values in
+ * order. Connection changes in the trace are skipped, the replay stays on a single connection.
+ *
+ * Fast mode measures parsing rather than the link, BLEManager drops notifications past what
+ * PendingNotifications holds just like it would with a real flood.
+ */
+public class TraceReplayer implements GattTransport {
+
+    public static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static final int GATT_SUCCESS = 0;
+    private static final int DEFAULT_MTU = 23;
+    private static final int BOND_BONDED = 12;
+
+
+    private static class Packet {
+        final String characteristic;
+        final byte[] value;
+        // Since the start of the trace, or since the write for Data Source responses
+        final long time;
+
+        Packet(String characteristic, byte[] value, long time) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+
+    private final VirtualEventLoop mEventLoop;
+    private final boolean fast;
+    private Listener mListener;
+
+    private static class Response {
+        final byte[] request;
+        final long requestTime;
+        final List<Packet> packets = new ArrayList<>();
+
+        Response(byte[] request, long requestTime) {
+            this.request = request;
+            this.requestTime = requestTime;
+        }
+
+        /**
+         * Returns true if the packet is the first one of the response to this request.
+         */
+        boolean startsWith(byte[] packet) {
+            if (request.length == 0 || packet.length == 0 || packet[0] != request[0]) {
+                return false;
+            }
+
+            int headerLength;
+
+            if (request[0] == ServicesConstants.CommandIDGetNotificationAttributes) {
+                headerLength = 5;
+            }
+            else if (request[0] == ServicesConstants.CommandIDGetAppAttributes) {
+                // Up to the NUL ending the app identifier
+                headerLength = 1;
+                while (headerLength < request.length && request[headerLength - 1] != 0) {
+                    headerLength++;
+                }
+            }
+            else {
+                return false;
+            }
+
+            headerLength = Math.min(headerLength, Math.min(request.length, packet.length));
+
+            for (int i = 1; i < headerLength; i++) {
+                if (packet[i] != request[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+
+    private final List<Packet> events = new ArrayList<>();
+    // Data Source responses by the Control Point write they answered, in recorded order
+    private final Map<String, Deque<Response>> responses = new HashMap<>();
+    private final Map<String, Deque<byte[]>> reads = new HashMap<>();
+    private int mtu = DEFAULT_MTU;
+    // Time of the last Data Source packet sent, responses don't overlap like on the iOS device
+    private long dataSourceTime;
+
+    private boolean scanning;
+    private boolean connected;
+    private boolean started;
+    private int connection;
+    private int unansweredWrites;
+
+
+    /**
+     * Loads the trace files, oldest first, like the rotated recording and then the current one.
+     */
+    public TraceReplayer(VirtualEventLoop eventLoop, boolean fast, File... files) throws IOException {
+        this.mEventLoop = eventLoop;
+        this.fast = fast;
+
+        long startTime = -1;
+        // Recorded requests whose response hasn't started yet
+        List<Response> waiting = new ArrayList<>();
+        Response response = null;
+
+        for (File file : files) {
+            GattTraceReader reader = new GattTraceReader(file);
+
+            try {
+                while (reader.next()) {
+                    String characteristic = reader.getCharacteristic();
+                    byte[] value = reader.getValue();
+                    long time = reader.getTime();
+
+                    if (startTime == -1) {
+                        startTime = time;
+                    }
+
+                    switch (reader.getType()) {
+                        case GattRecorder.TYPE_WRITE:
+                            if (ServicesConstants.CHARACTERISTIC_CONTROL_POINT.equals(characteristic)) {
+                                Response request = new Response(value, time);
+                                waiting.add(request);
+
+                                String key = Arrays.toString(value);
+                                Deque<Response> queue = responses.get(key);
+                                if (queue == null) {
+                                    queue = new ArrayDeque<>();
+                                    responses.put(key, queue);
+                                }
+                                queue.add(request);
+                            }
+                            break;
+                        case GattRecorder.TYPE_NOTIFICATION:
+                            if (ServicesConstants.CHARACTERISTIC_DATA_SOURCE.equals(characteristic)) {
+                                for (int i = 0; i < waiting.size(); i++) {
+                                    if (waiting.get(i).startsWith(value)) {
+                                        response = waiting.remove(i);
+                                        break;
+                                    }
+                                }
+
+                                // Packets with no request before them can't be answered
+                                if (response != null) {
+                                    response.packets.add(new Packet(characteristic, value, time - response.requestTime));
+                                }
+                                mtu = Math.max(mtu, value.length + 3);
+                            }
+                            else if (characteristic != null) {
+                                events.add(new Packet(characteristic, value, time - startTime));
+                            }
+                            break;
+                        case GattRecorder.TYPE_READ:
+                            Deque<byte[]> queue = reads.get(characteristic);
+                            if (queue == null) {
+                                queue = new ArrayDeque<>();
+                                reads.put(characteristic, queue);
+                            }
+                            queue.add(value);
+                            break;
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the notifications sent open loop, Data Source responses not included.
+     */
+    public int getEventCount() {
+        return events.size();
+    }
+
+    /**
+     * Returns the Control Point writes of BLEManager that weren't in the trace.
+     */
+    public int getUnansweredWriteCount() {
+        return unansweredWrites;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.mListener = listener;
+    }
+
+    @Override
+    public boolean startScan(String serviceUUID, int scanMode, long reportDelay) {
+        scanning = true;
+        mEventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (scanning) {
+                    mListener.onDeviceFound(ADDRESS, "iPhone");
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        scanning = false;
+    }
+
+    @Override
+    public boolean connect(String address, boolean autoConnect) {
+        if (!ADDRESS.equals(address)) {
+            return false;
+        }
+
+        connection++;
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                connected = true;
+                mListener.onConnectionStateChange(true, GATT_SUCCESS);
+            }
+        }, 0);
+
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (connected) {
+            connected = false;
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onConnectionStateChange(false, GATT_SUCCESS);
+                }
+            }, 0);
+        }
+    }
+
+    @Override
+    public void close() {
+        connection++;
+        connected = false;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!connected) {
+            return false;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onServicesDiscovered(GATT_SUCCESS);
+            }
+        }, 0);
+
+        return true;
+    }
+
+    @Override
+    public boolean hasService(UUID serviceUUID) {
+        return connected && (serviceUUID.equals(ServicesConstants.UUID_ANCS) || serviceUUID.equals(ServicesConstants.UUID_AMS) || serviceUUID.equals(ServicesConstants.UUID_BAS));
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        if (!connected) {
+            return false;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onMtuChanged(Math.min(mtu, TraceReplayer.this.mtu), GATT_SUCCESS);
+            }
+        }, 0);
+
+        return true;
+    }
+
+    @Override
+    public boolean subscribe(UUID serviceUUID, final String characteristic) {
+        if (!hasService(serviceUUID)) {
+            return false;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onDescriptorWrite(characteristic, GATT_SUCCESS);
+
+                if (characteristic.equals(ServicesConstants.CHARACTERISTIC_NOTIFICATION_SOURCE) && !started) {
+                    started = true;
+                    sendEvents();
+                }
+            }
+        }, 0);
+
+        return true;
+    }
+
+    @Override
+    public boolean write(UUID serviceUUID, final String characteristic, final byte[] value) {
+        if (!hasService(serviceUUID)) {
+            return false;
+        }
+
+        Response response = null;
+
+        if (characteristic.equals(ServicesConstants.CHARACTERISTIC_CONTROL_POINT)) {
+            Deque<Response> queue = responses.get(Arrays.toString(value));
+            response = queue != null ? queue.poll() : null;
+
+            if (response == null) {
+                unansweredWrites++;
+            }
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onCharacteristicWrite(characteristic, value, GATT_SUCCESS);
+            }
+        }, 0);
+
+        if (response != null) {
+            for (final Packet packet : response.packets) {
+                dataSourceTime = Math.max(dataSourceTime, mEventLoop.now() + (fast ? 0 : packet.time));
+
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onCharacteristicChanged(packet.characteristic, packet.value);
+                    }
+                }, dataSourceTime - mEventLoop.now());
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean read(UUID serviceUUID, final String characteristic) {
+        if (!hasService(serviceUUID)) {
+            return false;
+        }
+
+        Deque<byte[]> queue = reads.get(characteristic);
+        byte[] recorded = queue != null ? queue.poll() : null;
+        final byte[] value = recorded != null ? recorded : new byte[0];
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onCharacteristicRead(characteristic, value, GATT_SUCCESS);
+            }
+        }, 0);
+
+        return true;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        if (!connected) {
+            return false;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onReadRemoteRssi(-60, GATT_SUCCESS);
+            }
+        }, 0);
+
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return connected;
+    }
+
+    @Override
+    public int getBondState() {
+        return connection > 0 ? BOND_BONDED : -1;
+    }
+
+    @Override
+    public void createBond() {
+    }
+
+    @Override
+    public void removeBond() {
+    }
+
+
+    private void sendEvents() {
+        for (final Packet packet : events) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onCharacteristicChanged(packet.characteristic, packet.value);
+                }
+            }, fast ? 0 : packet.time);
+        }
+    }
+
+    /**
+     * Runs the event after the delay, unless the connection is closed in the meantime.
+     */
+    private void deliver(final Runnable event, long delay) {
+        final int deliveryConnection = connection;
+
+        mEventLoop.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (deliveryConnection == connection) {
+                    event.run();
+                }
+            }
+        }, delay);
+    }
+
+}
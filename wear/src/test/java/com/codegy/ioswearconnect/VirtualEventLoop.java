@@ -0,0 +1,115 @@
+package com.codegy.ioswearconnect;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * EventLoop driven by the test on a virtual clock, time only moves when the test advances it.
+ */
+public class VirtualEventLoop implements EventLoop {
+
+    private static class Task implements Comparable<Task> {
+        final long time;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+    private boolean quit;
+
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void post(Runnable runnable) {
+        postAtTime(runnable, now);
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delay) {
+        postAtTime(runnable, now + Math.max(0, delay));
+    }
+
+    @Override
+    public void postAtTime(Runnable runnable, long time) {
+        if (!quit) {
+            tasks.add(new Task(time, sequence++, runnable));
+        }
+    }
+
+    @Override
+    public void remove(Runnable runnable) {
+        Iterator<Task> iterator = tasks.iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().runnable == runnable) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        tasks.clear();
+    }
+
+    @Override
+    public void quit() {
+        quit = true;
+        tasks.clear();
+    }
+
+    public boolean isQuit() {
+        return quit;
+    }
+
+    /**
+     * Runs every task due until the given time, including the ones they post, and moves the clock
+     * there.
+     */
+    public void runUntil(long time) {
+        while (!tasks.isEmpty() && tasks.peek().time <= time) {
+            Task task = tasks.poll();
+
+            if (task.time > now) {
+                now = task.time;
+            }
+
+            task.runnable.run();
+        }
+
+        if (time > now) {
+            now = time;
+        }
+    }
+
+    public void advance(long millis) {
+        runUntil(now + millis);
+    }
+
+    public int getPendingCount() {
+        return tasks.size();
+    }
+
+}